@@ -24,6 +24,8 @@ package es.ucm.fdi.ac;
 
 import es.ucm.fdi.ac.extract.FileTreeNode;
 import es.ucm.fdi.ac.test.Test;
+import es.ucm.fdi.ac.test.TokenizingTest;
+import es.ucm.fdi.util.FileUtils;
 import es.ucm.fdi.util.XMLSerializable;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -31,10 +33,19 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.logging.log4j.ThreadContext;
 import org.apache.logging.log4j.LogManager;
@@ -59,6 +70,9 @@ public class Analysis implements XMLSerializable {
 
 	private static final String VERSION_STRING = "2.0";
 
+	/** loading is mostly I/O-bound; use more threads than processors */
+	private static final int LOAD_THREADS_PER_CPU = 2;
+
 	/** Set of sources that are being analyzed. */
 	private SourceSet sourceSet;
 
@@ -78,6 +92,14 @@ public class Analysis implements XMLSerializable {
 
 	public interface TokenizerFactory {
 		Tokenizer getTokenizerFor(Submission[] subs);
+
+		/**
+		 * Returns a tokenizer that may use a different tokenizer for each 
+		 * source file. By default, the same one is used for all of them.
+		 */
+		default Tokenizer getPerFileTokenizerFor(Submission[] subs) {
+			return getTokenizerFor(subs);
+		}
 	}
 
 	private static TokenizerFactory tokenizerFactory;
@@ -114,18 +136,39 @@ public class Analysis implements XMLSerializable {
 			throw new IllegalArgumentException("nothing to analyze");
 		}
 
-		HashMap<String, Submission> unique = new HashMap<>();
+		// build all submissions in parallel; results keep the tree's order
+		ArrayList<FileTreeNode> roots = root.getChildren();
+		ArrayList<Submission> loaded = new ArrayList<>(roots.size());
+		int nThreads = Math.max(1, Math.min(roots.size(), LOAD_THREADS_PER_CPU
+				* Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		FileUtils.CharsetCache charsets = new FileUtils.CharsetCache();
+		try {
+			ArrayList<Future<Submission>> pending = new ArrayList<>();
+			for (FileTreeNode dn : roots) {
+				pending.add(executor.submit(() -> loadSubmission(dn, charsets)));
+			}
+			for (Future<Submission> f : pending) {
+				loaded.add(f.get());
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading sources", ie);
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof IOException) {
+				throw (IOException) ee.getCause();
+			}
+			throw new RuntimeException("Error loading sources", ee.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		// ids are assigned sequentially, in tree order, to unique submissions
+		LinkedHashMap<String, Submission> unique = new LinkedHashMap<>();
 		idsToSubs.clear();
 		boolean detectedDuplicates = false;
 		int i = 0;
-		for (FileTreeNode dn : root.getChildren()) {
-			Submission s = new Submission(dn.getLabel(), dn.getPath(), 0);
-			log.info("   created sub " + s.getId());
-			for (FileTreeNode fn : dn.getLeafChildren()) {
-				log.debug("    - " + fn.getFile().getName());
-				s.addSource(fn.getFile());
-			}
-
+		for (Submission s : loaded) {
 			if ( ! unique.containsKey(s.getHash())) {
 				unique.put(s.getHash(), s);
 				s.setInternalId(i++);
@@ -152,6 +195,7 @@ public class Analysis implements XMLSerializable {
 					"because their distance is 0 (= identical contents)");
 		}
 
+		// subs[k].getInternalId() == k
 		subs = new Submission[unique.size()];
         i = 0;
 		for (Submission s : unique.values()) {
@@ -165,11 +209,29 @@ public class Analysis implements XMLSerializable {
 		}
 	}
 
+	/**
+	 * Creates a submission from a first-level folder of the filtered tree,
+	 * reading all its sources and calculating its hash. Called 
+	 * concurrently for different folders; files that are neither ASCII nor 
+	 * UTF-8 try the charsets already detected within the same folder first.
+	 */
+	private static Submission loadSubmission(FileTreeNode dn,
+			FileUtils.CharsetCache charsets) {
+		Submission s = new Submission(dn.getLabel(), dn.getPath(), 0);
+		log.info("   created sub " + s.getId());
+		for (FileTreeNode fn : dn.getLeafChildren()) {
+			log.debug("    - " + fn.getFile().getName());
+			s.addSource(fn.getFile(), charsets, dn.getFile());
+		}
+		s.getHash();
+		return s;
+	}
+
 	/**
 	 * Choose the right tokenizer for a given file
 	 */
 	public Tokenizer chooseTokenizer() {
-		return tokenizerFactory.getTokenizerFor(subs);
+		return tokenizerFactory.getPerFileTokenizerFor(subs);
 	}
 
 	/**
@@ -183,32 +245,117 @@ public class Analysis implements XMLSerializable {
 		return (first.getData(testKey) != null);
 	}
 
+	/**
+	 * Removes template (base) code from all submissions' tokens, so that 
+	 * it does not count towards similarity. Submissions are tokenized if
+	 * they had not been already; tests will then use the remaining tokens.
+	 * Should be called before running any test.
+	 * @param template with the code to remove
+	 * @param tokenizer to use; must be the same that tests will use
+	 */
+	public void subtractTemplate(Template template, Tokenizer tokenizer) {
+		long before = 0, after = 0;
+		for (Submission s : subs) {
+			String tokens = (String) s.getData(Tokenizer.TOKEN_KEY);
+			if (tokens == null) {
+				tokens = TokenizingTest.tokenize(s, tokenizer);
+			}
+			String stripped = template.strip(tokens);
+			s.putData(Tokenizer.TOKEN_KEY, stripped);
+			before += tokens.length();
+			after += stripped.length();
+		}
+		log.info("Template removed {} of {} characters of tokens", before
+				- after, before);
+	}
+
 	/**
 	 * Preprocess files
 	 */
 	public void prepareTest(Test t) {
+		prepareTest(t, subs, subs.length);
+	}
+
+	/**
+	 * Preprocess targets; only pairs with one of the first 'cohort' targets
+	 * and one of the rest will be compared, unless cohort includes them all
+	 */
+	private void prepareTest(Test t, Submission[] targets, int cohort) {
 		t.setProgress(0f);
 		t.setCancelled(false);
 
-		t.init(subs);
+		if (cohort < targets.length) {
+			t.init(targets, cohort);
+		} else {
+			t.init(targets);
+		}
 
-		for (int i = 0; i < subs.length; i++) {
+		if (t.isIndependentPreprocessing()) {
+			prepareInParallel(t, targets);
+			return;
+		}
+		for (int i = 0; i < targets.length; i++) {
 			if (t.isCancelled()) {
 				return;
 			}
 			try {
-				ThreadContext.push("Pre-" + subs[i].getId());
-				t.preprocess(subs[i]);
+				ThreadContext.push("Pre-" + targets[i].getId());
+				t.preprocess(targets[i]);
 				ThreadContext.pop();
 			} catch (Throwable re) {
 				throw new RuntimeException("Error during pre-processing "
-						+ subs[i].getId(), re);
+						+ targets[i].getId(), re);
 			}
-			t.setProgress(i / (float) subs.length);
+			t.setProgress(i / (float) targets.length);
 		}
 		t.setProgress(1f);
 	}
 
+	/**
+	 * Preprocesses each target in a separate task; only valid for
+	 * tests that declare independent preprocessing. 
+	 */
+	private static void prepareInParallel(Test t, Submission[] targets) {
+		int nThreads = Math.max(1, Math.min(targets.length, Runtime
+				.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		ArrayList<Future<?>> futures = new ArrayList<>(targets.length);
+		for (Submission s : targets) {
+			futures.add(executor.submit(() -> {
+				if (t.isCancelled()) {
+					return;
+				}
+				ThreadContext.push("Pre-" + s.getId());
+				try {
+					t.preprocess(s);
+				} finally {
+					ThreadContext.pop();
+				}
+			}));
+		}
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					futures.get(i).get();
+				} catch (ExecutionException ee) {
+					t.setCancelled(true);
+					throw new RuntimeException("Error during pre-processing "
+							+ targets[i].getId(), ee.getCause());
+				}
+				t.setProgress(i / (float) targets.length);
+			}
+		} catch (InterruptedException ie) {
+			log.warn("I hate being interrupted. Test aborted");
+			t.setCancelled(true);
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+		if ( ! t.isCancelled()) {
+			t.setProgress(1f);
+		}
+	}
+
 	private void applyParallelizedTest(Test t) {
 		int nProc = Runtime.getRuntime().availableProcessors();
 		int slices[] = calculateSliceSizes(nProc, subs.length);
@@ -243,6 +390,11 @@ public class Analysis implements XMLSerializable {
 	 * Apply a single test
 	 */
 	public void applyTest(Test t) {
+		List<Map<Integer, Float>> sparse = t.sparseSimilarities(subs);
+		if (sparse != null) {
+			applySparseTest(t, sparse);
+			return;
+		}
 		if (t.isIndependentSimilarity()) {
 			applyParallelizedTest(t);
 			return;
@@ -257,6 +409,142 @@ public class Analysis implements XMLSerializable {
 		job.end();
 	}
 
+	/**
+	 * Stores the results of a test that only compared some pairs; 
+	 * all other pairs are considered to be at distance 1.
+	 */
+	private void applySparseTest(Test t, List<Map<Integer, Float>> sparse) {
+		float[][] F = new float[subs.length][subs.length];
+		for (int i = 0; i < subs.length; i++) {
+			Arrays.fill(F[i], 1f);
+			F[i][i] = 0f;
+			for (Map.Entry<Integer, Float> e : sparse.get(i).entrySet()) {
+				F[i][e.getKey()] = e.getValue();
+			}
+		}
+		new SimilarityJob(F, t, 0, 0, true).end();
+	}
+
+	/**
+	 * Prepare and apply several tests, running independent tests 
+	 * concurrently and dependent tests once their inputs are available.
+	 * @see TestScheduler
+	 * @param tests to run
+	 * @return the tests that were cancelled or failed, and those that 
+	 * depended on them; empty if all finished
+	 * @throws IOException if test dependencies cannot be met
+	 */
+	public List<Test> applyTests(Collection<Test> tests) throws IOException {
+		return new TestScheduler(this).run(tests);
+	}
+
+	/**
+	 * Compares each loaded submission against all submissions in a corpus,
+	 * but not against each other (use applyTest for that). The test is 
+	 * initialized with both sets of submissions; corpus submissions get 
+	 * internal ids after those of the loaded ones.
+	 * @param t test to use; as corpus submissions have no sources, it must
+	 * only require their tokens
+	 * @param entries submissions, as loaded from a Corpus; those with the 
+	 * same hash as a loaded submission (say, because it was added to the 
+	 * corpus in an earlier run) are ignored
+	 * @param maxPerSubmission number of closest corpus submissions to keep
+	 * for each loaded submission; tests that find pairs via 
+	 * sparseSimilarities only report those pairs
+	 * @return the closest pairs, sorted by increasing distance; in each, 'a' 
+	 * is a loaded submission and 'b' a corpus submission
+	 */
+	public Result[] compareWithCorpus(Test t, List<Submission> entries,
+			int maxPerSubmission) {
+		HashSet<String> loaded = new HashSet<>();
+		for (Submission s : subs) {
+			loaded.add(s.getHash());
+		}
+		ArrayList<Submission> corpus = new ArrayList<>(entries.size());
+		for (Submission s : entries) {
+			if (!loaded.contains(s.getHash())) {
+				corpus.add(s);
+			}
+		}
+		if (corpus.size() < entries.size()) {
+			log.info("Ignoring {} corpus submissions identical to loaded ones",
+					entries.size() - corpus.size());
+		}
+
+		Submission[] all = Arrays.copyOf(subs, subs.length + corpus.size());
+		for (int j = 0; j < corpus.size(); j++) {
+			all[subs.length + j] = corpus.get(j);
+			corpus.get(j).setInternalId(subs.length + j);
+		}
+		prepareTest(t, all, subs.length);
+
+		List<Map<Integer, Float>> sparse = t.sparseSimilarities(all);
+		if (sparse != null) {
+			return closestInCorpus(sparse, all, maxPerSubmission);
+		}
+
+		int nThreads = t.isIndependentSimilarity() ? Runtime.getRuntime()
+				.availableProcessors() : 1;
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		ArrayList<Future<List<Result>>> futures = new ArrayList<>();
+		t.setProgress(0f);
+		for (Submission a : subs) {
+			futures.add(executor.submit(() -> {
+				ArrayList<Result> row = new ArrayList<>(corpus.size());
+				for (Submission b : corpus) {
+					if (t.isCancelled()) {
+						break;
+					}
+					row.add(new Result(a, b, t.similarity(a, b)));
+				}
+				Collections.sort(row);
+				return row.subList(0, Math.min(maxPerSubmission, row.size()));
+			}));
+		}
+		ArrayList<Result> results = new ArrayList<>();
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				results.addAll(futures.get(i).get());
+				t.setProgress(i / (float) futures.size());
+			}
+		} catch (InterruptedException ie) {
+			log.warn("I hate being interrupted. Test aborted");
+			t.setCancelled(true);
+		} catch (ExecutionException ee) {
+			t.setCancelled(true);
+			throw new RuntimeException("Error comparing with corpus", ee
+					.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		t.setProgress(1f);
+		Collections.sort(results);
+		return results.toArray(new Result[results.size()]);
+	}
+
+	/**
+	 * Keeps the closest corpus submissions in each loaded submission's
+	 * sparse row; pairs that are not in the rows are not reported.
+	 */
+	private Result[] closestInCorpus(List<Map<Integer, Float>> sparse,
+			Submission[] all, int maxPerSubmission) {
+		ArrayList<Result> results = new ArrayList<>();
+		for (Submission a : subs) {
+			ArrayList<Result> row = new ArrayList<>();
+			for (Map.Entry<Integer, Float> e : sparse.get(a.getInternalId())
+					.entrySet()) {
+				if (e.getKey() >= subs.length) {
+					row.add(new Result(a, all[e.getKey()], e.getValue()));
+				}
+			}
+			Collections.sort(row);
+			results.addAll(row.subList(0, Math.min(maxPerSubmission, row
+					.size())));
+		}
+		Collections.sort(results);
+		return results.toArray(new Result[results.size()]);
+	}
+
 	/**
 	 * Return the limits of each slice in which to divide a large matrix-based job.
 	 * Slice limits correspond to indices, where
@@ -322,8 +610,11 @@ public class Analysis implements XMLSerializable {
 				for (int i = 0; i < subs.length; i++) {
 					subs[i].putData(t.getTestKey(), F[i]);
 				}
+				t.finish(subs);
 				t.setProgress(1f);
-				appliedTests.add(t);
+				synchronized (appliedTests) {
+					appliedTests.add(t);
+				}
 			}
 		}
 	}
@@ -449,6 +740,7 @@ public class Analysis implements XMLSerializable {
 		}
 
 		log.info("Loading sources...");
+		sourceSet = new SourceSet();
 		sourceSet.loadFromXML(root.getChild("sources"));
 		loadSources(sourceSet);
 
@@ -460,43 +752,34 @@ public class Analysis implements XMLSerializable {
 
 		log.info("Loading tests...");
 		ArrayList<Test> pendingTests = new ArrayList<Test>();
+		Tokenizer chosen = null;
 		for (Element te : root.getChild("tests").getChildren()) {
 			String tcn = te.getAttributeValue("class");
+			Test t;
 			try {
-				Test t = (Test) getClass().getClassLoader().loadClass(tcn)
+				t = (Test) getClass().getClassLoader().loadClass(tcn)
 						.getConstructor().newInstance();
 				t.loadFromXML(te);
-				pendingTests.add(t);
 			} catch (Exception ex) {
-				throw new IOException("Could not load test " + tcn);
+				throw new IOException("Could not load test " + tcn, ex);
+			}
+			// tokenizers that could not be saved are chosen again
+			if (t instanceof TokenizingTest
+					&& ((TokenizingTest) t).getTokenizer() == null) {
+				if (chosen == null) {
+					chosen = chooseTokenizer();
+				}
+				((TokenizingTest) t).setTokenizer(chosen);
 			}
+			pendingTests.add(t);
 		}
 
 		// now, run tests in an order that satisfies dependencies
-		while (!pendingTests.isEmpty()) {
-			boolean progress = false;
-			for (Test candidate : pendingTests) {
-				boolean dependenciesMet = false;
-				for (String k : candidate.getRequires()) {
-					if (!hasResultsForKey(k)) {
-						log.info("Cannot execute " + candidate.getClass()
-								+ " without " + k + ": postponing");
-						dependenciesMet = false;
-						break;
-					}
-				}
-				if (dependenciesMet) {
-					log.info("Dependencies for " + candidate.getClass()
-							+ " satisfied, processing");
-					progress = true;
-					applyTest(candidate);
-					pendingTests.remove(candidate);
-				}
-			}
-			if (!progress) {
-				throw new IOException(
-						"Impossible to meet dependencies for tests");
-			}
+		List<Test> unfinished = applyTests(pendingTests);
+		if (!unfinished.isEmpty()) {
+			throw new IOException("Could not recalculate "
+					+ unfinished.size() + " saved tests, including "
+					+ unfinished.get(0).getTestKey());
 		}
 	}
 
@@ -0,0 +1,236 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.ac;
+
+import es.ucm.fdi.ac.test.NCDTest;
+import es.ucm.fdi.ac.test.RawNCDTest;
+import es.ucm.fdi.ac.test.WinnowingTest;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+
+/**
+ * A persistent store of already-analyzed submissions (for instance, those of
+ * previous years), so that new submissions can be compared against them
+ * without loading or tokenizing them again. Each entry is keyed by
+ * submission hash, and holds the submission's tokens, its compressed
+ * sizes (as calculated by NCD tests) and its winnowing fingerprints.
+ *
+ * Token streams of different languages cannot be compared, so each language
+ * should get its own corpus folder (see forLanguage). The language is also
+ * recorded in each entry, and entries of other languages are not loaded.
+ *
+ * @author mfreire
+ */
+public class Corpus {
+
+	private static final Logger log = LogManager.getLogger(Corpus.class);
+
+	private static final String ENTRY_SUFFIX = ".xml.gz";
+
+	private final File dir;
+
+	/** language of the tokens in this corpus; or null if unknown */
+	private final String language;
+
+	/**
+	 * Opens (or prepares to create) a corpus of unknown language
+	 * @param dir where entries are stored; created when the first is added
+	 */
+	public Corpus(File dir) {
+		this(dir, null);
+	}
+
+	/**
+	 * Opens (or prepares to create) a corpus
+	 * @param dir where entries are stored; created when the first is added
+	 * @param language of the tokenizer used for all entries, recorded
+	 * in each; or null if unknown
+	 */
+	public Corpus(File dir, String language) {
+		this.dir = dir;
+		this.language = language;
+	}
+
+	/**
+	 * Opens the corpus for a given language
+	 * @param root folder with one corpus folder per language
+	 * @param language name, such as "java"
+	 */
+	public static Corpus forLanguage(File root, String language) {
+		return new Corpus(new File(root, language), language);
+	}
+
+	private File entryFile(String hash) {
+		return new File(dir, hash + ENTRY_SUFFIX);
+	}
+
+	public boolean contains(Submission s) {
+		return entryFile(s.getHash()).exists();
+	}
+
+	/**
+	 * @return the number of entries in this corpus
+	 */
+	public int size() {
+		String[] names = dir.list((d, name) -> name.endsWith(ENTRY_SUFFIX));
+		return names == null ? 0 : names.length;
+	}
+
+	/**
+	 * Adds (or replaces) an entry for an already-tokenized submission
+	 * @param s to add; must have been tokenized
+	 * @param origin to store with the submission, such as "2016/june"
+	 * @throws IOException on error
+	 */
+	public void add(Submission s, String origin) throws IOException {
+		String tokens = (String) s.getData(Tokenizer.TOKEN_KEY);
+		if (tokens == null) {
+			throw new IllegalArgumentException("Submission " + s.getId()
+					+ " has not been tokenized");
+		}
+
+		Element e = new Element("entry");
+		e.setAttribute("id", s.getId());
+		e.setAttribute("hash", s.getHash());
+		e.setAttribute("origin", origin);
+		if (language != null) {
+			e.setAttribute("tokenizer", language);
+		}
+		e.addContent(new Element("tokens").setText(tokens));
+		for (Map.Entry<String, Object> d : s.getDataSnapshot().entrySet()) {
+			String key = d.getKey();
+			if (key.endsWith(NCDTest.sizeKeySuffix)
+					&& !key.endsWith(RawNCDTest.rawNcdSizeSuffix)) {
+				e.addContent(new Element("size").setAttribute("key", key)
+						.setAttribute("value", "" + d.getValue()));
+			} else if (key.startsWith(WinnowingTest.SUBJECT_FINGERPRINTS)) {
+				StringBuilder sb = new StringBuilder();
+				for (int f : (int[]) d.getValue()) {
+					sb.append(f).append(' ');
+				}
+				e.addContent(new Element("fingerprints").setAttribute("key",
+						key).setText(sb.toString().trim()));
+			}
+		}
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create corpus folder " + dir);
+		}
+		try (OutputStream os = new GZIPOutputStream(new FileOutputStream(
+				entryFile(s.getHash())))) {
+			new XMLOutputter(Format.getCompactFormat()).output(
+					new Document(e), os);
+		}
+	}
+
+	/**
+	 * Adds all tokenized submissions that are not yet part of the corpus
+	 * @param subs to add
+	 * @param origin to store with the submissions
+	 * @return the number of added submissions
+	 * @throws IOException on error
+	 */
+	public int addAll(Submission[] subs, String origin) throws IOException {
+		int added = 0;
+		for (Submission s : subs) {
+			if (!contains(s)) {
+				add(s, origin);
+				added++;
+			}
+		}
+		log.info("Added {} submissions to corpus at {}", added, dir);
+		return added;
+	}
+
+	/**
+	 * Loads all entries, as submissions that have no sources but are
+	 * already tokenized (and may already have compressed sizes and
+	 * fingerprints). Their ids are prefixed with their origin.
+	 * @return the submissions in the corpus
+	 * @throws IOException on error
+	 */
+	public ArrayList<Submission> load() throws IOException {
+		ArrayList<Submission> subs = new ArrayList<>();
+		File[] files = dir.listFiles((d, name) -> name.endsWith(ENTRY_SUFFIX));
+		if (files == null) {
+			return subs;
+		}
+		Arrays.sort(files);
+		int skipped = 0;
+		for (File f : files) {
+			Element e;
+			try (InputStream is = new GZIPInputStream(new FileInputStream(f))) {
+				e = new SAXBuilder().build(is).getRootElement();
+			} catch (Exception ex) {
+				throw new IOException("Error loading corpus entry " + f, ex);
+			}
+			String tokenizer = e.getAttributeValue("tokenizer");
+			if (language != null && tokenizer != null
+					&& !language.equals(tokenizer)) {
+				skipped++;
+				continue;
+			}
+			subs.add(toSubmission(e, f, subs.size()));
+		}
+		if (skipped > 0) {
+			log.warn("Ignored {} entries of languages other than {} in {}",
+					skipped, language, dir);
+		}
+		return subs;
+	}
+
+	private static Submission toSubmission(Element e, File f, int index) {
+		Submission s = new Submission(e.getAttributeValue("origin") + "/"
+				+ e.getAttributeValue("id"), f.getPath(), index);
+		s.setHash(e.getAttributeValue("hash"));
+		s.putData(Tokenizer.TOKEN_KEY, e.getChildText("tokens"));
+		for (Element se : e.getChildren("size")) {
+			s.putData(se.getAttributeValue("key"), Integer.valueOf(se
+					.getAttributeValue("value")));
+		}
+		for (Element fe : e.getChildren("fingerprints")) {
+			String text = fe.getTextTrim();
+			int[] fingerprints = text.isEmpty() ? new int[0] : Arrays.stream(
+					text.split(" ")).mapToInt(Integer::parseInt).toArray();
+			s.putData(fe.getAttributeValue("key"), fingerprints);
+		}
+		return s;
+	}
+}
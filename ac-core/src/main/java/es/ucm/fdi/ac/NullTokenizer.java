@@ -56,7 +56,7 @@ public class NullTokenizer implements Tokenizer {
 
 	public Element saveToXML() throws IOException {
 		Element e = new Element("tokenizer");
-		e.setAttribute("class", getClass().getSimpleName());
+		e.setAttribute("class", getClass().getName());
 		return e;
 	}
 
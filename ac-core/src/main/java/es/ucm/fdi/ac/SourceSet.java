@@ -26,11 +26,12 @@ import es.ucm.fdi.ac.extract.CompositeFilter;
 import es.ucm.fdi.ac.extract.FileTreeModel;
 import es.ucm.fdi.ac.extract.FileTreeNode;
 import es.ucm.fdi.ac.extract.Hasher;
-import es.ucm.fdi.util.FileUtils;
 import es.ucm.fdi.util.XMLSerializable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -89,7 +90,8 @@ public class SourceSet implements XMLSerializable {
 		for (FileTreeNode sourceRoot : sourceRoots) {
 			// Create node
 			Element rootElement = new Element("root");
-			rootElement.setAttribute("path", sourceRoot.toString());
+			rootElement.setAttribute("path", sourceRoot.getFile()
+					.getAbsolutePath());
 			rootElement.setAttribute("sha1", Hasher.showBytes(h.hash(
 					sourceRoot.getFile()).getSha1()));
 
@@ -119,7 +121,7 @@ public class SourceSet implements XMLSerializable {
 	private void loadFilter(Element filterElement, CompositeFilter target)
 			throws IOException {
 		target.clear();
-		target.loadFromXML(filterElement);
+		target.loadFromXML(filterElement.getChild("filter"));
 	}
 
 	public void loadFromXML(Element element) throws IOException {
@@ -129,7 +131,7 @@ public class SourceSet implements XMLSerializable {
 
 		// Load root & source filters
 		loadFilter(element.getChild("rootFilter"), rootFilter);
-		loadFilter(element.getChild("rootFilter"), sourceFilter);
+		loadFilter(element.getChild("fileFilter"), sourceFilter);
 
 		filteredTree = null;
 	}
@@ -160,18 +162,9 @@ public class SourceSet implements XMLSerializable {
 		for (TreePath tp : subTree.findWithFilter(sourceFilter, true, false)) {
 			valid.add((FileTreeNode) tp.getLastPathComponent());
 		}
-		boolean removedSomething = true;
-		while (removedSomething) {
-            removedSomething = false;
-            ArrayList<FileTreeNode> leaves = subTree.getAllTerminals();
-			for (FileTreeNode ln : leaves) {
-				if (!valid.contains(ln)) {
-					log.info("Removing bad: " + ln.getFile().getName());
-					subTree.removeNodeFromParent(ln);
-					removedSomething = true;
-				}
-			}
-		}
+		int[] removed = subTree.prune(valid);
+		log.info("Kept " + valid.size() + " files; removed " + removed[0]
+				+ " files and " + removed[1] + " folders");
 
 		filteredTree = (FileTreeNode) subTree.getRoot();
 	}
@@ -206,7 +199,10 @@ public class SourceSet implements XMLSerializable {
 				log.info("child for root " + dn.getLabel() + ": "
 						+ fn.getLabel());
 				File target = new File(dir, fn.getLabel());
-				FileUtils.copy(fn.getFile(), target);
+				try (InputStream is = fn.openStream()) {
+					Files.copy(is, target.toPath(),
+							StandardCopyOption.REPLACE_EXISTING);
+				}
 				FileTreeNode newNode = new FileTreeNode(target, newRoot);
 				newRoot.insert(newNode, newRoot.getChildCount());
 			}
@@ -23,6 +23,7 @@
 package es.ucm.fdi.ac;
 
 import es.ucm.fdi.ac.extract.Hasher;
+import es.ucm.fdi.util.FileUtils;
 import es.ucm.fdi.util.SourceFileCache;
 import es.ucm.fdi.util.XMLSerializable;
 import java.io.File;
@@ -70,7 +71,8 @@ public class Submission implements XMLSerializable {
 
 	/**
 	 * Processed source, test run results, and so on the key 'annotations' is
-	 * used to store an arraylist of annotations
+	 * used to store an arraylist of annotations. Accessed by concurrently
+	 * running tests, and therefore always synchronized.
 	 */
 	private final HashMap<String, Object> data = new HashMap<String, Object>();
 
@@ -98,6 +100,29 @@ public class Submission implements XMLSerializable {
 		sources.add(new Source(source, f.getName()));
 	}
 
+	/**
+	 * Adds a source-file, reusing charsets detected for other files under
+	 * the same root
+	 * @param f source-file to add
+	 * @param charsets remembered during the current load
+	 * @param root that f belongs to
+	 */
+	public void addSource(File f, FileUtils.CharsetCache charsets, File root) {
+		String source = SourceFileCache.getSource(f, charsets, root);
+		sources.add(new Source(source, f.getName()));
+	}
+
+	/**
+	 * Sets the hash of a submission whose sources are not available (such
+	 * as one loaded from a Corpus), so that it can still be identified.
+	 * Adding sources afterwards recalculates it.
+	 * @param hash as returned by getHash() when sources were available
+	 */
+	void setHash(String hash) {
+		this.hash = hash;
+		this.hashUpToDate = true;
+	}
+
 	public String getHash() {
 		if (!hashUpToDate) {
 			StringBuilder sb = new StringBuilder();
@@ -152,11 +177,24 @@ public class Submission implements XMLSerializable {
 	}
 
 	public Object getData(String key) {
-		return data.get(key);
+		synchronized (data) {
+			return data.get(key);
+		}
+	}
+
+	/**
+	 * @return a copy of all data, taken while no test can modify it
+	 */
+	public HashMap<String, Object> getDataSnapshot() {
+		synchronized (data) {
+			return new HashMap<>(data);
+		}
 	}
 
 	public void putData(String key, Object value) {
-		data.put(key, value);
+		synchronized (data) {
+			data.put(key, value);
+		}
 	}
 
 	@Override
@@ -0,0 +1,145 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.ac;
+
+import es.ucm.fdi.ac.extract.FileTreeNode;
+import es.ucm.fdi.ac.test.TokenizingTest;
+import java.util.HashSet;
+import java.util.StringTokenizer;
+
+/**
+ * Base code, provided to all students, that should not count towards
+ * similarity. Every run of k tokens of the template is indexed; tokens in
+ * submissions that are covered by any such run are then removed, so that
+ * tests only see what students actually wrote.
+ *
+ * @author mfreire
+ */
+public class Template {
+
+	/**
+	 * shorter runs are too common to be attributed to the template: tokens 
+	 * only describe token types, and short runs of them (say, a getter) 
+	 * appear everywhere
+	 */
+	public static final int DEFAULT_K = 30;
+
+	private final int k;
+	private final HashSet<Long> kgrams = new HashSet<>();
+
+	/**
+	 * Creates a template from its tokens
+	 * @param tokens as generated by a tokenizer
+	 * @param k length of the runs to look for, in tokens
+	 */
+	public Template(String tokens, int k) {
+		this.k = k;
+		long[] hashes = hashes(split(tokens));
+		for (long h : hashes) {
+			kgrams.add(h);
+		}
+	}
+
+	/**
+	 * Creates a template from all files in a source set
+	 * @param sources with all template files
+	 * @param tokenizer to use; must be the same used for submissions
+	 */
+	public static Template fromSources(SourceSet sources, Tokenizer tokenizer) {
+		FileTreeNode root = sources.getFilteredTree();
+		Submission s = new Submission("template", root.getPath(), -1);
+		for (FileTreeNode dn : root.getChildren()) {
+			for (FileTreeNode fn : dn.getLeafChildren()) {
+				s.addSource(fn.getFile());
+			}
+		}
+		return new Template(TokenizingTest.tokenize(s, tokenizer), DEFAULT_K);
+	}
+
+	private static String[] split(String tokens) {
+		StringTokenizer st = new StringTokenizer(tokens, "\n\r\t ");
+		String[] split = new String[st.countTokens()];
+		for (int i = 0; i < split.length; i++) {
+			split[i] = st.nextToken();
+		}
+		return split;
+	}
+
+	/**
+	 * @return a rolling hash for each run of k tokens
+	 */
+	private long[] hashes(String[] tokens) {
+		if (tokens.length < k) {
+			return new long[0];
+		}
+		final long base = 1000000007L;
+		long top = 1;
+		for (int i = 1; i < k; i++) {
+			top *= base;
+		}
+		long[] hashes = new long[tokens.length - k + 1];
+		long h = 0;
+		for (int i = 0; i < tokens.length; i++) {
+			if (i >= k) {
+				h -= tokens[i - k].hashCode() * top;
+			}
+			h = h * base + tokens[i].hashCode();
+			if (i >= k - 1) {
+				hashes[i - k + 1] = h;
+			}
+		}
+		return hashes;
+	}
+
+	/**
+	 * Removes all tokens that are part of runs also found in the template
+	 * @param tokens to filter
+	 * @return the remaining tokens, space-separated
+	 */
+	public String strip(String tokens) {
+		String[] split = split(tokens);
+		long[] hashes = hashes(split);
+		boolean[] covered = new boolean[split.length];
+		for (int i = 0; i < hashes.length; i++) {
+			if (kgrams.contains(hashes[i])) {
+				for (int j = i; j < i + k; j++) {
+					covered[j] = true;
+				}
+			}
+		}
+		StringBuilder sb = new StringBuilder(tokens.length());
+		for (int i = 0; i < split.length; i++) {
+			if (!covered[i]) {
+				sb.append(split[i]).append(' ');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return true if no runs of tokens could be indexed
+	 */
+	public boolean isEmpty() {
+		return kgrams.isEmpty();
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.ac;
+
+import es.ucm.fdi.ac.test.Test;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+/**
+ * Runs several tests on an analysis, respecting their dependencies. A test
+ * depends on any other test whose key (or provided keys) it requires;
+ * tests without pending dependencies are run concurrently, and dependent
+ * tests start as soon as all their inputs are ready.
+ *
+ * @author mfreire
+ */
+public class TestScheduler {
+
+	private static final Logger log = LogManager.getLogger(TestScheduler.class);
+
+	private final Analysis ac;
+
+	/** test to tests that must be finished before it starts */
+	private final LinkedHashMap<Test, LinkedHashSet<Test>> dependencies = new LinkedHashMap<>();
+
+	public TestScheduler(Analysis ac) {
+		this.ac = ac;
+	}
+
+	/**
+	 * Builds the dependency graph for a set of tests. Required keys must be
+	 * either provided by another of the tests, or already available in
+	 * the analysis.
+	 * @param tests to schedule
+	 * @return the tests, in an order where no test precedes its dependencies
+	 * @throws IOException if a dependency cannot be met, or is circular
+	 */
+	public List<Test> schedule(Collection<Test> tests) throws IOException {
+		HashMap<String, Test> providers = new HashMap<>();
+		for (Test t : tests) {
+			providers.put(t.getTestKey(), t);
+			for (String k : t.getProvides()) {
+				providers.put(k, t);
+			}
+		}
+
+		dependencies.clear();
+		for (Test t : tests) {
+			LinkedHashSet<Test> ds = new LinkedHashSet<>();
+			for (String k : t.getRequires()) {
+				Test provider = providers.get(k);
+				if (provider != null && provider != t) {
+					ds.add(provider);
+				} else if (!ac.hasResultsForKey(k)) {
+					throw new IOException("Impossible to meet dependencies for "
+							+ t.getTestKey() + ": nothing provides " + k);
+				}
+			}
+			dependencies.put(t, ds);
+		}
+
+		// Kahn's algorithm: repeatedly take tests with no pending dependencies
+		HashMap<Test, Integer> pending = new HashMap<>();
+		HashMap<Test, ArrayList<Test>> dependents = new HashMap<>();
+		ArrayList<Test> order = new ArrayList<>();
+		for (Map.Entry<Test, LinkedHashSet<Test>> e : dependencies.entrySet()) {
+			pending.put(e.getKey(), e.getValue().size());
+			for (Test d : e.getValue()) {
+				dependents.computeIfAbsent(d, k -> new ArrayList<>()).add(
+						e.getKey());
+			}
+			if (e.getValue().isEmpty()) {
+				order.add(e.getKey());
+			}
+		}
+		for (int i = 0; i < order.size(); i++) {
+			for (Test d : dependents.getOrDefault(order.get(i),
+					new ArrayList<>())) {
+				if (pending.merge(d, -1, Integer::sum) == 0) {
+					order.add(d);
+				}
+			}
+		}
+		if (order.size() < dependencies.size()) {
+			throw new IOException("Circular dependencies between tests");
+		}
+		return order;
+	}
+
+	/**
+	 * Prepares and applies all tests, concurrently where dependencies allow.
+	 * Returns once all have finished. If a test fails or is cancelled,
+	 * tests that depend on it are not run.
+	 * @param tests to run
+	 * @return the tests that did not finish: those that were cancelled 
+	 * (including those whose workers failed, which cancel their test), and 
+	 * those that depend on them; in scheduling order. Empty if all finished.
+	 * @throws IOException if dependencies cannot be met
+	 * @throws RuntimeException thrown by a test, if any; other tests are 
+	 * allowed to finish first
+	 */
+	public List<Test> run(Collection<Test> tests) throws IOException {
+		List<Test> order = schedule(tests);
+		ArrayList<Test> unfinished = new ArrayList<>();
+		if (order.isEmpty()) {
+			return unfinished;
+		}
+
+		int nThreads = Math.min(order.size(), Runtime.getRuntime()
+				.availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		HashMap<Test, CompletableFuture<Void>> running = new HashMap<>();
+		try {
+			for (Test t : order) {
+				CompletableFuture<?>[] inputs = dependencies.get(t).stream()
+						.map(running::get).toArray(CompletableFuture[]::new);
+				running.put(t, CompletableFuture.allOf(inputs).thenRunAsync(
+						() -> runOne(t), executor));
+			}
+			CompletableFuture.allOf(
+					running.values().toArray(new CompletableFuture[0])).join();
+		} catch (CompletionException ce) {
+			if (ce.getCause() instanceof RuntimeException
+					&& !(ce.getCause() instanceof CancellationException)) {
+				throw (RuntimeException) ce.getCause();
+			} else if (!(ce.getCause() instanceof CancellationException)) {
+				throw ce;
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		for (Test t : order) {
+			if (running.get(t).isCompletedExceptionally()) {
+				unfinished.add(t);
+			}
+		}
+		if (!unfinished.isEmpty()) {
+			log.warn("{} of {} tests did not finish, starting with {}",
+					unfinished.size(), order.size(), unfinished.get(0)
+							.getTestKey());
+		}
+		return unfinished;
+	}
+
+	private void runOne(Test t) {
+		log.info("Dependencies for " + t.getTestKey() + " satisfied, processing");
+		ThreadContext.push("T-" + t.getTestKey());
+		try {
+			ac.prepareTest(t);
+			ac.applyTest(t);
+		} finally {
+			ThreadContext.pop();
+		}
+		if (t.isCancelled()) {
+			throw new CancellationException(t.getTestKey() + " was cancelled");
+		}
+	}
+}
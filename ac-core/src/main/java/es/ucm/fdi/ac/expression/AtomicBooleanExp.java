@@ -129,7 +129,7 @@ public class AtomicBooleanExp implements FilterExpression {
 
 		if (parent != null) {
 			int i = parent.getChildren().indexOf(this);
-			((CompositeFilter) parent.getFilter()).getFilters().set(i, filter);
+			((CompositeFilter) parent.getFilter()).setFilter(i, filter);
 		}
 	}
 }
@@ -0,0 +1,218 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.ac.extract;
+
+import es.ucm.fdi.util.FileUtils;
+import es.ucm.fdi.util.archive.ArchiveFormat;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A node for an archive, or for a folder or file within one. Archives are
+ * listed when first browsed (for zips, only their central directory is 
+ * read), and file contents are read on demand; nothing is expanded to 
+ * disk, except archives nested within archives, which are extracted (on 
+ * their own) when first browsed.
+ * 
+ * The file of a node within an archive is a 'virtual pathname' of the 
+ * form archive/path/within/archive, as understood by SourceFileCache.
+ *
+ * @author mfreire
+ */
+public class ArchiveTreeNode extends FileTreeNode {
+
+	private static final Logger log = LogManager
+			.getLogger(ArchiveTreeNode.class);
+
+	/** sorts entry names case-insensitively, but consistently */
+	private static final Comparator<String> entryOrder = String.CASE_INSENSITIVE_ORDER
+			.thenComparing(Comparator.naturalOrder());
+
+	/** archive that contains this node; null for nested archives not yet extracted */
+	private File archive;
+	/** path of this node within 'archive'; empty for archive roots */
+	private final String entry;
+	/** label to display */
+	private final String label;
+	/** true for files within archives (and false for folders and archives) */
+	private final boolean file;
+	/** paths of all files below this node, relative to it; null if not listed yet */
+	private List<String> below;
+	/** for nested archives, the archive that contains them; null otherwise */
+	private final File container;
+	/** for nested archives, their path within the container */
+	private final String containerEntry;
+
+	/**
+	 * Creates a node for an archive in the filesystem
+	 * @param archive to browse
+	 * @param parent of the new node
+	 */
+	public ArchiveTreeNode(File archive, FileTreeNode parent) {
+		this(archive, parent, archive, "", archive.getName(), false, null,
+				null, null);
+	}
+
+	private ArchiveTreeNode(File virtual, FileTreeNode parent, File archive,
+			String entry, String label, boolean file, List<String> below,
+			File container, String containerEntry) {
+		super(virtual, parent);
+		this.archive = archive;
+		this.entry = entry;
+		this.label = label;
+		this.file = file;
+		this.below = below;
+		this.container = container;
+		this.containerEntry = containerEntry;
+	}
+
+	@Override
+	public FileTreeNode copy() {
+		return new ArchiveTreeNode(getFile(), null, archive, entry, label,
+				file, below, container, containerEntry);
+	}
+
+	@Override
+	public String getLabel() {
+		return label;
+	}
+
+	@Override
+	public boolean isDirectory() {
+		return !file;
+	}
+
+	@Override
+	public boolean isFile() {
+		return file;
+	}
+
+	/**
+	 * Archives that have not been listed yet are assumed to have children,
+	 * so that displaying them does not require listing them.
+	 */
+	@Override
+	public boolean isLeaf() {
+		return file || (below != null && super.isLeaf());
+	}
+
+	@Override
+	public InputStream openStream() throws IOException {
+		if (!file) {
+			throw new IOException("Not a file: " + getPath());
+		}
+		byte[] bytes = FileUtils.getArchiverFor(archive.getName()).readOne(
+				archive, entry);
+		if (bytes == null) {
+			throw new IOException("Entry " + entry + " not found in "
+					+ archive.getAbsolutePath());
+		}
+		return new ByteArrayInputStream(bytes);
+	}
+
+	@Override
+	protected ArrayList<FileTreeNode> listChildren() {
+		ArrayList<FileTreeNode> list = new ArrayList<>();
+		if (file) {
+			return list;
+		}
+		if (below == null) {
+			try {
+				if (archive == null) {
+					archive = extractNested();
+				}
+				ArchiveFormat format = FileUtils.getArchiverFor(archive
+						.getName());
+				below = format.list(archive);
+				log.debug("Listed " + below.size() + " files in " + getPath());
+			} catch (IOException | RuntimeException e) {
+				log.warn("error listing archive " + getPath(), e);
+				below = Collections.emptyList();
+				return list;
+			}
+		}
+
+		// group by first path element
+		TreeMap<String, List<String>> folders = new TreeMap<>(entryOrder);
+		TreeMap<String, String> files = new TreeMap<>(entryOrder);
+		for (String path : below) {
+			int slash = path.indexOf('/');
+			if (slash < 0) {
+				files.put(path, path);
+			} else {
+				folders.computeIfAbsent(path.substring(0, slash),
+						k -> new ArrayList<>()).add(path.substring(slash + 1));
+			}
+		}
+
+		String prefix = entry.isEmpty() ? "" : entry + "/";
+		for (Map.Entry<String, List<String>> e : folders.entrySet()) {
+			String path = prefix + e.getKey();
+			list.add(new ArchiveTreeNode(new File(archive, path), this,
+					archive, path, e.getKey(), false, e.getValue(), null,
+					null));
+		}
+		for (String name : files.keySet()) {
+			String path = prefix + name;
+			if (FileUtils.getArchiverFor(name) != null) {
+				// nested archive: will be extracted when browsed
+				list.add(new ArchiveTreeNode(new File(archive, path), this,
+						null, "", name, false, null, archive, path));
+			} else {
+				list.add(new ArchiveTreeNode(new File(archive, path), this,
+						archive, path, name, true, Collections.emptyList(),
+						null, null));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Extracts this nested archive, on its own, into a temporary file
+	 * @return the extracted archive
+	 */
+	private File extractNested() throws IOException {
+		File temp = Files.createTempFile("ac-",
+				"." + FileUtils.getExtension(containerEntry)).toFile();
+		temp.deleteOnExit();
+		if (!FileUtils.getArchiverFor(container.getName()).extractOne(
+				container, containerEntry, temp)) {
+			throw new IOException("Could not extract " + containerEntry
+					+ " from " + container.getAbsolutePath());
+		}
+		log.info("Nested archive " + getPath() + " extracted to " + temp);
+		return temp;
+	}
+}
@@ -25,6 +25,8 @@ package es.ucm.fdi.ac.extract;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import org.jdom2.Element;
 
@@ -42,6 +44,9 @@ public class CompositeFilter extends FileTreeFilter {
 	private final ArrayList<FileTreeFilter> filters = new ArrayList<>();
 	private Operator op = Operator.And;
 
+	/** filters, cheapest first; rebuilt whenever the filter list changes */
+	private FileTreeFilter[] plan;
+
 	public void saveInner(Element e) throws IOException {
 		e.setAttribute("operation", op.toString());
 
@@ -54,6 +59,7 @@ public class CompositeFilter extends FileTreeFilter {
 	public void loadFromXML(Element filterElement) throws IOException {
 		setOp(Operator.valueOf(filterElement.getAttributeValue("operation")));
 		filters.clear();
+		plan = null;
 
 		List<Element> children = filterElement.getChildren();
 		for (Element e : children) {
@@ -79,22 +85,63 @@ public class CompositeFilter extends FileTreeFilter {
 
 	public void clear() {
 		filters.clear();
+		plan = null;
 		op = Operator.And;
 	}
 
 	public void removeFilter(FileTreeFilter f) {
 		filters.remove(f);
+		plan = null;
 	}
 
 	public void addFilter(FileTreeFilter f) {
 		filters.add(f);
+		plan = null;
+	}
+
+	public void setFilter(int i, FileTreeFilter f) {
+		filters.set(i, f);
+		plan = null;
 	}
 
+	/**
+	 * @return the list of child filters. Use addFilter, removeFilter and 
+	 * setFilter to change it.
+	 */
 	public ArrayList<FileTreeFilter> getFilters() {
 		return filters;
 	}
 
+	/**
+	 * The cost of a composite is that of evaluating all its children.
+	 */
+	@Override
+	public int getCost() {
+		int cost = 0;
+		for (FileTreeFilter ff : filters) {
+			cost += ff.getCost();
+		}
+		return cost;
+	}
+
+	/**
+	 * Returns the evaluation plan: child filters sorted by increasing cost. 
+	 * Since all operators short-circuit, filters that only look at names
+	 * frequently spare the need to evaluate filters that read contents.
+	 */
+	private FileTreeFilter[] getPlan() {
+		FileTreeFilter[] p = plan;
+		if (p == null || p.length != filters.size()) {
+			p = filters.toArray(new FileTreeFilter[filters.size()]);
+			// stable: filters of equal cost keep their relative order
+			Arrays.sort(p, Comparator.comparingInt(FileTreeFilter::getCost));
+			plan = p;
+		}
+		return p;
+	}
+
 	public boolean accept(FileTreeNode fn) {
+		FileTreeFilter[] filters = getPlan();
 		switch (op) {
 		case Nor:
 			for (FileTreeFilter ff : filters) {
@@ -125,13 +172,13 @@ public class CompositeFilter extends FileTreeFilter {
 		case Nor:
 			return !filters.get(0).accept(f);
 		case Or:
-			for (FileTreeFilter ff : filters) {
+			for (FileTreeFilter ff : getPlan()) {
 				if (ff.accept(f))
 					return true;
 			}
 			return false;
 		case And:
-			for (FileTreeFilter ff : filters) {
+			for (FileTreeFilter ff : getPlan()) {
 				if (!ff.accept(f))
 					return false;
 			}
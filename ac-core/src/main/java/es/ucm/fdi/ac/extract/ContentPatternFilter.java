@@ -24,17 +24,31 @@ package es.ucm.fdi.ac.extract;
 
 import es.ucm.fdi.util.SourceFileCache;
 import java.io.File;
+import java.util.Arrays;
+import java.util.regex.Pattern;
 
 /**
  * Looks at file content. For your convenience, 
- * matching is whitespace-insensitive.
+ * matching is whitespace-insensitive: any run of whitespace in the
+ * source is seen by the pattern as a single space.
  * 
- * This is a slow filter.
+ * This is a slow filter. To make it somewhat less slow, the whitespace is
+ * collapsed on the fly (instead of building a normalized copy of each
+ * source), and patterns of the form ".*x.*" are searched for as "x".
+ * Filters may be shared by several threads.
  * 
  * @author mfreire
  */
 public class ContentPatternFilter extends PatternFilter {
 
+	private static final String ANY = ".*";
+
+	/** 
+	 * compiled form of the current pattern; replaced as a whole, so that
+	 * concurrent calls to accept never see a half-updated one 
+	 */
+	private volatile Matching matching;
+
 	public ContentPatternFilter(String pattern) {
 		super(pattern);
 	}
@@ -42,6 +56,44 @@ public class ContentPatternFilter extends PatternFilter {
 	public ContentPatternFilter() {
 	}
 
+	/**
+	 * A compiled pattern, and how it must be applied
+	 */
+	private static class Matching {
+		private final String source;
+		private final Pattern compiled;
+		/** true if the compiled pattern must only be found, not fully matched */
+		private final boolean findOnly;
+
+		private Matching(String pattern) {
+			source = pattern;
+			boolean unwrapped = false;
+			if (pattern.length() >= 2 * ANY.length() && pattern.startsWith(ANY)
+					&& pattern.endsWith(ANY) && !pattern.endsWith("\\" + ANY)) {
+				String inner = pattern.substring(ANY.length(), pattern.length()
+						- ANY.length());
+				// alternations and anchors would change meaning once unwrapped
+				if (inner.indexOf('|') < 0 && inner.indexOf('^') < 0
+						&& inner.indexOf('$') < 0) {
+					unwrapped = true;
+					pattern = inner;
+				}
+			}
+			findOnly = unwrapped;
+			compiled = Pattern.compile(pattern);
+		}
+
+		private boolean accept(CharSequence text) {
+			return findOnly ? compiled.matcher(text).find() : compiled.matcher(
+					text).matches();
+		}
+	}
+
+	@Override
+	public int getCost() {
+		return CONTENT_COST;
+	}
+
 	public boolean accept(FileTreeNode ftn) {
 		return accept(ftn.getFile());
 	}
@@ -54,11 +106,128 @@ public class ContentPatternFilter extends PatternFilter {
 			return false;
 		}
 
-		return source.replaceAll("\\p{Space}+", " ").matches(pattern);
+		Matching m = matching;
+		if (m == null || !m.source.equals(pattern)) {
+			m = new Matching(pattern);
+			matching = m;
+		}
+		return m.accept(new CollapsedSpaceSequence(source));
 	}
 
 	@Override
 	public String toString() {
 		return "has='" + pattern + "'";
 	}
+
+	/**
+	 * A read-only view of a CharSequence where each run of 
+	 * whitespace (as in <code>\p{Space}</code>) appears as a single space.
+	 * The view offset of each collapsed run (and the number of source 
+	 * characters skipped up to its end) is recorded, so that any character 
+	 * can be found with a binary search; a cursor into these runs makes 
+	 * the short forward and backward steps taken by regex matchers 
+	 * (including backtracking) O(1).
+	 */
+	static class CollapsedSpaceSequence implements CharSequence {
+
+		/** beyond this distance, the cursor is repositioned by binary search */
+		private static final int NEAR = 64;
+
+		private final CharSequence source;
+		private final int length;
+		/** view offsets of the spaces that stand for 2+ source characters */
+		private final int[] runs;
+		/** source characters skipped by runs[0..k], inclusive */
+		private final int[] skipped;
+		private final int runCount;
+
+		/** number of runs before the last index read */
+		private int cursor;
+		private int lastIndex;
+
+		CollapsedSpaceSequence(CharSequence source) {
+			this.source = source;
+			int[] r = new int[16];
+			int[] k = new int[16];
+			int n = 0;
+			int view = 0;
+			int total = 0;
+			for (int i = 0; i < source.length(); view++) {
+				int j = next(i);
+				if (j - i > 1 && isSpace(source.charAt(i))) {
+					if (n == r.length) {
+						r = Arrays.copyOf(r, n * 2);
+						k = Arrays.copyOf(k, n * 2);
+					}
+					total += j - i - 1;
+					r[n] = view;
+					k[n] = total;
+					n++;
+				}
+				i = j;
+			}
+			length = view;
+			runs = r;
+			skipped = k;
+			runCount = n;
+		}
+
+		private static boolean isSpace(char c) {
+			return c == ' ' || (c >= '\t' && c <= '\r');
+		}
+
+		/**
+		 * @return the source offset of the view character after the one
+		 * that starts at source offset i
+		 */
+		private int next(int i) {
+			if (!isSpace(source.charAt(i))) {
+				return i + 1;
+			}
+			do {
+				i++;
+			} while (i < source.length() && isSpace(source.charAt(i)));
+			return i;
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public char charAt(int index) {
+			if (index < 0 || index >= length) {
+				throw new IndexOutOfBoundsException("" + index);
+			}
+			// cursor = number of runs strictly before 'index'
+			int k = cursor;
+			if (Math.abs(index - lastIndex) > NEAR) {
+				k = Arrays.binarySearch(runs, 0, runCount, index);
+				k = (k < 0) ? -k - 1 : k;
+			} else {
+				while (k < runCount && runs[k] < index) {
+					k++;
+				}
+				while (k > 0 && runs[k - 1] >= index) {
+					k--;
+				}
+			}
+			cursor = k;
+			lastIndex = index;
+			char c = source.charAt(index + (k == 0 ? 0 : skipped[k - 1]));
+			return isSpace(c) ? ' ' : c;
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			StringBuilder sb = new StringBuilder(end - start);
+			for (int i = start; i < end; i++) {
+				sb.append(charAt(i));
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public String toString() {
+			return subSequence(0, length).toString();
+		}
+	}
 }
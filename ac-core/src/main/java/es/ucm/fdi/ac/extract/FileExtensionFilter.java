@@ -40,11 +40,13 @@ public class FileExtensionFilter extends PatternFilter {
 	}
 
 	public boolean accept(FileTreeNode ftn) {
-		return FileUtils.getExtension(ftn.getLabel()).matches(pattern);
+		return getCompiledPattern().matcher(
+				FileUtils.getExtension(ftn.getLabel())).matches();
 	}
 
 	public boolean accept(File f) {
-		return FileUtils.getExtension(f.getName()).matches(pattern);
+		return getCompiledPattern()
+				.matcher(FileUtils.getExtension(f.getName())).matches();
 	}
 
 	@Override
@@ -38,11 +38,11 @@ public class FileNameFilter extends PatternFilter {
 	}
 
 	public boolean accept(FileTreeNode ftn) {
-		return ftn.getLabel().matches(pattern);
+		return getCompiledPattern().matcher(ftn.getLabel()).matches();
 	}
 
 	public boolean accept(File f) {
-		return f.getName().matches(pattern);
+		return getCompiledPattern().matcher(f.getName()).matches();
 	}
 
 	@Override
@@ -35,6 +35,13 @@ import org.jdom2.Element;
  */
 public abstract class FileTreeFilter implements XMLSerializable, FileFilter {
 
+	/** cost of a filter that only looks at names or paths */
+	public static final int NAME_COST = 1;
+	/** cost of a filter that must query the file-system */
+	public static final int FILE_COST = 10;
+	/** cost of a filter that must read file contents */
+	public static final int CONTENT_COST = 1000;
+
 	/**
 	 * Tests whether or not the specified node should be accepted
 	 *
@@ -44,6 +51,17 @@ public abstract class FileTreeFilter implements XMLSerializable, FileFilter {
 	 */
 	public abstract boolean accept(FileTreeNode node);
 
+	/**
+	 * Estimates how expensive it is to evaluate this filter. Composite
+	 * filters use this to evaluate cheap filters first, so that expensive
+	 * ones can often be skipped altogether.
+	 *
+	 * @return a relative cost, such as NAME_COST, FILE_COST or CONTENT_COST
+	 */
+	public int getCost() {
+		return NAME_COST;
+	}
+
 	public Element saveToXML() throws IOException {
 		Element filterElement = new Element("filter");
 		filterElement.setAttribute("class", this.getClass().getName());
@@ -24,6 +24,7 @@ package es.ucm.fdi.ac.extract;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Set;
 import java.util.Stack;
 
 import javax.swing.tree.DefaultTreeModel;
@@ -32,8 +33,6 @@ import javax.swing.tree.TreePath;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import es.ucm.fdi.util.FileUtils;
-
 /**
  * A tree-model that is built upon a filesystem, but not supported by it
  * (allowing removes that are not echoed to the filesystem).
@@ -62,8 +61,7 @@ public class FileTreeModel extends DefaultTreeModel {
 	public TreePath addSource(File f) {
 		try {
 			log.info("Adding source: " + f);
-			FileTreeNode n = new FileTreeNode(f, root, FileUtils
-					.canUncompressPath(f));
+			FileTreeNode n = FileTreeNode.forFile(f, root);
 			insertNodeInto(n, root, findIndexFor(n, root));
 			TreePath p = new TreePath(new Object[] { root, n });
 			log.info("Resulting path: " + p);
@@ -81,7 +79,7 @@ public class FileTreeModel extends DefaultTreeModel {
 	 * @return
 	 */
 	public TreePath addSource(FileTreeNode fn) {
-		FileTreeNode n = new FileTreeNode(fn);
+		FileTreeNode n = fn.copy();
 		insertNodeInto(n, root, findIndexFor(n, root));
 		n.setParent(root);
 		TreePath p = new TreePath(new Object[] { root, n });
@@ -161,6 +159,45 @@ public class FileTreeModel extends DefaultTreeModel {
 		s.pop();
 	}
 
+	/**
+	 * Removes all terminal nodes that are not in a set of valid nodes, and
+	 * also all nodes that are left childless as a consequence. Uses a single
+	 * post-order traversal; the root itself is never removed.
+	 * @param valid terminals that must be kept
+	 * @return the number of removed terminals and non-terminals, in that 
+	 * order
+	 */
+	public int[] prune(Set<FileTreeNode> valid) {
+		int[] removed = new int[2];
+		root.removeChildrenIf(c -> pruneInternal(c, valid, removed));
+		if (removed[0] + removed[1] > 0) {
+			reload();
+		}
+		return removed;
+	}
+
+	/**
+	 * Prunes below a node
+	 * @return true if the node itself should be removed
+	 */
+	private static boolean pruneInternal(FileTreeNode n,
+			Set<FileTreeNode> valid, int[] removed) {
+		boolean terminal = n.isLeaf();
+		if (!terminal) {
+			n.removeChildrenIf(c -> pruneInternal(c, valid, removed));
+		}
+		if (!n.isLeaf() || valid.contains(n)) {
+			return false;
+		}
+		if (terminal) {
+			log.debug("Removing bad: " + n.getFile().getName());
+			removed[0]++;
+		} else {
+			removed[1]++;
+		}
+		return true;
+	}
+
 	/**
 	 * Returns a list with all terminal nodes
 	 */
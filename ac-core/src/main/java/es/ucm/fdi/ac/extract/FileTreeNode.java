@@ -23,17 +23,17 @@
 package es.ucm.fdi.ac.extract;
 
 import es.ucm.fdi.util.FileUtils;
-import org.apache.logging.log4j.Logger;
-import org.apache.logging.log4j.LogManager;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.function.Predicate;
 import javax.swing.tree.MutableTreeNode;
 import javax.swing.tree.TreeNode;
 
@@ -44,12 +44,8 @@ import javax.swing.tree.TreeNode;
  */
 public class FileTreeNode implements MutableTreeNode, Comparable<FileTreeNode> {
 
-	private static final Logger log = LogManager.getLogger(FileTreeNode.class);
-
 	/** backing file */
 	private File f;
-	/** original file, if any; only used when compressed, where f points to uncompressed version */
-	private File original;
 	/** hashcode for integrity verification purposes */
 	private byte[] sha1;
 	/** parent */
@@ -63,7 +59,6 @@ public class FileTreeNode implements MutableTreeNode, Comparable<FileTreeNode> {
 	 */
 	public FileTreeNode(FileTreeNode original) {
 		this(original.getFile(), null);
-		this.original = original.original;
 		if (original.getChildCount() != 0) {
 			for (FileTreeNode c : original.getChildren()) {
 				FileTreeNode cc = new FileTreeNode(c);
@@ -72,17 +67,13 @@ public class FileTreeNode implements MutableTreeNode, Comparable<FileTreeNode> {
 		}
 	}
 
-	public FileTreeNode(File source, FileTreeNode parent) {
-		this(source, parent, false);
-	}
-
 	/**
-	 * Creates a new FileTreeNode to wrap a single file. Adds a single level.
+	 * Creates a new FileTreeNode to wrap a single file. Children are listed
+	 * when first needed.
 	 * @param source file to wrap
 	 * @param parent of the new node
-	 * @param isCompressed true if must uncompress to access
 	 */
-	public FileTreeNode(File source, FileTreeNode parent, boolean isCompressed) {
+	public FileTreeNode(File source, FileTreeNode parent) {
 		this.f = source;
 		this.p = parent;
 		children = null;
@@ -90,32 +81,32 @@ public class FileTreeNode implements MutableTreeNode, Comparable<FileTreeNode> {
 		if (f == null) {
 			children = new ArrayList<>();
 		}
+	}
 
-		if (isCompressed) {
-			log.info("Adding compressed file: " + source);
-			if (!FileUtils.canUncompressPath(f)) {
-				throw new IllegalArgumentException(
-						"Cannot list archive: unrecognized format");
-			}
-            try {
-                File temp = Files.createTempDirectory("ac-temp").toFile();
-                temp.deleteOnExit();
-                FileUtils.getArchiverFor(f.getPath()).expand(f, temp);
-                this.original = f;
-                this.f = temp;
-                log.info("Files for " + original.getPath() + " now at " + f.getPath());
-            } catch (IOException ioe) {
-                log.warn("error uncompressing bundled file for " + f, ioe);
-            }
+	/**
+	 * Creates a node for a file, folder or archive. Archives are browsed 
+	 * in place, via an ArchiveTreeNode, instead of being expanded.
+	 * @param source file to wrap
+	 * @param parent of the new node
+	 * @return the new node
+	 */
+	public static FileTreeNode forFile(File source, FileTreeNode parent) {
+		if (source.isFile() && FileUtils.canUncompressPath(source)) {
+			return new ArchiveTreeNode(source, parent);
 		}
+		return new FileTreeNode(source, parent);
+	}
+
+	/**
+	 * Returns a copy of this node, without a parent, suitable for adding
+	 * into another tree.
+	 */
+	public FileTreeNode copy() {
+		return new FileTreeNode(this);
 	}
 
 	public String getLabel() {
-		if (original == null) {
-			return f == null ? "invisible-root" : f.getName();
-		} else {
-			return original.getName();
-		}
+		return f == null ? "invisible-root" : f.getName();
 	}
 
 	public byte[] getSha1() {
@@ -134,100 +125,53 @@ public class FileTreeNode implements MutableTreeNode, Comparable<FileTreeNode> {
 
 	private void getLeafChildren(ArrayList<FileTreeNode> al) {
 		refresh();
-		if (getFile().isDirectory()) {
+		if (isDirectory()) {
 			for (FileTreeNode cn : getChildren()) {
 				cn.getLeafChildren(al);
 			}
 		} else {
-			if (getFile().exists()) {
+			if (isFile()) {
 				al.add(this);
 			}
 		}
 	}
 
-	private static class FileNameComparator implements Comparator<String> {
-		public int compare(String s1, String s2) {
-			String name1 = s1.substring(s1.lastIndexOf("/") + 1);
-			String name2 = s2.substring(s2.lastIndexOf("/") + 1);
-			String ext1 = name1.substring(name1.lastIndexOf(".") + 1)
-					.toLowerCase();
-			String ext2 = name2.substring(name2.lastIndexOf(".") + 1)
-					.toLowerCase();
-
-			int c1 = ext1.compareTo(ext2);
-			return (c1 == 0) ? name1.compareTo(name2) : c1;
-		}
-	}
-
 	/**
 	 * Returns a label-based path, instead of a real path.
 	 * @return a label-based path which gives the impression of opening archives as folders, when they are
-	 * actually uncompressed in temp folders that get stitched into the tree.
+	 * actually browsed in place, and their files read from within the archive.
 	 */
 	public String getPath() {
 		return (f == null) ? "" : getParent() == null ? "" + getLabel()
 				: ((FileTreeNode) getParent()).getPath() + "/" + getLabel();
 	}
 
+	public File getFile() {
+		return f;
+	}
+
 	/**
-	 * Returns the FileTreeNode that is a direct ancestor of the passed-in path.
-	 * This can be 'this' (if no additional path-elements found in the path) or a few intermediate files (if not)
-	 * @param path
-	 * @return
+	 * @return true if this node can contain other nodes (a folder, or 
+	 * something that is browsed as a folder)
 	 */
-	private FileTreeNode getOrCreateAncestor(String path) {
-        String parentPath = getPath();
-        if ( ! path.startsWith(parentPath)) {
-            throw new IllegalArgumentException("Expected " + path + " to start with " + parentPath);
-        }
-        String newPath = path.substring(parentPath.length()+1);
-        if ( ! newPath.contains("/")) {
-            return this; // direct descendant
-        } else {
-            String newPathStart = newPath.substring(0, newPath.indexOf("/"));
-            String targetPath = parentPath.isEmpty() ? newPathStart : parentPath + "/" + newPathStart;
-            for (int i=0; i<getChildCount(); i++) {
-                FileTreeNode child = (FileTreeNode)getChildAt(i);
-                if (child.getPath().equals(targetPath)) {
-                    return child.getOrCreateAncestor(path);
-                }
-            }
-            FileTreeNode intermediateNode = new FileTreeNode(new File(targetPath), this, false);
-            children.add(intermediateNode);
-            intermediateNode.children = new ArrayList<>();
-            return intermediateNode.getOrCreateAncestor(path);
-        }
-    }
+	public boolean isDirectory() {
+		return f != null && f.isDirectory();
+	}
 
-	private void initFromList(ArrayList<String> paths) {
-		children = new ArrayList<>();
-		Collections.sort(paths, new FileNameComparator());
-		for (String s : paths) {
-            log.info("From within archive: '"+s+"'");
-            FileTreeNode ancestor = getOrCreateAncestor(getPath() + "/" + s);
-			boolean isCompressed = FileUtils.getArchiverFor(s) != null;
-            FileTreeNode n = null;
-            if (isCompressed) {
-                try {
-                    File temp = Files.createTempFile("ac-", "." + FileUtils.getExtension(s)).toFile();
-                    FileUtils.getArchiverFor(f.getPath()).extractOne(f, s, temp);
-                    log.info("Adding as inner path from temp archive '"+s+"'");
-                    n = new FileTreeNode(temp, this, true);
-                    n.original = new File(s);
-                } catch (IOException ioe) {
-                    log.warn("error uncompressing bundled file for " + f + "/" + s, ioe);
-                }
-            } else {
-                log.info("Adding as inner path");
-                n = new FileTreeNode(new File(s), this, false);
-            }
-			n.children = new ArrayList<>();
-			ancestor.children.add(n);
-		}
+	/**
+	 * @return true if this node has contents that can be read with openStream
+	 */
+	public boolean isFile() {
+		return f != null && f.isFile();
 	}
 
-	public File getFile() {
-		return f;
+	/**
+	 * Opens this node's contents for reading
+	 * @return a stream with the contents; callers must close it
+	 * @throws IOException if not a file, or on read errors
+	 */
+	public InputStream openStream() throws IOException {
+		return new FileInputStream(f);
 	}
 
 	public static class FileSorter implements Comparator<File> {
@@ -239,17 +183,27 @@ public class FileTreeNode implements MutableTreeNode, Comparable<FileTreeNode> {
 
 	public void refresh() {
 		if (children == null) {
-			children = new ArrayList<>();
+			children = listChildren();
+		}
+	}
 
-			// unix device files may yield "null" for f.listFiles() ...
-			File[] files;
-			if (f.isDirectory() && (files = f.listFiles()) != null) {
-				Arrays.sort(files, new FileSorter());
-				for (File c : files) {
-					children.add(new FileTreeNode(c, this, FileUtils.canUncompressPath(c)));
-				}
+	/**
+	 * Builds the children of this node; called only once, when they are 
+	 * first needed.
+	 * @return the children of this node, in display order
+	 */
+	protected ArrayList<FileTreeNode> listChildren() {
+		ArrayList<FileTreeNode> list = new ArrayList<>();
+
+		// unix device files may yield "null" for f.listFiles() ...
+		File[] files;
+		if (f.isDirectory() && (files = f.listFiles()) != null) {
+			Arrays.sort(files, new FileSorter());
+			for (File c : files) {
+				list.add(forFile(c, this));
 			}
 		}
+		return list;
 	}
 
 	public TreeNode getChildAt(int childIndex) {
@@ -272,7 +226,7 @@ public class FileTreeNode implements MutableTreeNode, Comparable<FileTreeNode> {
 	}
 
 	public boolean getAllowsChildren() {
-		return (f == null) ? true : (isLeaf() ? f.isDirectory() : true);
+		return (f == null) ? true : (isLeaf() ? isDirectory() : true);
 	}
 
 	public boolean isLeaf() {
@@ -320,7 +274,26 @@ public class FileTreeNode implements MutableTreeNode, Comparable<FileTreeNode> {
 		p = (FileTreeNode) newParent;
 	}
 
+	/**
+	 * Removes, in a single pass, all children that satisfy a condition.
+	 * @param condition to test each child with
+	 * @return the number of removed children
+	 */
+	int removeChildrenIf(Predicate<FileTreeNode> condition) {
+		refresh();
+		int before = children.size();
+		children.removeIf(c -> {
+			if (condition.test(c)) {
+				c.p = null;
+				return true;
+			}
+			return false;
+		});
+		return before - children.size();
+	}
+
 	public ArrayList<FileTreeNode> getChildren() {
+		refresh();
 		return children;
 	}
 
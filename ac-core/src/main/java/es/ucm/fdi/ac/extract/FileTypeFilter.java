@@ -58,7 +58,19 @@ public class FileTypeFilter extends FileTreeFilter {
 	}
 
 	public boolean accept(FileTreeNode ftn) {
-		return accept(ftn.getFile());
+		switch (type) {
+		case Directory:
+			return ftn.isDirectory();
+		case File:
+			return ftn.isFile();
+		default:
+			throw new IllegalStateException("Invalid type in filter: " + type);
+		}
+	}
+
+	@Override
+	public int getCost() {
+		return FILE_COST;
 	}
 
 	public void loadFromXML(Element e) throws IOException {
@@ -25,10 +25,8 @@ package es.ucm.fdi.ac.extract;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -95,10 +93,10 @@ public class Hasher {
 	private final static String FN_BOUNDARY = " | ";
 
 	public void save(PrintWriter w, FileTreeNode fn) {
-		if (fn.getFile().isFile()) {
+		if (fn.isFile()) {
 			w.write(fn.getFile().getAbsolutePath() + FN_BOUNDARY + " "
 					+ fn.getSha1());
-		} else if (fn.getFile().isDirectory()) {
+		} else if (fn.isDirectory()) {
 			for (FileTreeNode child : fn.getChildren()) {
 				save(w, child);
 			}
@@ -151,7 +149,7 @@ public class Hasher {
 
 	private FileTreeNode doHash(FileTreeNode fn) {
 
-		if (fn.getFile().isFile()) {
+		if (fn.isFile()) {
 			if (fn.getSha1() == null) {
 				// may have been restored by a load, avoiding recomputation
 				hashFile(fn);
@@ -167,10 +165,10 @@ public class Hasher {
 		}
 		friends.add(fn);
 
-		if (fn.getFile().isDirectory() && friends.size() > 1) {
+		if (fn.isDirectory() && friends.size() > 1) {
 			HashSet<FileTreeNode> toAvoid = new HashSet<FileTreeNode>();
 			for (FileTreeNode friend : friends) {
-				if (!friend.getFile().isDirectory()) {
+				if (!friend.isDirectory()) {
 					System.err.println("FOUND DIRECTORY SHA1 COLLISION!: "
 							+ friend.getFile().getAbsolutePath() + " == "
 							+ fn.getFile().getAbsolutePath());
@@ -215,7 +213,7 @@ public class Hasher {
 		if (friends != null) {
 			friends.remove(fn);
 		}
-		if (fn.getFile().isDirectory()) {
+		if (fn.isDirectory()) {
 			for (FileTreeNode child : fn.getChildren()) {
 				unhash(child);
 			}
@@ -240,7 +238,7 @@ public class Hasher {
 		if (friends != null && friends.size() > 1) {
 			results.add(fn.getSha1());
 		}
-		if (fn.getFile().isDirectory()) {
+		if (fn.isDirectory()) {
 			for (FileTreeNode child : fn.getChildren()) {
 				findMatchesIn(child, results);
 			}
@@ -281,21 +279,16 @@ public class Hasher {
 
 	private FileTreeNode hashFile(FileTreeNode fn) {
 
-		try (FileChannel fc=new RandomAccessFile(fn.getFile(), "r").getChannel()) {
+		try (InputStream is = fn.openStream()) {
 			MessageDigest sha1Sun = MessageDigest.getInstance("SHA-1");
-			ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
-			while (fc.position() < fc.size()) {
-				fc.read(buffer);
-				buffer.flip();
-				byte[] raw = new byte[buffer.limit()];
-				System.arraycopy(buffer.array(), 0, raw, 0, raw.length);
-				sha1Sun.update(raw);
-				buffer.clear();
+			byte[] buffer = new byte[1024 * 1024];
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				sha1Sun.update(buffer, 0, read);
 			}
 
 			byte[] sun = sha1Sun.digest();
 			sha1Sun.reset();
-			buffer.clear();
 			fn.setSha1(sun);
 			return fn;
 		} catch (Throwable e) {
@@ -38,11 +38,11 @@ public class PathFilter extends PatternFilter {
 	}
 
 	public boolean accept(FileTreeNode ftn) {
-		return ftn.getPath().matches(pattern);
+		return getCompiledPattern().matcher(ftn.getPath()).matches();
 	}
 
 	public boolean accept(File f) {
-		return f.getPath().matches(pattern);
+		return getCompiledPattern().matcher(f.getPath()).matches();
 	}
 
 	@Override
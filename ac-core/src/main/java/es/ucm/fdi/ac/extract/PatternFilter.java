@@ -23,6 +23,7 @@
 package es.ucm.fdi.ac.extract;
 
 import java.io.IOException;
+import java.util.regex.Pattern;
 import org.jdom2.Element;
 
 /**
@@ -33,6 +34,7 @@ import org.jdom2.Element;
 public abstract class PatternFilter extends FileTreeFilter {
 
 	protected String pattern;
+	private volatile Pattern compiled;
 
 	protected PatternFilter() {
 	}
@@ -55,6 +57,29 @@ public abstract class PatternFilter extends FileTreeFilter {
 	 */
 	public void setPattern(String pattern) {
 		this.pattern = pattern;
+		this.compiled = null;
+	}
+
+	/**
+	 * Returns this filter's pattern, compiled. Compilation happens only once
+	 * for each pattern, instead of once per call to accept.
+	 * @return
+	 */
+	protected Pattern getCompiledPattern() {
+		if (compiled == null) {
+			compiled = compile(pattern);
+		}
+		return compiled;
+	}
+
+	/**
+	 * Compiles a pattern. Subclasses may override this to choose flags or
+	 * rewrite the pattern into a cheaper, equivalent form.
+	 * @param pattern
+	 * @return
+	 */
+	protected Pattern compile(String pattern) {
+		return Pattern.compile(pattern);
 	}
 
 	public void loadFromXML(Element element) throws IOException {
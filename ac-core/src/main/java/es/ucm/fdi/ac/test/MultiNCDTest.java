@@ -0,0 +1,213 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.ac.test;
+
+import es.ucm.fdi.ac.Submission;
+import es.ucm.fdi.util.archive.ArchiveFormat;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import org.jdom2.Element;
+
+/**
+ * Equivalent to running one NCDTest per compressor, but with a single
+ * pairwise pass: each pair's tokens are concatenated once, and fed to all
+ * compressors. Results for the first compressor are stored under the test
+ * key; the rest are provided under the keys that the corresponding NCDTest
+ * would have used.
+ *
+ * @see NCDTest
+ * @author mfreire
+ */
+public class MultiNCDTest extends TokenizingTest {
+
+	private static final Logger log = LogManager.getLogger(MultiNCDTest.class);
+
+	private ArchiveFormat[] compressors;
+	private String[] keyPrefixes;
+
+	/** token bytes, by submission internal id */
+	private byte[][] bytes;
+	/** compressed sizes, by compressor and submission internal id */
+	private int[][] sizes;
+	/** distances for all but the first compressor */
+	private float[][][] extra;
+
+	/**
+	 * Creates an unconfigured MultiNCDTest; used when loading tests, and 
+	 * must be followed by loadFromXML.
+	 */
+	public MultiNCDTest() {
+		this.independentPreprocessing = true;
+		this.independentSimilarity = true;
+	}
+
+	/**
+	 * Creates a new instance of MultiNCDTest
+	 * @param compressors to use; at least one is required
+	 */
+	public MultiNCDTest(ArchiveFormat... compressors) {
+		this();
+		setCompressors(compressors);
+	}
+
+	private void setCompressors(ArchiveFormat[] compressors) {
+		if (compressors.length == 0) {
+			throw new IllegalArgumentException("No compressors to test with");
+		}
+		this.compressors = compressors;
+		keyPrefixes = new String[compressors.length];
+		provides = new String[compressors.length - 1];
+		for (int k = 0; k < compressors.length; k++) {
+			keyPrefixes[k] = compressors[k].getClass().getSimpleName()
+					.replaceAll("Format", "");
+			if (k > 0) {
+				provides[k - 1] = keyPrefixes[k] + NCDTest.similarityKeySuffix;
+			}
+		}
+		testKey = keyPrefixes[0] + NCDTest.similarityKeySuffix;
+	}
+
+	/**
+	 * Configures this test
+	 * @param e
+	 */
+	@Override
+	public void loadFromXML(Element e) throws IOException {
+		super.loadFromXML(e);
+		String[] names = e.getAttributeValue("compressors", "").trim().split(
+				" +");
+		ArchiveFormat[] loaded = new ArchiveFormat[names.length];
+		for (int k = 0; k < names.length; k++) {
+			loaded[k] = NCDTest.compressorFor(names[k]);
+		}
+		setCompressors(loaded);
+	}
+
+	/**
+	 * Saves state to an element
+	 * @param e
+	 */
+	protected void saveInner(Element e) throws IOException {
+		super.saveInner(e);
+		StringBuilder sb = new StringBuilder();
+		for (ArchiveFormat c : compressors) {
+			sb.append(c.getClass().getName()).append(" ");
+		}
+		e.setAttribute("compressors", sb.toString().trim());
+	}
+
+	@Override
+	public void init(Submission[] subjects) {
+		bytes = new byte[subjects.length][];
+		sizes = new int[compressors.length][subjects.length];
+		extra = new float[compressors.length - 1][subjects.length][subjects.length];
+	}
+
+	/**
+	 * Corpus comparisons only use the first compressor, as finish() will 
+	 * not be called to store the others; this also avoids allocating 
+	 * their full matrices for the cohort and the corpus.
+	 */
+	@Override
+	public void init(Submission[] subjects, int cohort) {
+		bytes = new byte[subjects.length][];
+		sizes = new int[compressors.length][subjects.length];
+		extra = null;
+	}
+
+	/**
+	 * Tokenizes, and stores the compressed size for each compressor.
+	 */
+	public void preprocess(Submission s) {
+		super.preprocess(s);
+
+		byte[] b = getTokens(s).getBytes();
+		bytes[s.getInternalId()] = b;
+		for (int k = 0; k < compressors.length; k++) {
+			String sizeKey = keyPrefixes[k] + NCDTest.sizeKeySuffix;
+			if (s.getData(sizeKey) == null) {
+				int size = -1;
+				try {
+					size = compressors[k]
+							.compressedSize(new ByteArrayInputStream(b));
+				} catch (IOException e) {
+					log.warn("Exception during preprocess", e);
+				}
+				s.putData(sizeKey, Integer.valueOf(size));
+			}
+			sizes[k][s.getInternalId()] = (Integer) s.getData(sizeKey);
+		}
+	}
+
+	/**
+	 * @return a number between 0 (most similar) and 1 (least similar),
+	 * using the first compressor; others are only used outside of corpus 
+	 * comparisons
+	 */
+	public float similarity(Submission sa, Submission sb) {
+		int ia = sa.getInternalId();
+		int ib = sb.getInternalId();
+		byte[] ab = new byte[bytes[ia].length + bytes[ib].length];
+		System.arraycopy(bytes[ia], 0, ab, 0, bytes[ia].length);
+		System.arraycopy(bytes[ib], 0, ab, bytes[ia].length, bytes[ib].length);
+
+		float first = -1f;
+		int used = extra == null ? 1 : compressors.length;
+		for (int k = 0; k < used; k++) {
+			float d = -1f;
+			try {
+				int a = sizes[k][ia];
+				int b = sizes[k][ib];
+				int c = compressors[k].compressedSize(new ByteArrayInputStream(
+						ab));
+				int m = Math.min(a, b);
+				int M = a + b - m;
+				d = (float) (c - m) / (float) M;
+			} catch (IOException e) {
+				log.warn("Exception during similarity comparison", e);
+			}
+			if (k == 0) {
+				first = d;
+			} else {
+				extra[k - 1][ia][ib] = extra[k - 1][ib][ia] = d;
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * Stores results for all but the first compressor
+	 */
+	@Override
+	public void finish(Submission[] subjects) {
+		for (int k = 1; k < compressors.length; k++) {
+			for (Submission s : subjects) {
+				s.putData(provides[k - 1], extra[k - 1][s.getInternalId()]);
+			}
+		}
+		bytes = null;
+		extra = null;
+	}
+}
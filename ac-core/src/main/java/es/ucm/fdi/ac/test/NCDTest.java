@@ -52,6 +52,15 @@ public class NCDTest extends TokenizingTest {
 	private String sizeKey;
 	private ArchiveFormat compressor;
 
+	/**
+	 * Creates an unconfigured NCDTest; used when loading tests, and must 
+	 * be followed by loadFromXML.
+	 */
+	public NCDTest() {
+		this.independentPreprocessing = true;
+		this.independentSimilarity = true;
+	}
+
 	/**
 	 * Creates a new instance of NCDTest
 	 * @param compressor to use
@@ -79,9 +88,25 @@ public class NCDTest extends TokenizingTest {
 	@Override
 	public void loadFromXML(Element e) throws IOException {
 		super.loadFromXML(e);
+		compressor = compressorFor(e.getAttributeValue("compressor"));
 		sizeKey = e.getAttributeValue("sizeKey");
 	}
 
+	/**
+	 * Instantiates a compressor, as saved by saveInner
+	 * @param className of the compressor
+	 * @return a new instance
+	 * @throws IOException if it could not be instantiated
+	 */
+	static ArchiveFormat compressorFor(String className) throws IOException {
+		try {
+			return (ArchiveFormat) NCDTest.class.getClassLoader().loadClass(
+					className).getConstructor().newInstance();
+		} catch (Exception ex) {
+			throw new IOException("Error loading compressor " + className, ex);
+		}
+	}
+
 	/**
 	 * Saves state to an element
 	 * @param e 
@@ -103,6 +128,10 @@ public class NCDTest extends TokenizingTest {
 	public void preprocess(Submission s) {
 		super.preprocess(s);
 
+		// tokens never change, and neither does their compressed size
+		if (s.getData(sizeKey) != null) {
+			return;
+		}
 		String tokens = getTokens(s);
 
 		int size = -1;
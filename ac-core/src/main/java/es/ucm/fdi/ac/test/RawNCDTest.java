@@ -55,6 +55,15 @@ public class RawNCDTest extends Test {
 	private ArchiveFormat compressor;
 	private boolean ignoreWhitespace;
 
+	/**
+	 * Creates an unconfigured RawNCDTest; used when loading tests, and must 
+	 * be followed by loadFromXML.
+	 */
+	public RawNCDTest() {
+		this.independentPreprocessing = true;
+		this.independentSimilarity = true;
+	}
+
 	/**
 	 * Creates a new instance of RawNCDTest. Uses default options:
 	 * the compressor extension as name, and no whitespace removal
@@ -90,6 +99,7 @@ public class RawNCDTest extends Test {
 	@Override
 	public void loadFromXML(Element e) throws IOException {
 		super.loadFromXML(e);
+		compressor = NCDTest.compressorFor(e.getAttributeValue("compressor"));
 		sizeKey = e.getAttributeValue("sizeKey");
 		sourceKey = e.getAttributeValue("sourceKey");
 		ignoreWhitespace = Boolean.parseBoolean(e
@@ -103,7 +113,7 @@ public class RawNCDTest extends Test {
 	protected void saveInner(Element e) throws IOException {
 		e.setAttribute("compressor", compressor.getClass().getName());
 		e.setAttribute("sizeKey", sizeKey);
-		e.setAttribute("sourceKey", sizeKey);
+		e.setAttribute("sourceKey", sourceKey);
 		e.setAttribute("ignoreWhitespace", "" + ignoreWhitespace);
 	}
 
@@ -119,7 +129,7 @@ public class RawNCDTest extends Test {
 
 		StringBuilder sourceString = new StringBuilder();
 		for (Source source : s.getSources()) {
-			sourceString.append(source);
+			sourceString.append(source.getCode());
 		}
 		String source = sourceString.toString();
 
@@ -25,6 +25,8 @@ package es.ucm.fdi.ac.test;
 import es.ucm.fdi.ac.Submission;
 import es.ucm.fdi.util.XMLSerializable;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import org.jdom2.Element;
 
 /**
@@ -71,7 +73,7 @@ public abstract class Test implements XMLSerializable {
 	 */
 	public Element saveToXML() throws IOException {
 		Element e = new Element("test");
-		e.setAttribute("class", getClass().toString());
+		e.setAttribute("class", getClass().getName());
 		e.setAttribute("key", getTestKey());
 		e.setAttribute("requires", stringArrayToAttribute(requires));
 		e.setAttribute("provides", stringArrayToAttribute(provides));
@@ -88,7 +90,10 @@ public abstract class Test implements XMLSerializable {
 	}
 
 	private static String[] attributeToStringArray(String attribute) {
-		return attribute.split("[, ]+");
+		if (attribute == null || attribute.trim().isEmpty()) {
+			return new String[0];
+		}
+		return attribute.trim().split("[, ]+");
 	}
 
 	/**
@@ -105,6 +110,16 @@ public abstract class Test implements XMLSerializable {
 		// the default is to do nothing
 	}
 
+	/**
+	 * Global initialization for comparisons against a corpus: only pairs 
+	 * with one of the first 'cohort' subjects and one of the rest will be 
+	 * compared, and finish() will not be called. The default is to call
+	 * init(subjects).
+	 */
+	public void init(Submission[] subjects, int cohort) {
+		init(subjects);
+	}
+
 	/**
 	 * All subjects will have been preprocessed before similarity is 
 	 * checked.
@@ -117,6 +132,27 @@ public abstract class Test implements XMLSerializable {
 	 */
 	public abstract float similarity(Submission a, Submission b);
 
+	/**
+	 * Tests that can find similar pairs without comparing all of them
+	 * override this to return only the distances for those pairs. Row i
+	 * maps the internal ids of the submissions close to the i-th submission
+	 * to their distances; all other pairs are at distance 1. 
+	 * @return the sparse distances, or null (the default) if all pairs must 
+	 * be compared via similarity()
+	 */
+	public List<Map<Integer, Float>> sparseSimilarities(Submission[] subjects) {
+		return null;
+	}
+
+	/**
+	 * Called once all similarities have been calculated (and stored under
+	 * the test key), unless the test was cancelled. Tests that provide
+	 * additional keys can store them here.
+	 */
+	public void finish(Submission[] subjects) {
+		// the default is to do nothing
+	}
+
 	/**    
 	 * @return true if similarity calculation can be parallelized;
 	 * default is false
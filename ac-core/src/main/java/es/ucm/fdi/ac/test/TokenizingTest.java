@@ -53,6 +53,13 @@ public abstract class TokenizingTest extends Test {
 		this.tokenizer = t;
 	}
 
+	/**
+	 * @return the tokenizer in use; null if none has been set
+	 */
+	public Tokenizer getTokenizer() {
+		return tokenizer;
+	}
+
 	/**
 	 * Retrieve tokens for the given subject
 	 * @param s
@@ -63,54 +70,72 @@ public abstract class TokenizingTest extends Test {
 	}
 
 	/**
-	 * Configures this test
+	 * Configures this test. If no tokenizer was saved, none is set; 
+	 * one must be set before the test is run.
 	 * @param e
 	 */
 	@Override
 	public void loadFromXML(Element e) throws IOException {
 		super.loadFromXML(e);
 		Element te = e.getChild("tokenizer");
+		if (te == null) {
+			tokenizer = null;
+			return;
+		}
 		try {
 			String tokenizerClassName = te.getAttributeValue("class");
 			tokenizer = (Tokenizer) getClass().getClassLoader().loadClass(
 					tokenizerClassName).getConstructor().newInstance();
-			tokenizer.loadFromXML(e);
+			tokenizer.loadFromXML(te);
 		} catch (Exception ex) {
 			throw new IOException("Error loading tokenizer", ex);
 		}
 	}
 
 	/**
-	 * Saves state to an element
+	 * Saves state to an element. If no tokenizer is set, none is saved;
+	 * one will be chosen when loading.
 	 * @param e 
 	 */
 	protected void saveInner(Element e) throws IOException {
-		e.addContent(tokenizer.saveToXML());
+		if (tokenizer != null) {
+			e.addContent(tokenizer.saveToXML());
+		}
 	}
 
 	/**
-	 * Tokenizes the subject's sources (if they had not yet been tokenized)
+	 * Tokenizes the subject's sources (if they had not yet been tokenized).
+	 * Tests that run concurrently share a single tokenization: the first
+	 * to get here tokenizes, and the rest wait for its results.
 	 * @param s
 	 */
 	public void preprocess(Submission s) {
-		String tokens = (String) s.getData(Tokenizer.TOKEN_KEY);
-		if (tokens == null) {
-			StringWriter sw = new StringWriter();
-			PrintWriter pw = new PrintWriter(sw);
-			String currentFile = null;
-			//            System.out.println(s.getId() + ":");
-			try {
-				for (int i = 0; i < s.getSources().size(); i++) {
-					currentFile = s.getId() + "/" + s.getSourceName(i);
-					tokenizer.tokenize(s.getSourceCode(i), currentFile, pw);
-				}
-			} catch (Throwable tr) {
-				log.warn("Error tokenizing " + currentFile + " from " + s, tr);
+		synchronized (s) {
+			if (s.getData(Tokenizer.TOKEN_KEY) == null) {
+				s.putData(Tokenizer.TOKEN_KEY, tokenize(s, tokenizer));
+			}
+		}
+	}
+
+	/**
+	 * Tokenizes all sources in a submission, one after another
+	 * @param s to tokenize
+	 * @param tokenizer to use
+	 * @return the resulting tokens
+	 */
+	public static String tokenize(Submission s, Tokenizer tokenizer) {
+		StringWriter sw = new StringWriter();
+		PrintWriter pw = new PrintWriter(sw);
+		String currentFile = null;
+		try {
+			for (int i = 0; i < s.getSources().size(); i++) {
+				currentFile = s.getId() + "/" + s.getSourceName(i);
+				tokenizer.tokenize(s.getSourceCode(i), currentFile, pw);
 			}
-			pw.flush();
-			sw.flush();
-			tokens = sw.toString();
-			s.putData(Tokenizer.TOKEN_KEY, tokens);
+		} catch (Throwable tr) {
+			log.warn("Error tokenizing " + currentFile + " from " + s, tr);
 		}
+		pw.flush();
+		return sw.toString();
 	}
 }
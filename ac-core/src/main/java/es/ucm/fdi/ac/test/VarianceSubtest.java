@@ -23,6 +23,8 @@
 package es.ucm.fdi.ac.test;
 
 import es.ucm.fdi.ac.Submission;
+import java.io.IOException;
+import org.jdom2.Element;
 
 /**
  * This test builds on a previous test, and is interested not in
@@ -45,15 +47,43 @@ public class VarianceSubtest extends TokenizingTest {
 	// if you lower this to 0, you would get back the original test
 	private double outlierImportance = 0.5;
 
-	private final String baseTestKey;
+	private String baseTestKey;
 	private int currentPos;
 
+	/**
+	 * Creates an unconfigured VarianceSubtest; used when loading tests, and 
+	 * must be followed by loadFromXML.
+	 */
+	public VarianceSubtest() {
+	}
+
 	/** Creates a new instance of ZipTest */
 	public VarianceSubtest(String baseTestKey, double outlierImportance) {
 		this.baseTestKey = baseTestKey;
 		this.outlierImportance = outlierImportance;
 		this.currentPos = 0;
 		testKey = SUBJECT_VARDIST_KEY + baseTestKey + outlierImportance;
+		requires = new String[] { baseTestKey };
+	}
+
+	@Override
+	public void loadFromXML(Element e) throws IOException {
+		super.loadFromXML(e);
+		baseTestKey = e.getAttributeValue("baseTestKey");
+		outlierImportance = Double.parseDouble(e
+				.getAttributeValue("outlierImportance"));
+	}
+
+	@Override
+	protected void saveInner(Element e) throws IOException {
+		super.saveInner(e);
+		e.setAttribute("baseTestKey", baseTestKey);
+		e.setAttribute("outlierImportance", "" + outlierImportance);
+	}
+
+	@Override
+	public void init(Submission[] subjects) {
+		currentPos = 0;
 	}
 
 	/**
@@ -77,13 +107,21 @@ public class VarianceSubtest extends TokenizingTest {
 
 		float[] f = (float[]) s.getData(baseTestKey);
 
-		s.putData(SUBJECT_MEAN, mean(f));
-		s.putData(SUBJECT_SIDE_STD_DEV, sideStdDev(f, mean(f)));
+		s.putData(own(SUBJECT_MEAN), mean(f));
+		s.putData(own(SUBJECT_SIDE_STD_DEV), sideStdDev(f, mean(f)));
 
-		s.putData(SUBJECT_VD_POS, currentPos);
+		s.putData(own(SUBJECT_VD_POS), currentPos);
 		currentPos++;
 	}
 
+	/**
+	 * Per-submission keys are qualified with this test's key, so that
+	 * several variance subtests can run at the same time.
+	 */
+	private String own(String key) {
+		return key + "_" + testKey;
+	}
+
 	/**
 	 * mean
 	 */
@@ -141,14 +179,14 @@ public class VarianceSubtest extends TokenizingTest {
 		try {
 			float[] A = (float[]) sa.getData(baseTestKey);
 			float[] B = (float[]) sb.getData(baseTestKey);
-			int posA = (Integer) sa.getData(SUBJECT_VD_POS);
-			int posB = (Integer) sb.getData(SUBJECT_VD_POS);
+			int posA = (Integer) sa.getData(own(SUBJECT_VD_POS));
+			int posB = (Integer) sb.getData(own(SUBJECT_VD_POS));
 
 			// Note that these are in [0, 1]
-			double sideStdDevA = (Double) sa.getData(SUBJECT_SIDE_STD_DEV);
-			double meanA = (Double) sa.getData(SUBJECT_MEAN);
-			double sideStdDevB = (Double) sb.getData(SUBJECT_SIDE_STD_DEV);
-			double meanB = (Double) sb.getData(SUBJECT_MEAN);
+			double sideStdDevA = (Double) sa.getData(own(SUBJECT_SIDE_STD_DEV));
+			double meanA = (Double) sa.getData(own(SUBJECT_MEAN));
+			double sideStdDevB = (Double) sb.getData(own(SUBJECT_SIDE_STD_DEV));
+			double meanB = (Double) sb.getData(own(SUBJECT_MEAN));
 
 			// And these in [0, ...[
 			double devAinB = Math.max(meanB - B[posA], 0) / sideStdDevB;
@@ -0,0 +1,359 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.ac.test;
+
+import es.ucm.fdi.ac.Submission;
+import es.ucm.fdi.ac.Tokenizer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import org.jdom2.Element;
+
+/**
+ * Compares submissions by the k-grams of tokens that they share, as
+ * selected by winnowing. Instead of comparing all pairs, an inverted index
+ * from fingerprints to submissions is used to find pairs that share
+ * fingerprints; only those get a distance, and all others are at distance 1.
+ * Distance is 1 minus the fraction of the smaller fingerprint set that is
+ * also present in the other one.
+ *
+ * Fingerprints that are present in too many submissions (for example,
+ * because they come from code provided to all students) are ignored; this
+ * also bounds the number of pairs that each fingerprint can generate.
+ *
+ * S. Schleimer, D. S. Wilkerson, A. Aiken, Winnowing: local algorithms for
+ *    document fingerprinting, SIGMOD 2003, 76-85.
+ *
+ * @author mfreire
+ */
+public class WinnowingTest extends TokenizingTest {
+
+	static final public String SUBJECT_FINGERPRINTS = "winnow_fingerprints";
+	static final public String SUBJECT_MATCHES = "winnow_matches";
+
+	/** fingerprints in more than this fraction of submissions are ignored */
+	static final public double MAX_SHARED_FRACTION = 0.5;
+	/** 
+	 * fingerprints in more than this many submissions are ignored, whatever
+	 * the number of submissions (as in Moss); keeps the pairs generated by
+	 * each fingerprint bounded as classes grow
+	 */
+	static final public int MAX_SHARED = 10;
+
+	/** k-gram length, in tokens; shorter matches are noise */
+	private int k;
+	/** winnowing window; matches of k + w - 1 tokens are always found */
+	private int w;
+
+	/** fingerprints ignored because too many submissions share them; sorted */
+	private int[] ignored = new int[0];
+	/** only pairs with one submission below this id and one above are found */
+	private int cohort = Integer.MAX_VALUE;
+
+	/** Creates a new instance of WinnowingTest */
+	public WinnowingTest() {
+		this(12, 8);
+	}
+
+	/**
+	 * Creates a new instance of WinnowingTest with custom parameters
+	 * @param k length of k-grams, in tokens
+	 * @param w size of the winnowing window, in k-grams
+	 */
+	public WinnowingTest(int k, int w) {
+		this.k = k;
+		this.w = w;
+		this.independentPreprocessing = true;
+		testKey = "winnow_" + k + "_" + w + "_sim";
+	}
+
+	/**
+	 * @return the key under which each submission's fingerprints are 
+	 * stored; depends on the k-gram length and window size
+	 */
+	public String getFingerprintKey() {
+		return SUBJECT_FINGERPRINTS + "_" + k + "_" + w;
+	}
+
+	@Override
+	public void loadFromXML(Element e) throws IOException {
+		super.loadFromXML(e);
+		k = Integer.parseInt(e.getAttributeValue("k"));
+		w = Integer.parseInt(e.getAttributeValue("w"));
+	}
+
+	@Override
+	protected void saveInner(Element e) throws IOException {
+		super.saveInner(e);
+		e.setAttribute("k", "" + k);
+		e.setAttribute("w", "" + w);
+	}
+
+	@Override
+	public void init(Submission[] subjects) {
+		ignored = new int[0];
+		cohort = subjects.length;
+	}
+
+	/**
+	 * Corpus comparisons also go through the inverted index, which then 
+	 * only generates pairs between the cohort and the corpus. Fingerprints
+	 * are counted as shared across both.
+	 */
+	@Override
+	public void init(Submission[] subjects, int cohort) {
+		init(subjects);
+		this.cohort = cohort;
+	}
+
+	/**
+	 * Tokenizes, and stores the submission's fingerprints (unless already
+	 * available, for instance because the submission comes from a Corpus)
+	 */
+	public void preprocess(Submission s) {
+		super.preprocess(s);
+		if (s.getData(getFingerprintKey()) == null) {
+			s.putData(getFingerprintKey(), fingerprints(getTokens(s),
+					tokenizer, k, w));
+		}
+	}
+
+	/**
+	 * Winnows the hashes of all k-grams of a token stream
+	 * @param tokens as generated by a tokenizer
+	 * @param tokenizer to use for token ids
+	 * @param k length of the k-grams
+	 * @param w size of the winnowing window
+	 * @return the fingerprints, sorted and without repetitions
+	 */
+	public static int[] fingerprints(String tokens, Tokenizer tokenizer, int k,
+			int w) {
+		StringTokenizer st = new StringTokenizer(tokens, "\n\r\t ");
+		int[] ids = new int[st.countTokens()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = tokenizer.tokenId(st.nextToken());
+		}
+		if (ids.length < k) {
+			return new int[0];
+		}
+
+		// rolling hash of each k-gram
+		final int base = 1000003;
+		int top = 1;
+		for (int i = 1; i < k; i++) {
+			top *= base;
+		}
+		int[] hashes = new int[ids.length - k + 1];
+		int h = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (i >= k) {
+				h -= ids[i - k] * top;
+			}
+			h = h * base + ids[i];
+			if (i >= k - 1) {
+				hashes[i - k + 1] = h;
+			}
+		}
+
+		// select the rightmost minimum of each window, once
+		int[] selected = new int[hashes.length];
+		int n = 0;
+		int last = -1;
+		for (int start = 0; start + Math.min(w, hashes.length) <= hashes.length; start++) {
+			int min = start;
+			for (int i = start + 1; i < start + w && i < hashes.length; i++) {
+				if (hashes[i] <= hashes[min]) {
+					min = i;
+				}
+			}
+			if (min != last) {
+				selected[n++] = hashes[min];
+				last = min;
+			}
+		}
+		int[] result = Arrays.copyOf(selected, n);
+		Arrays.sort(result);
+		int unique = 0;
+		for (int i = 0; i < result.length; i++) {
+			if (unique == 0 || result[i] != result[unique - 1]) {
+				result[unique++] = result[i];
+			}
+		}
+		return Arrays.copyOf(result, unique);
+	}
+
+	/**
+	 * Finds all pairs that share fingerprints, via an inverted index, and
+	 * stores their distances under SUBJECT_MATCHES + the test key (except
+	 * when comparing against a corpus, where only pairs between cohort and
+	 * corpus are found, and nothing is stored). The index
+	 * is kept as sorted (fingerprint, submission) pairs, and shared 
+	 * fingerprints are counted as sorted (submission, submission) pairs, to 
+	 * avoid boxing.
+	 */
+	@Override
+	public List<Map<Integer, Float>> sparseSimilarities(Submission[] subjects) {
+		int maxShared = maxShared(subjects.length);
+		boolean corpus = cohort < subjects.length;
+		long[] index = index(subjects);
+		ArrayList<Integer> tooShared = new ArrayList<>();
+		long[] pairs = new long[Math.max(16, index.length)];
+		int nPairs = 0;
+		for (int start = 0, end; start < index.length; start = end) {
+			int f = (int) (index[start] >> 32);
+			end = start + 1;
+			while (end < index.length && (int) (index[end] >> 32) == f) {
+				end++;
+			}
+			if (end - start > maxShared) {
+				tooShared.add(f);
+				continue;
+			}
+			for (int a = start; a < end; a++) {
+				if ((int) index[a] >= cohort) {
+					break;
+				}
+				for (int b = a + 1; b < end; b++) {
+					if (corpus && (int) index[b] < cohort) {
+						continue;
+					}
+					if (nPairs == pairs.length) {
+						pairs = Arrays.copyOf(pairs, pairs.length * 2);
+					}
+					pairs[nPairs++] = (index[a] << 32) | (int) index[b];
+				}
+			}
+			if (isCancelled()) {
+				break;
+			}
+			setProgress(end / (float) index.length);
+		}
+		ignored = new int[tooShared.size()];
+		for (int i = 0; i < ignored.length; i++) {
+			ignored[i] = tooShared.get(i);
+		}
+		Arrays.sort(ignored);
+		Arrays.sort(pairs, 0, nPairs);
+
+		ArrayList<Map<Integer, Float>> rows = new ArrayList<>();
+		int[] counts = new int[subjects.length];
+		for (Submission s : subjects) {
+			rows.add(new HashMap<>());
+			counts[s.getInternalId()] = countUsable(s);
+		}
+		for (int start = 0, end; start < nPairs; start = end) {
+			end = start + 1;
+			while (end < nPairs && pairs[end] == pairs[start]) {
+				end++;
+			}
+			int i = (int) (pairs[start] >> 32);
+			int j = (int) pairs[start];
+			float d = distance(end - start, counts[i], counts[j]);
+			rows.get(i).put(j, d);
+			rows.get(j).put(i, d);
+		}
+		if (!corpus) {
+			for (Submission s : subjects) {
+				s.putData(SUBJECT_MATCHES + testKey, rows.get(s.getInternalId()));
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * @return the largest number of submissions, out of n, that can share 
+	 * a fingerprint without it being ignored
+	 */
+	static int maxShared(int n) {
+		return (int) Math.max(2, Math.min(MAX_SHARED, n * MAX_SHARED_FRACTION));
+	}
+
+	/**
+	 * Builds an inverted index from fingerprints to submissions
+	 * @return (fingerprint, internal id) pairs, packed into the high and low
+	 * halves of each long, and sorted by fingerprint and then by id
+	 */
+	private long[] index(Submission[] subjects) {
+		int total = 0;
+		for (Submission s : subjects) {
+			total += ((int[]) s.getData(getFingerprintKey())).length;
+		}
+		long[] index = new long[total];
+		int n = 0;
+		for (Submission s : subjects) {
+			for (int f : (int[]) s.getData(getFingerprintKey())) {
+				index[n++] = ((long) f << 32) | s.getInternalId();
+			}
+		}
+		Arrays.sort(index);
+		return index;
+	}
+
+	private boolean isIgnored(int f) {
+		return Arrays.binarySearch(ignored, f) >= 0;
+	}
+
+	private int countUsable(Submission s) {
+		int count = 0;
+		for (int f : (int[]) s.getData(getFingerprintKey())) {
+			if (!isIgnored(f)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static float distance(int shared, int countA, int countB) {
+		int m = Math.min(countA, countB);
+		return m == 0 ? 1f : 1f - shared / (float) m;
+	}
+
+	/**
+	 * Compares two submissions directly; ignores the same fingerprints
+	 * as sparseSimilarities, once that has been called.
+	 * @return a number between 0 (most similar) and 1 (least similar)
+	 */
+	public float similarity(Submission sa, Submission sb) {
+		int[] fa = (int[]) sa.getData(getFingerprintKey());
+		int[] fb = (int[]) sb.getData(getFingerprintKey());
+		int shared = 0;
+		for (int i = 0, j = 0; i < fa.length && j < fb.length;) {
+			if (fa[i] < fb[j]) {
+				i++;
+			} else if (fa[i] > fb[j]) {
+				j++;
+			} else {
+				if (!isIgnored(fa[i])) {
+					shared++;
+				}
+				i++;
+				j++;
+			}
+		}
+		return distance(shared, countUsable(sa), countUsable(sb));
+	}
+}
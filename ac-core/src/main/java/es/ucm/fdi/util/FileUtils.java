@@ -41,7 +41,15 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 
@@ -295,22 +303,191 @@ public class FileUtils {
 		return new String(readFileToBytes(f, 0), encoding);
 	}
 
+	/** Files larger than this are memory-mapped instead of read */
+	private static final int MAP_THRESHOLD = 1024 * 1024;
+
+	/** Bytes passed to the charset detector for ambiguous files */
+	private static final int DETECTION_PREFIX = 64 * 1024;
+
+	/** 
+	 * Minimum detector confidence for a charset to be remembered; lower
+	 * guesses are often wrong, and would be tried first for the whole root 
+	 */
+	private static final int REUSABLE_CONFIDENCE = 80;
+
+	/**
+	 * Charsets detected (with high confidence) for files that are neither 
+	 * ASCII nor UTF-8, by source root. Other such files under the same root
+	 * try the remembered charset first, and only fall back to detection if 
+	 * they cannot be strictly decoded with it. Meant to last for a single
+	 * load, since files may change between loads.
+	 */
+	public static class CharsetCache {
+		private final ConcurrentHashMap<File, Charset> byRoot = new ConcurrentHashMap<>();
+	}
+
 	/**
-	 * Reads a file to a string, guessing the correct encoding.
+	 * Reads a file to a string, guessing the correct encoding. The file is
+	 * read only once. Pure ASCII and valid UTF-8 are recognized by 
+	 * scanning; only other files (or their first DETECTION_PREFIX bytes) are
+	 * passed to a charset detector.
 	 * @param f to read
 	 * @return the resulting string
 	 * @throws java.io.IOException
 	 */
 	public static String readFileToString(File f) throws IOException {
-		byte contents[] = readFileToBytes(f, 0);
+		return readFileToString(f, null, null);
+	}
+
+	/**
+	 * Reads a file to a string, guessing the correct encoding as 
+	 * readFileToString(File) does, but trying charsets already detected
+	 * under the same root before running detection again.
+	 * @param f to read
+	 * @param charsets remembered during the current load; may be null
+	 * @param root that f belongs to (such as its submission's folder)
+	 * @return the resulting string
+	 * @throws java.io.IOException
+	 */
+	public static String readFileToString(File f, CharsetCache charsets,
+			File root) throws IOException {
+		ByteBuffer contents;
+		try (FileChannel fc = FileChannel.open(f.toPath(),
+				StandardOpenOption.READ)) {
+			long size = fc.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("file too large: " + f.getAbsolutePath());
+			}
+			if (size >= MAP_THRESHOLD) {
+				contents = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			} else {
+				contents = ByteBuffer.allocate((int) size);
+				while (contents.hasRemaining() && fc.read(contents) >= 0) {
+					// keep reading
+				}
+				contents.flip();
+			}
+		}
+		return decode(contents, f, charsets, root);
+	}
+
+	/**
+	 * Converts bytes read from a file to a string, guessing the correct
+	 * encoding as readFileToString(File, CharsetCache, File) does.
+	 * @param contents of the file
+	 * @param f file they were read from; may be a virtual path (such as 
+	 * a path within an archive)
+	 * @param charsets remembered during the current load; may be null
+	 * @param root that f belongs to (such as its submission's folder)
+	 * @return the resulting string
+	 * @throws java.io.IOException if the contents cannot be decoded
+	 */
+	public static String readBytesToString(byte[] contents, File f,
+			CharsetCache charsets, File root) throws IOException {
+		return decode(ByteBuffer.wrap(contents), f, charsets, root);
+	}
+
+	/**
+	 * @return the decoded contents, or null if they are not valid in
+	 * the given charset
+	 */
+	private static String strictDecode(ByteBuffer contents, Charset charset) {
+		try {
+			return charset.newDecoder().onMalformedInput(
+					CodingErrorAction.REPORT).onUnmappableCharacter(
+					CodingErrorAction.REPORT).decode(contents.duplicate())
+					.toString();
+		} catch (CharacterCodingException cce) {
+			return null;
+		}
+	}
+
+	private static String decode(ByteBuffer contents, File f,
+			CharsetCache charsets, File root) throws IOException {
+		if (isAscii(contents)) {
+			return StandardCharsets.US_ASCII.decode(contents).toString();
+		}
+		String decoded = strictDecode(contents, StandardCharsets.UTF_8);
+		if (decoded != null) {
+			return decoded;
+		}
+
+		boolean remember = charsets != null && root != null;
+		Charset charset = remember ? charsets.byRoot.get(root) : null;
+		if (charset != null) {
+			decoded = strictDecode(contents, charset);
+			if (decoded != null) {
+				log.debug("Charset for {} is {} (as others in {})",
+						f.getAbsolutePath(), charset, root);
+				return decoded;
+			}
+		}
+
+		byte[] prefix = new byte[Math.min(contents.remaining(),
+				DETECTION_PREFIX)];
+		contents.duplicate().get(prefix);
 		CharsetDetector charsetDetector = new CharsetDetector();
-		charsetDetector.setText(FileUtils.readFileToBytes(f, 0));
+		charsetDetector.setText(prefix);
 		charsetDetector.enableInputFilter(true);
-		CharsetMatch cm = charsetDetector.detect();
+		charset = null;
+		CharsetMatch cm = null;
+		for (CharsetMatch m : charsetDetector.detectAll()) {
+			charset = supportedCharset(m.getName());
+			if (charset != null) {
+				cm = m;
+				break;
+			}
+		}
+		if (charset == null) {
+			log.info("No supported charset detected for "
+					+ f.getAbsolutePath() + "; using ISO-8859-1");
+			charset = StandardCharsets.ISO_8859_1;
+		} else if (remember && cm.getConfidence() >= REUSABLE_CONFIDENCE) {
+			charsets.byRoot.put(root, charset);
+		}
+		log.debug("Charset for " + f.getAbsolutePath() + " is " + charset);
+		return charset.decode(contents).toString();
+	}
 
-		log.info("Charset for " + f.getAbsolutePath() + " is " + cm.getName());
+	/**
+	 * Looks up a charset by name; the detector may return names that Java 
+	 * does not support. The logical and visual variants of ISO-8859-6 and
+	 * ISO-8859-8 (such as "ISO-8859-8-I") share the byte encoding of their
+	 * base charset, and are decoded with it.
+	 * @return the charset, or null if not supported
+	 */
+	private static Charset supportedCharset(String name) {
+		try {
+			if (Charset.isSupported(name)) {
+				return Charset.forName(name);
+			}
+			if (name.matches("ISO-8859-[68]-[IE]")) {
+				return supportedCharset(name.substring(0, name.length() - 2));
+			}
+		} catch (IllegalArgumentException iae) {
+			// includes IllegalCharsetNameException
+		}
+		return null;
+	}
 
-		return new String(contents, cm.getName());
+	/**
+	 * Checks whether all remaining bytes in a buffer are 7-bit ASCII, 
+	 * 8 bytes at a time. The buffer's position is not changed.
+	 */
+	private static boolean isAscii(ByteBuffer b) {
+		int i = b.position();
+		int end = b.limit();
+		for (/**/; i + 8 <= end; i += 8) {
+			if ((b.getLong(i) & 0x8080808080808080L) != 0) {
+				return false;
+			}
+		}
+		for (/**/; i < end; i++) {
+			if (b.get(i) < 0) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
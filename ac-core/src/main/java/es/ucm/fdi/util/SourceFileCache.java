@@ -26,7 +26,10 @@ import es.ucm.fdi.util.archive.ArchiveFormat;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.WeakHashMap;
 import org.apache.logging.log4j.Logger;
@@ -46,9 +49,12 @@ public class SourceFileCache {
 	private static final Logger log = LogManager
 			.getLogger(SourceFileCache.class);
 
-	private static final WeakHashMap<File, String> cache = new WeakHashMap<File, String>();
+	/** synchronized, since sources are loaded concurrently */
+	private static final Map<File, String> cache = Collections
+			.synchronizedMap(new WeakHashMap<File, String>());
 
-	private static final HashSet<File> important = new HashSet<File>();
+	private static final Set<File> important = Collections
+			.synchronizedSet(new HashSet<File>());
 
 	/**
 	 * Marks a file as important
@@ -85,14 +91,29 @@ public class SourceFileCache {
 	 * by getArchiveListing
 	 */
 	public static String getSource(File f, boolean forceReload) {
-		String source = null;
+		return getSource(f, forceReload, null, null);
+	}
 
-		if (cache.containsKey(f) && !forceReload) {
-			source = cache.get(f);
-		} else {
+	/**
+	 * A version of getSource that, when the file must be read, reuses 
+	 * charsets detected for other files under the same root
+	 * @param charsets remembered during the current load
+	 * @param root that f belongs to (such as its submission's folder)
+	 */
+	public static String getSource(File f, FileUtils.CharsetCache charsets,
+			File root) {
+		return getSource(f, false, charsets, root);
+	}
+
+	private static String getSource(File f, boolean forceReload,
+			FileUtils.CharsetCache charsets, File root) {
+		// a single lookup: entries may vanish between calls
+		String source = forceReload ? null : cache.get(f);
+
+		if (source == null) {
 			try {
 				if (f.exists()) {
-					source = read(f);
+					source = read(f, charsets, root);
 				} else {
 					File p = f.getParentFile();
 					StringBuilder path = new StringBuilder(f.getName());
@@ -112,15 +133,15 @@ public class SourceFileCache {
 						return null;
 					}
 
-					File tmp = File.createTempFile("siglefile", ".tmp");
-					if (ar.extractOne(p, path.toString(), tmp)) {
-						source = read(tmp);
+					byte[] bytes = ar.readOne(p, path.toString());
+					if (bytes != null) {
+						source = FileUtils.readBytesToString(bytes, f,
+								charsets, root);
 					} else {
 						log.warn("Weird error extracting file '" + f
 								+ "' from file '" + p.getAbsolutePath()
 								+ "' with path '" + path.toString() + "'");
 					}
-					tmp.delete();
 				}
 			} catch (IOException ioe) {
 				log.error("Exception reading file '" + f + "'", ioe);
@@ -132,12 +153,13 @@ public class SourceFileCache {
 		return source;
 	}
 
-	private static String read(File f) throws IOException {
+	private static String read(File f, FileUtils.CharsetCache charsets,
+			File root) throws IOException {
 		if (FileUtils.canUncompressPath(f)) {
 			getArchiveListing(f);
 			return cache.get(f);
 		} else {
-			return FileUtils.readFileToString(f);
+			return FileUtils.readFileToString(f, charsets, root);
 		}
 	}
 
@@ -149,9 +171,9 @@ public class SourceFileCache {
 		String listing;
 		ArrayList<String> al = null;
 
-		if (cache.containsKey(f)) {
+		listing = cache.get(f);
+		if (listing != null) {
 			al = new ArrayList<String>();
-			listing = cache.get(f);
 			for (StringTokenizer st = new StringTokenizer(listing, "\n"); st
 					.hasMoreTokens(); /**/) {
 				al.add(st.nextToken());
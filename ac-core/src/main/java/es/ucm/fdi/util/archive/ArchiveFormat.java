@@ -58,10 +58,22 @@ public interface ArchiveFormat {
 	void expand(File source, File destDir) throws IOException;
 
 	/**
-	 * Expand the archive into its component files
+	 * Expand a single file from the archive into 'dest'
+	 * @return true if found and extracted
 	 */
 	boolean extractOne(File source, String path, File dest) throws IOException;
 
+	/**
+	 * Read a single file from the archive. The default implementation 
+	 * expands the whole archive into a temporary folder on first use, and 
+	 * reads from there afterwards; formats that support random access
+	 * should read it directly.
+	 * @return the bytes of the file, or null if not found
+	 */
+	default byte[] readOne(File source, String path) throws IOException {
+		return ExpandedArchives.read(this, source, path);
+	}
+
 	/**
 	 * Return the *size* (in bytes) of compressing the input stream with this algorithm
 	 * This allows the archiver to be used in compression-distance calculations, without the need
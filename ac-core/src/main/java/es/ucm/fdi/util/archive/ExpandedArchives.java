@@ -0,0 +1,247 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.util.archive;
+
+import es.ucm.fdi.util.FileUtils;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads single files from archives that can only be read from the start
+ * (such as tar, tgz, 7z or rar). Tars are opened once for random access,
+ * after decompressing them into a temporary tar if needed; other archives are
+ * expanded into a temporary folder the first time one of their files is read,
+ * and later reads use the expanded copy. Reading all N files of an archive
+ * therefore costs a single pass over it, instead of N.
+ * <p>
+ * At most MAX_EXPANSIONS archives are kept open or expanded; the least
+ * recently read are deleted first, as are the expansions of archives that
+ * changed since they were expanded. Whatever remains is removed on exit.
+ *
+ * @author mfreire
+ */
+public class ExpandedArchives {
+
+	private static final Logger log = LogManager
+			.getLogger(ExpandedArchives.class);
+
+	/** archives kept open or expanded at any given time */
+	private static final int MAX_EXPANSIONS = 16;
+
+	/** an archive, expanded (once) into a folder, or opened as a tar */
+	private static class Expansion {
+		private final long lastModified;
+		/** temporary folder or tar; null if none was needed */
+		private File temp;
+		/** open tar, if read via random access */
+		private TarFile tar;
+		/** entries of the open tar, by canonical path */
+		private HashMap<String, TarArchiveEntry> entries;
+		/** set once expanded, or opened */
+		private boolean ready;
+		/** set once deleted; deleted expansions must be replaced */
+		private boolean deleted;
+
+		private Expansion(long lastModified) {
+			this.lastModified = lastModified;
+		}
+
+		/** callers must hold this expansion's lock */
+		private void delete() {
+			deleted = true;
+			if (tar != null) {
+				try {
+					tar.close();
+				} catch (IOException ioe) {
+					log.warn("Could not close tar", ioe);
+				}
+			}
+			if (temp != null) {
+				FileUtils.delete(temp);
+			}
+		}
+	}
+
+	/** a read from an expansion, performed while holding its lock */
+	private interface ExpansionReader {
+		byte[] read(File source, Expansion e) throws IOException;
+	}
+
+	/** by canonical archive file, least recently read first; guarded by itself */
+	private static final LinkedHashMap<File, Expansion> expansions = new LinkedHashMap<>(
+			16, 0.75f, true);
+
+	static {
+		Runtime.getRuntime().addShutdownHook(
+				new Thread(ExpandedArchives::deleteAll, "expanded-cleanup"));
+	}
+
+	private ExpandedArchives() {
+	}
+
+	/**
+	 * Reads a file from an archive, expanding it if not already expanded.
+	 * Archives that change after being expanded are expanded again.
+	 * @param format of the archive
+	 * @param source archive file
+	 * @param path of the file within the archive
+	 * @return the bytes of the file, or null if not found
+	 * @throws IOException on error
+	 */
+	public static byte[] read(ArchiveFormat format, File source, String path)
+			throws IOException {
+		return read(source, (key, e) -> {
+			if (!e.ready) {
+				if (e.temp != null) {
+					FileUtils.delete(e.temp); // left over from a failed expansion
+				}
+				e.temp = Files.createTempDirectory("ac-expanded-").toFile();
+				log.debug("Expanding {} into {}", key, e.temp);
+				format.expand(key, e.temp);
+				e.ready = true;
+			}
+			File f = new File(e.temp, FileUtils.toCanonicalPath(path));
+			if (!f.getCanonicalPath().startsWith(
+					e.temp.getCanonicalPath() + File.separator)
+					|| !f.isFile()) {
+				return null;
+			}
+			return Files.readAllBytes(f.toPath());
+		});
+	}
+
+	/**
+	 * Reads a file from a tar, opening it for random access if not already
+	 * open. Compressed tars are first decompressed into a temporary tar.
+	 * @param format to use to detect compression and decompress
+	 * @param source tar, possibly compressed
+	 * @param path of the file within the tar
+	 * @return the bytes of the file, or null if not found
+	 * @throws IOException on error
+	 */
+	static byte[] readTar(TarFormat format, File source, String path)
+			throws IOException {
+		return read(source, (key, e) -> {
+			if (!e.ready) {
+				File tarFile = key;
+				if (!format.isPlainTar(key)) {
+					if (e.temp == null) {
+						e.temp = Files.createTempFile("ac-expanded-", ".tar")
+								.toFile();
+					}
+					log.debug("Decompressing {} into {}", key, e.temp);
+					try (InputStream is = format.getTarInputStream(key)) {
+						Files.copy(is, e.temp.toPath(),
+								StandardCopyOption.REPLACE_EXISTING);
+					}
+					tarFile = e.temp;
+				}
+				e.tar = new TarFile(tarFile);
+				e.entries = new HashMap<>();
+				for (TarArchiveEntry te : e.tar.getEntries()) {
+					if (!te.isDirectory()) {
+						e.entries.put(FileUtils.toCanonicalPath(te.getName()), te);
+					}
+				}
+				e.ready = true;
+			}
+			TarArchiveEntry te = e.entries.get(FileUtils.toCanonicalPath(path));
+			if (te == null) {
+				return null;
+			}
+			try (InputStream is = e.tar.getInputStream(te)) {
+				return is.readAllBytes();
+			}
+		});
+	}
+
+	private static byte[] read(File source, ExpansionReader reader)
+			throws IOException {
+		File key = source.getCanonicalFile();
+		long lastModified = key.lastModified();
+		while (true) {
+			Expansion e = acquire(key, lastModified);
+			synchronized (e) {
+				if (!e.deleted) {
+					return reader.read(key, e);
+				}
+			}
+			// evicted before it could be read; retry with a fresh one
+		}
+	}
+
+	/**
+	 * Finds the current expansion for an archive, creating it if missing or
+	 * stale, and deletes any expansions that this makes stale or excessive.
+	 */
+	private static Expansion acquire(File key, long lastModified) {
+		ArrayList<Expansion> evicted = new ArrayList<>();
+		Expansion e;
+		synchronized (expansions) {
+			e = expansions.get(key);
+			if (e == null || e.lastModified != lastModified) {
+				if (e != null) {
+					evicted.add(e);
+				}
+				e = new Expansion(lastModified);
+				expansions.put(key, e);
+				Iterator<Expansion> it = expansions.values().iterator();
+				while (expansions.size() > MAX_EXPANSIONS) {
+					evicted.add(it.next());
+					it.remove();
+				}
+			}
+		}
+		for (Expansion old : evicted) {
+			synchronized (old) {
+				old.delete();
+			}
+		}
+		return e;
+	}
+
+	private static void deleteAll() {
+		ArrayList<Expansion> all;
+		synchronized (expansions) {
+			all = new ArrayList<>(expansions.values());
+			expansions.clear();
+		}
+		for (Expansion e : all) {
+			synchronized (e) {
+				e.delete();
+			}
+		}
+	}
+}
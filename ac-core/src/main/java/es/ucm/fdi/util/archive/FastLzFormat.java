@@ -0,0 +1,228 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.util.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A fast LZ77 compressor, with LZ4-style sequences, intended only for
+ * compression-distance calculations. Nothing is ever written out:
+ * compressedSize parses the input with a hash-chain match finder and adds up
+ * the size that each literal run and match would take. Much faster than
+ * the general-purpose compressors, at the cost of somewhat worse
+ * compression; good for a first pass over large sets of submissions.
+ *
+ * There is no file format, and therefore no archiving.
+ *
+ * @author mfreire
+ */
+public class FastLzFormat implements ArchiveFormat {
+
+	/** matches must be at least this long */
+	private static final int MIN_MATCH = 4;
+	/** offsets are 2 bytes long */
+	private static final int WINDOW = 1 << 16;
+	private static final int HASH_BITS = 15;
+	/** candidates to try per position; more is slower, but compresses better */
+	private static final int MAX_CHAIN = 16;
+
+	/**
+	 * Match-finder tables, reused between calls in the same thread.
+	 * Positions are stored offset by a base that grows after each call,
+	 * so that stale entries need not be cleared.
+	 */
+	private static class Tables {
+		private final int[] head = new int[1 << HASH_BITS];
+		private final int[] chain = new int[WINDOW];
+		private byte[] buffer = new byte[WINDOW];
+		private int base = WINDOW;
+
+		private void advance(int length) {
+			if (base > Integer.MAX_VALUE - 2 * WINDOW - length) {
+				Arrays.fill(head, 0);
+				Arrays.fill(chain, 0);
+				base = WINDOW;
+			} else {
+				base += length + WINDOW;
+			}
+		}
+	}
+
+	/** reads several bytes at once */
+	private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(
+			int[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle LONG = MethodHandles
+			.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final ThreadLocal<Tables> tables = ThreadLocal
+			.withInitial(Tables::new);
+
+	public String getArchiveExtensions() {
+		// not a file format: matches no file names
+		return "";
+	}
+
+	public ArrayList<String> list(File source) throws IOException {
+		throw new UnsupportedOperationException(
+				"FastLz does not support listing");
+	}
+
+	public void expand(File source, File destDir) throws IOException {
+		throw new UnsupportedOperationException(
+				"FastLz does not support expansion");
+	}
+
+	public boolean extractOne(File source, String path, File dest)
+			throws IOException {
+		throw new UnsupportedOperationException(
+				"FastLz does not support extraction");
+	}
+
+	public void create(ArrayList<File> sources, File destFile, File baseDir)
+			throws IOException {
+		throw new UnsupportedOperationException(
+				"FastLz does not support creation");
+	}
+
+	/**
+	 * Returns the size that the input stream would have once compressed
+	 */
+	public int compressedSize(InputStream is) throws IOException {
+		Tables t = tables.get();
+		int n = 0;
+		try {
+			int read;
+			while ((read = is.read(t.buffer, n, t.buffer.length - n)) > -1) {
+				n += read;
+				if (n == t.buffer.length) {
+					t.buffer = Arrays.copyOf(t.buffer, n * 2);
+				}
+			}
+		} finally {
+			is.close();
+		}
+		return compressedSize(t.buffer, n, t);
+	}
+
+	/**
+	 * Returns the size that the first n bytes of b would have once compressed
+	 */
+	public int compressedSize(byte[] b, int n) {
+		return compressedSize(b, n, tables.get());
+	}
+
+	private static int compressedSize(byte[] b, int n, Tables t) {
+		int[] head = t.head;
+		int[] chain = t.chain;
+		int base = t.base;
+		int size = 0;
+		int literals = 0;
+		int last = n - MIN_MATCH;
+		int i = 0;
+		while (i <= last) {
+			int h = hash(b, i);
+			int bestLength = 0;
+			int candidate = head[h] - base;
+			for (int tries = 0; tries < MAX_CHAIN && candidate >= 0
+					&& i - candidate < WINDOW; tries++) {
+				if (b[candidate + bestLength] == b[i + bestLength]) {
+					int length = matchLength(b, candidate, i, n);
+					if (length > bestLength) {
+						bestLength = length;
+						if (i + length == n) {
+							break;
+						}
+					}
+				}
+				int next = chain[candidate & (WINDOW - 1)] - base;
+				if (next >= candidate) {
+					break;
+				}
+				candidate = next;
+			}
+
+			if (bestLength < MIN_MATCH) {
+				insert(head, chain, h, i, base);
+				literals++;
+				i++;
+			} else {
+				// token, extra literal-length bytes, literals, offset, extra match-length bytes
+				size += 1 + lengthBytes(literals) + literals + 2
+						+ lengthBytes(bestLength - MIN_MATCH);
+				literals = 0;
+				int end = i + bestLength;
+				for (int stop = Math.min(end, last + 1); i < stop; i++) {
+					insert(head, chain, hash(b, i), i, base);
+				}
+				i = end;
+			}
+		}
+		literals += n - Math.min(i, n);
+		size += 1 + lengthBytes(literals) + literals;
+		t.advance(n);
+		return size;
+	}
+
+	/**
+	 * Extra bytes needed to encode a length, beyond the 4 bits in the token
+	 */
+	private static int lengthBytes(int length) {
+		return length < 15 ? 0 : (length - 15) / 255 + 1;
+	}
+
+	private static int hash(byte[] b, int i) {
+		return ((int) INT.get(b, i) * -1640531535) >>> (32 - HASH_BITS);
+	}
+
+	/**
+	 * Length of the match between the bytes at from and those at i,
+	 * comparing 8 bytes at a time while possible
+	 */
+	private static int matchLength(byte[] b, int from, int i, int n) {
+		int length = 0;
+		while (i + length + 8 <= n) {
+			long diff = (long) LONG.get(b, from + length)
+					^ (long) LONG.get(b, i + length);
+			if (diff != 0) {
+				return length + (Long.numberOfTrailingZeros(diff) >>> 3);
+			}
+			length += 8;
+		}
+		while (i + length < n && b[from + length] == b[i + length]) {
+			length++;
+		}
+		return length;
+	}
+
+	private static void insert(int[] head, int[] chain, int h, int i, int base) {
+		chain[i & (WINDOW - 1)] = head[h];
+		head[h] = i + base;
+	}
+}
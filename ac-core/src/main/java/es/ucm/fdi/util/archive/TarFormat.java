@@ -103,11 +103,25 @@ public class TarFormat implements ArchiveFormat {
 		}
 	}
 
-	private InputStream getTarInputStream(File tarFile) throws IOException {
-		boolean isTar = FileUtils.startMatches(new FileInputStream(tarFile),
-				tarMagic, tarMagicOffset);
-		boolean isGz = isTar ? false : FileUtils.startMatches(
-				new FileInputStream(tarFile), gzMagic, 0);
+	/**
+	 * @param tarFile to check
+	 * @return true if it is an uncompressed tar, which can be read in place
+	 * @throws IOException on error
+	 */
+	boolean isPlainTar(File tarFile) throws IOException {
+		try (InputStream is = new FileInputStream(tarFile)) {
+			return FileUtils.startMatches(is, tarMagic, tarMagicOffset);
+		}
+	}
+
+	InputStream getTarInputStream(File tarFile) throws IOException {
+		boolean isTar = isPlainTar(tarFile);
+		boolean isGz = false;
+		if (!isTar) {
+			try (InputStream is = new FileInputStream(tarFile)) {
+				isGz = FileUtils.startMatches(is, gzMagic, 0);
+			}
+		}
 
 		if (isTar) {
 			return new FileInputStream(tarFile);
@@ -125,6 +139,11 @@ public class TarFormat implements ArchiveFormat {
 		}
 	}
 
+	@Override
+	public byte[] readOne(File source, String path) throws IOException {
+		return ExpandedArchives.readTar(this, source, path);
+	}
+
 	public void create(ArrayList<File> sources, File destFile, File baseDir)
 			throws IOException {
 		throw new UnsupportedOperationException(
@@ -35,6 +35,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Manages the popular Zip format (PKZIP, Jar, War); uses Ant's buit-in
@@ -50,7 +53,7 @@ public class ZipFormat implements ArchiveFormat {
 		return "(.*\\.zip)|(.*\\.jar)|(.*\\.war)";
 	}
 
-	private void assertIsZip(File source) throws IOException {
+	private static void assertIsZip(File source) throws IOException {
 		try {
 			if (!FileUtils.startMatches(new FileInputStream(source), zipMagic,
 					0)) {
@@ -160,6 +163,135 @@ public class ZipFormat implements ArchiveFormat {
 		return false;
 	}
 
+	/**
+	 * Reads a single file, without scanning the archive; the archive is
+	 * kept open, so that further reads do not have to parse its central 
+	 * directory again. Reads from different threads proceed in parallel,
+	 * even within the same archive.
+	 */
+	@Override
+	public byte[] readOne(File source, String path) throws IOException {
+		OpenZip oz;
+		synchronized (openZips) {
+			oz = openZips.get(source);
+			if (oz == null || oz.lastModified != source.lastModified()) {
+				if (oz != null) {
+					openZips.remove(source);
+					oz.evict();
+				}
+				oz = new OpenZip(source);
+				openZips.put(source, oz);
+			}
+			oz.acquire();
+		}
+		try {
+			ZipArchiveEntry e = oz.open().get(path);
+			if (e == null) {
+				return null;
+			}
+			try (InputStream is = oz.zf.getInputStream(e)) {
+				return is.readAllBytes();
+			}
+		} finally {
+			oz.release();
+		}
+	}
+
+	/** maximum number of archives kept open by readOne */
+	private static final int MAX_OPEN_ZIPS = 4;
+
+	/** 
+	 * archives kept open by readOne, least-recently used first; evicted
+	 * archives are only closed once nobody is reading from them 
+	 */
+	private static final LinkedHashMap<File, OpenZip> openZips = new LinkedHashMap<File, OpenZip>(
+			8, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<File, OpenZip> eldest) {
+			if (size() > MAX_OPEN_ZIPS) {
+				eldest.getValue().evict();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * An open archive, with its files indexed by canonical path. The
+	 * archive is opened on first use, and closed once evicted and 
+	 * released by all its readers.
+	 */
+	private static class OpenZip {
+		private final File source;
+		private final long lastModified;
+		private final Object openLock = new Object();
+		private volatile ZipFile zf;
+		private HashMap<String, ZipArchiveEntry> entries;
+		/** guarded by this */
+		private int readers = 0;
+		/** guarded by this */
+		private boolean evicted = false;
+
+		public OpenZip(File source) {
+			this.source = source;
+			this.lastModified = source.lastModified();
+		}
+
+		/**
+		 * Opens the archive, if not yet open. 
+		 * @return its entries
+		 */
+		public HashMap<String, ZipArchiveEntry> open() throws IOException {
+			synchronized (openLock) {
+				if (zf == null) {
+					assertIsZip(source);
+					ZipFile opened = new ZipFile(source);
+					HashMap<String, ZipArchiveEntry> all = new HashMap<>();
+					Enumeration<ZipArchiveEntry> es = opened.getEntries();
+					while (es.hasMoreElements()) {
+						ZipArchiveEntry e = es.nextElement();
+						if (!e.isDirectory()) {
+							all.put(FileUtils.toCanonicalPath(e.getName()), e);
+						}
+					}
+					entries = all;
+					zf = opened;
+				}
+				return entries;
+			}
+		}
+
+		public synchronized void acquire() {
+			readers++;
+		}
+
+		public synchronized void release() {
+			readers--;
+			if (evicted && readers == 0) {
+				close();
+			}
+		}
+
+		public synchronized void evict() {
+			evicted = true;
+			if (readers == 0) {
+				close();
+			}
+		}
+
+		private void close() {
+			synchronized (openLock) {
+				try {
+					if (zf != null) {
+						zf.close();
+					}
+				} catch (IOException ioe) {
+					// nothing to do; was only being read
+				}
+			}
+		}
+	}
+
 	public void create(ArrayList<File> sources, File destFile, File baseDir)
 			throws IOException {
 
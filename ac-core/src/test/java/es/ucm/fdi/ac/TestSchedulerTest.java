@@ -0,0 +1,128 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.ac;
+
+import es.ucm.fdi.ac.test.Test;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.jdom2.Element;
+
+/**
+ * Tests dependency resolution in the TestScheduler
+ */
+public class TestSchedulerTest extends TestCase {
+
+	/**
+	 * A test that only declares keys
+	 */
+	private static class KeyTest extends Test {
+		public KeyTest(String key, String[] requires, String... provides) {
+			this.testKey = key;
+			this.requires = requires;
+			this.provides = provides;
+		}
+
+		@Override
+		protected void saveInner(Element e) throws IOException {
+		}
+
+		@Override
+		public void preprocess(Submission s) {
+		}
+
+		@Override
+		public float similarity(Submission a, Submission b) {
+			return 0f;
+		}
+	}
+
+	private static String[] keys(String... keys) {
+		return keys;
+	}
+
+	public void testTopologicalOrder() throws IOException {
+		Test variance = new KeyTest("variance", keys("gzip"));
+		Test multi = new KeyTest("zip", keys(), "gzip", "bzip2");
+		Test both = new KeyTest("both", keys("variance", "zip"));
+		Test alone = new KeyTest("alone", keys());
+
+		List<Test> order = new TestScheduler(new Analysis()).schedule(Arrays
+				.asList(both, variance, alone, multi));
+		assertEquals(4, order.size());
+		assertTrue(order.indexOf(multi) < order.indexOf(variance));
+		assertTrue(order.indexOf(variance) < order.indexOf(both));
+		assertTrue(order.indexOf(multi) < order.indexOf(both));
+		assertTrue(order.contains(alone));
+	}
+
+	public void testUnmetDependency() {
+		Test t = new KeyTest("variance", keys("nope"));
+		try {
+			new TestScheduler(new Analysis()).schedule(Arrays.asList(t));
+			fail("unmet dependency not detected");
+		} catch (IOException ioe) {
+			assertTrue(ioe.getMessage().contains("nope"));
+		}
+	}
+
+	public void testCircularDependency() {
+		Test a = new KeyTest("a", keys("c"));
+		Test b = new KeyTest("b", keys("a"));
+		Test c = new KeyTest("c", keys("b"));
+		try {
+			new TestScheduler(new Analysis()).schedule(Arrays.asList(a, b, c));
+			fail("circular dependency not detected");
+		} catch (IOException ioe) {
+			assertTrue(ioe.getMessage().contains("Circular"));
+		}
+	}
+
+	/**
+	 * A test that always ends up cancelled, as when one of its workers fails
+	 */
+	private static class CancelledTest extends KeyTest {
+		public CancelledTest(String key, String[] requires, String... provides) {
+			super(key, requires, provides);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return true;
+		}
+	}
+
+	public void testUnfinishedAreReported() throws IOException {
+		Test broken = new CancelledTest("zip", keys(), "gzip");
+		Test dependent = new KeyTest("variance", keys("gzip"));
+		Test alone = new KeyTest("alone", keys());
+
+		List<Test> unfinished = new TestScheduler(new Analysis()).run(Arrays
+				.asList(dependent, alone, broken));
+		assertEquals(Arrays.asList(broken, dependent), unfinished);
+
+		assertTrue(new TestScheduler(new Analysis()).run(Arrays.asList(alone))
+				.isEmpty());
+	}
+}
@@ -62,6 +62,7 @@ public class AntlrTokenizerFactory implements Analysis.TokenizerFactory {
 		public final String pattern;
 		public final String[] treeRules;
 		public final AntlrTokenizer tokenizer;
+		private final String[] extensions;
 
 		TokenizerEntry(String antlrClass, String entryPoint,
 				String... extensions) {
@@ -71,6 +72,7 @@ public class AntlrTokenizerFactory implements Analysis.TokenizerFactory {
 		TokenizerEntry(String antlrClass, String entryPoint,
 				String[] treeRules, String... extensions) {
 			this.pattern = "(" + String.join("|", extensions) + ")";
+			this.extensions = extensions;
 			this.tokenizer = new AntlrTokenizer(antlrClass, entryPoint);
 			this.treeRules = treeRules;
 		}
@@ -84,15 +86,51 @@ public class AntlrTokenizerFactory implements Analysis.TokenizerFactory {
 		 */
 		public static TokenizerEntry forName(String name) {
 			String suffix = name.substring(name.lastIndexOf('.') + 1);
+			return ByExtension.entries.get(suffix.toLowerCase());
+		}
+
+		/**
+		 * @return the name of this entry's language, such as "java"
+		 */
+		public String getLanguage() {
+			return name().toLowerCase();
+		}
+	}
+
+	/**
+	 * Entries by (lower-case) extension; built once, on first use. 
+	 * If several entries could handle an extension, the first one wins.
+	 */
+	private static class ByExtension {
+		private static final HashMap<String, TokenizerEntry> entries = new HashMap<>();
+		static {
 			for (TokenizerEntry e : TokenizerEntry.values()) {
-				if (suffix.matches(e.pattern)) {
-					return e;
+				for (String extension : e.extensions) {
+					entries.putIfAbsent(extension.toLowerCase(), e);
 				}
 			}
-			return null;
 		}
 	}
 
+	/**
+	 * Returns the language of a tokenizer built by this factory; useful
+	 * to keep apart token streams that cannot be compared.
+	 * @param t to look at; per-file tokenizers report their fallback's
+	 * @return the language of its TokenizerEntry, such as "java"; or "none"
+	 * for tokenizers that are not AntlrTokenizers from an entry 
+	 */
+	public static String languageOf(Tokenizer t) {
+		if (t instanceof PerFileTokenizer) {
+			t = ((PerFileTokenizer) t).getFallback();
+		}
+		for (TokenizerEntry e : TokenizerEntry.values()) {
+			if (e.tokenizer == t) {
+				return e.getLanguage();
+			}
+		}
+		return "none";
+	}
+
 	/**
 	 * Returns a tokenizer for a filename with an extension.
 	 * @param name of file. Only the extension is looked at.
@@ -138,4 +176,20 @@ public class AntlrTokenizerFactory implements Analysis.TokenizerFactory {
         log.info("chosen tokenizer: " + best + " with " + votes.get(best));
         return best;
     }
+
+	/**
+	 * Returns a tokenizer that chooses a tokenizer for each source file 
+	 * based on its extension, so that submissions that mix languages are 
+	 * tokenized correctly. Files with unknown extensions are tokenized with 
+	 * the most popular tokenizer, as returned by getTokenizerFor(subs).
+	 * @param subs to look at
+	 * @return a per-file tokenizer; or a NullTokenizer, if most files
+	 * cannot be tokenized
+	 */
+	@Override
+	public Tokenizer getPerFileTokenizerFor(Submission[] subs) {
+		Tokenizer best = getTokenizerFor(subs);
+		return best instanceof NullTokenizer ? best : new PerFileTokenizer(
+				best);
+	}
 }
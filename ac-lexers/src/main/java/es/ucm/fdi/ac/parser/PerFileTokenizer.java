@@ -0,0 +1,123 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.ac.parser;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import org.jdom2.Element;
+
+import es.ucm.fdi.ac.Tokenizer;
+import es.ucm.fdi.ac.parser.AntlrTokenizerFactory.TokenizerEntry;
+
+/**
+ * Tokenizes each source file with the tokenizer that corresponds to its
+ * extension, so that submissions that mix languages (say, PHP, JS and HTML)
+ * get all their files tokenized correctly. Files with unknown extensions are
+ * tokenized with a fallback tokenizer.
+ *
+ * All tokenizers must use the same token ids; this is the case for all
+ * AntlrTokenizers.
+ *
+ * @author mfreire
+ */
+public class PerFileTokenizer implements Tokenizer {
+
+	private Tokenizer fallback;
+
+	/**
+	 * Creates an empty per-file tokenizer; used when loading from XML
+	 */
+	public PerFileTokenizer() {
+	}
+
+	/**
+	 * @param fallback to use for files with unknown extensions, and to
+	 * get token ids
+	 */
+	public PerFileTokenizer(Tokenizer fallback) {
+		this.fallback = fallback;
+	}
+
+	/**
+	 * @return the tokenizer used for files with unknown extensions
+	 */
+	public Tokenizer getFallback() {
+		return fallback;
+	}
+
+	/**
+	 * @param sourceFile name of the file, including extension
+	 * @return the tokenizer to use for that file
+	 */
+	public Tokenizer tokenizerFor(String sourceFile) {
+		TokenizerEntry e = TokenizerEntry.forName(sourceFile);
+		return e == null ? fallback : e.tokenizer;
+	}
+
+	@Override
+	public void tokenize(String source, String sourceFile, PrintWriter out) {
+		tokenizerFor(sourceFile).tokenize(source, sourceFile, out);
+	}
+
+	@Override
+	public void retrieveComments(String source, String sourceFile,
+			PrintWriter out) {
+		tokenizerFor(sourceFile).retrieveComments(source, sourceFile, out);
+	}
+
+	@Override
+	public int tokenId(String token) {
+		return fallback.tokenId(token);
+	}
+
+	/**
+	 * Saves the language of the fallback tokenizer; tokenizers for other
+	 * extensions are always the same, and need not be saved.
+	 */
+	@Override
+	public Element saveToXML() throws IOException {
+		String language = AntlrTokenizerFactory.languageOf(fallback);
+		if ("none".equals(language)) {
+			throw new IOException("Cannot save fallback tokenizer "
+					+ fallback.getClass().getName());
+		}
+		Element e = new Element("tokenizer");
+		e.setAttribute("class", getClass().getName());
+		e.setAttribute("fallback", language);
+		return e;
+	}
+
+	@Override
+	public void loadFromXML(Element element) throws IOException {
+		String language = element.getAttributeValue("fallback");
+		if (language == null) {
+			throw new IOException("No fallback language for tokenizer");
+		}
+		try {
+			fallback = TokenizerEntry.valueOf(language.toUpperCase()).tokenizer;
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unknown fallback language: " + language, e);
+		}
+	}
+}
@@ -23,115 +23,295 @@
 package es.ucm.fdi.ac.walkers;
 
 import es.ucm.fdi.ac.parser.AntlrTokenizer;
-import es.ucm.fdi.ac.parser.AntlrTokenizerFactory;
 import es.ucm.fdi.ac.parser.AntlrTokenizerFactory.TokenizerEntry;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
 import org.antlr.v4.runtime.*;
-import org.antlr.v4.runtime.tree.*;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.List;
 import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 
-public class SourceAligner implements ParseTreeListener {
+/**
+ * Aligns two sources by finding the token sequences that they have in 
+ * common, using Greedy String Tiling with Karp-Rabin hashing (as in 
+ * Wise's RKR-GST). Since only token types are compared, renaming 
+ * identifiers or changing literals does not break tiles; and since tiles 
+ * are reported as character offsets into the original sources, they can be
+ * highlighted directly.
+ *
+ * Aligners keep no per-alignment state, and can be used from several
+ * threads at once (for instance, to precompute alignments in background).
+ *
+ * @author mfreire
+ */
+public class SourceAligner {
 
 	static final Logger log = LogManager.getLogger(SourceAligner.class);
 
-	public ReNode parseTree(String source) {
-		return null;
-	}
+	/** default minimal tile length, in tokens */
+	public static final int DEFAULT_MIN_MATCH = 12;
 
-	public void enterEveryRule(ParserRuleContext context) {
+	/** initial search length; longer tiles are found by doubling */
+	private static final int INITIAL_SEARCH = 32;
 
-	}
+	private static final long BASE = 1_000_003L;
 
-	public void exitEveryRule(ParserRuleContext context) {
+	private final AntlrTokenizer tokenizer;
+	private final int minMatch;
 
+	public SourceAligner(AntlrTokenizer tokenizer, int minMatch) {
+		if (minMatch < 1) {
+			throw new IllegalArgumentException("minMatch must be positive");
+		}
+		this.tokenizer = tokenizer;
+		this.minMatch = minMatch;
 	}
 
-	public void visitTerminal(TerminalNode node) {
+	/**
+	 * Returns an aligner for files with the given name
+	 * @param name of a file, with an extension indicative of its language
+	 * @return an aligner, or null if no tokenizer can handle the file
+	 */
+	public static SourceAligner forName(String name) {
+		TokenizerEntry te = TokenizerEntry.forName(name);
+		return te == null ? null : new SourceAligner(te.tokenizer,
+				DEFAULT_MIN_MATCH);
+	}
+
+	/**
+	 * A tile: a run of tokens common to both sources, as character offsets 
+	 * into each source. Ends are exclusive.
+	 */
+	public static class Tile {
+		public final int startA, endA, startB, endB;
+		public final int tokens;
+
+		public Tile(int startA, int endA, int startB, int endB, int tokens) {
+			this.startA = startA;
+			this.endA = endA;
+			this.startB = startB;
+			this.endB = endB;
+			this.tokens = tokens;
+		}
+
+		public String toString() {
+			return "" + startA + ":" + endA + " <-> " + startB + ":" + endB
+					+ " (" + tokens + " tokens)";
+		}
+	}
 
+	/**
+	 * Aligns two sources.
+	 * @param a first source
+	 * @param b second source
+	 * @return the tiles found, longest (in tokens) first
+	 */
+	public List<Tile> align(String a, String b) {
+		List<Token> ta = significantTokens(a);
+		List<Token> tb = significantTokens(b);
+		ArrayList<Tile> tiles = new ArrayList<>();
+		for (int[] t : tile(types(ta), types(tb), minMatch)) {
+			Token sa = ta.get(t[0]), ea = ta.get(t[0] + t[2] - 1);
+			Token sb = tb.get(t[1]), eb = tb.get(t[1] + t[2] - 1);
+			tiles.add(new Tile(sa.getStartIndex(), ea.getStopIndex() + 1, sb
+					.getStartIndex(), eb.getStopIndex() + 1, t[2]));
+		}
+		log.debug("Aligned {} vs {} tokens: {} tiles", ta.size(), tb.size(),
+				tiles.size());
+		return tiles;
 	}
 
-	public void visitErrorNode(ErrorNode node) {
+	/**
+	 * @return tokens in the default channel (no whitespace, no comments)
+	 */
+	private List<Token> significantTokens(String source) {
+		CommonTokenStream stream = tokenizer.tokenStreamFor(source, "");
+		ArrayList<Token> tokens = new ArrayList<>();
+		for (Token t : stream.getTokens()) {
+			if (t.getChannel() == Token.DEFAULT_CHANNEL
+					&& t.getType() != Token.EOF) {
+				tokens.add(t);
+			}
+		}
+		return tokens;
+	}
 
+	private static int[] types(List<Token> tokens) {
+		int[] types = new int[tokens.size()];
+		for (int i = 0; i < types.length; i++) {
+			types[i] = tokens.get(i).getType();
+		}
+		return types;
 	}
 
-	public RuleWalker parseTree(File input, File output) {
-		String name = input.getName();
-		//retainedRules = Set.of(AntlrTokenizerFactory.TokenizerEntry.forName(name).treeRules);
-		//ids = new HashMap<>();
+	/**
+	 * Greedy String Tiling. Finds maximal, non-overlapping common runs,
+	 * longest first, of at least minMatch symbols.
+	 * 
+	 * @param a first sequence
+	 * @param b second sequence
+	 * @param minMatch minimal tile length
+	 * @return tiles, as {start in a, start in b, length}, longest first
+	 */
+	public static List<int[]> tile(int[] a, int[] b, int minMatch) {
+		boolean[] markedA = new boolean[a.length];
+		boolean[] markedB = new boolean[b.length];
+		ArrayList<int[]> tiles = new ArrayList<>();
 
-		TokenizerEntry te = TokenizerEntry.forName(name);
-		AntlrTokenizer t = te.tokenizer;
-		String code = null;
-		try {
-			code = new String(Files.readAllBytes(input.toPath()), Charset
-					.forName("utf-8"));
-			log.info("Read {} bytes", code.length());
-		} catch (IOException ioe) {
-			log.warn("Could not read file " + input + "; current wd = "
-					+ new File(".").getAbsolutePath());
-		}
-		try (PrintWriter out = new PrintWriter(new FileOutputStream(output))) {
-			AntlrTokenizer.TokensAndParseTree tnt = t.tokenizeAndParse(code);
-			tnt.tokens.fill();
-			//root = null;
-			ParseTreeWalker.DEFAULT.walk(this, tnt.context);
-			ArrayList<P> ps = new ArrayList<>();
-			//for (Map.Entry<String, Integer>e : ids.entrySet()) ps.add(new P(e));
-			Collections.sort(ps);
-			log.info(ps);
-			
-			//root.fixStartsAndEnds(tnt.tokens);
-			//root.write(code, out, null);			
-		} catch (Exception e) {
-			log.warn("Could not write to output file", e);
-		}
-		// FIXME
-		return null;
+		int s = Math.max(minMatch, INITIAL_SEARCH);
+		while (true) {
+			ArrayList<int[]> matches = new ArrayList<>();
+			int maxMatch = scanPatterns(a, b, markedA, markedB, s, matches);
+			if (maxMatch > 2 * s) {
+				// much longer matches available: look for those first
+				s = maxMatch;
+				continue;
+			}
+			markTiles(matches, markedA, markedB, tiles);
+			if (s > 2 * minMatch) {
+				s /= 2;
+			} else if (s > minMatch) {
+				s = minMatch;
+			} else {
+				break;
+			}
+		}
+		tiles.sort((x, y) -> x[2] != y[2] ? y[2] - x[2] : x[0] - y[0]);
+		return tiles;
 	}
 
-	private static class P implements Comparable<P> {
-		public String s;
-		public int c;
+	/**
+	 * Finds all maximal matches of at least s unmarked symbols.
+	 * @return the length of the longest match; stops early (returning it) 
+	 * as soon as a match longer than 2*s is found
+	 */
+	private static int scanPatterns(int[] a, int[] b, boolean[] markedA,
+			boolean[] markedB, int s, List<int[]> matches) {
+		// hash all unmarked windows of a
+		HashMap<Long, int[]> windows = new HashMap<>();
+		long[] hashes = new long[Math.max(a.length, b.length)];
+		int na = windowHashes(a, markedA, s, hashes);
+		for (int i = 0; i < na; i++) {
+			if (hashes[i] != 0) {
+				int[] list = windows.get(hashes[i]);
+				if (list == null) {
+					list = new int[] { 0, 0, 0, 0, 0 };
+					windows.put(hashes[i], list);
+				} else if (list[0] + 1 == list.length) {
+					list = Arrays.copyOf(list, list.length * 2);
+					windows.put(hashes[i], list);
+				}
+				list[++list[0]] = i;
+			}
+		}
 
-		public P(Map.Entry<String, Integer> e) {
-			this.s = e.getKey();
-			this.c = e.getValue();
+		// look up windows of b, and extend hits
+		int maxMatch = 0;
+		int nb = windowHashes(b, markedB, s, hashes);
+		for (int j = 0; j < nb; j++) {
+			int[] list = hashes[j] == 0 ? null : windows.get(hashes[j]);
+			if (list == null) {
+				continue;
+			}
+			for (int k = 1; k <= list[0]; k++) {
+				int i = list[k];
+				int len = 0;
+				while (i + len < a.length && j + len < b.length
+						&& a[i + len] == b[j + len] && !markedA[i + len]
+						&& !markedB[j + len]) {
+					len++;
+				}
+				if (len >= s) {
+					if (len > 2 * s) {
+						return len;
+					}
+					matches.add(new int[] { i, j, len });
+					maxMatch = Math.max(maxMatch, len);
+				}
+			}
 		}
+		return maxMatch;
+	}
 
-		public String toString() {
-			return "" + c + " -> " + s + "\n";
+	/**
+	 * Computes Karp-Rabin hashes for all windows of length s; windows that
+	 * include marked symbols get a hash of 0.
+	 * @return number of windows
+	 */
+	private static int windowHashes(int[] t, boolean[] marked, int s,
+			long[] hashes) {
+		int n = t.length - s + 1;
+		if (n <= 0) {
+			return 0;
+		}
+		long power = 1;
+		for (int i = 1; i < s; i++) {
+			power *= BASE;
 		}
+		long h = 0;
+		int lastMarked = -1;
+		for (int i = 0; i < t.length; i++) {
+			if (marked[i]) {
+				lastMarked = i;
+			}
+			if (i >= s) {
+				h -= (t[i - s] + 1) * power;
+			}
+			h = h * BASE + t[i] + 1;
+			if (i >= s - 1) {
+				int start = i - s + 1;
+				hashes[start] = (lastMarked >= start || h == 0) ? 0 : h;
+			}
+		}
+		return n;
+	}
 
-		public int compareTo(P p) {
-			return Integer.compare(c, p.c);
+	/**
+	 * Marks matches as tiles, longest first, skipping those that overlap
+	 * previously-marked tiles.
+	 */
+	private static void markTiles(List<int[]> matches, boolean[] markedA,
+			boolean[] markedB, List<int[]> tiles) {
+		matches.sort((x, y) -> y[2] - x[2]);
+		for (int[] m : matches) {
+			boolean occluded = false;
+			for (int k = 0; k < m[2] && !occluded; k++) {
+				occluded = markedA[m[0] + k] || markedB[m[1] + k];
+			}
+			if (!occluded) {
+				Arrays.fill(markedA, m[0], m[0] + m[2], true);
+				Arrays.fill(markedB, m[1], m[1] + m[2], true);
+				tiles.add(m);
+			}
 		}
 	}
 
-	public static void main(String[] args) {
-		SourceAligner jaywalker = new SourceAligner();
-		/*		
-		 jaywalker.parseTree(
-		 new File(
-		 "/home/mfreire/code/ac2/ac-lexers/src/test/resources/JuegoEscoba.java"),
-		 //						"/home/mfreire/code/ac2/ac-lexers/src/test/resources/huffman.c"),
-		 new File("/tmp/output"));
-		 */
-		String f1 = "/home/mfreire/Dropbox/text/2022-02-analisis-copias-urjc/sus/14_JJMH_Ord/";
-		String f2 = "/home/mfreire/Dropbox/text/2022-02-analisis-copias-urjc/sus/18_JGL_Ord/Clases/";
-		jaywalker.parseTree(new File(f1 + "Partida.java"), new File(
-				"/tmp/a.java"));
-		jaywalker.parseTree(new File(f2 + "Partida.java"), new File(
-				"/tmp/b.java"));
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: SourceAligner <file-a> <file-b>");
+			return;
+		}
+		File fa = new File(args[0]);
+		File fb = new File(args[1]);
+		String a = new String(Files.readAllBytes(fa.toPath()), Charset
+				.forName("utf-8"));
+		String b = new String(Files.readAllBytes(fb.toPath()), Charset
+				.forName("utf-8"));
+		SourceAligner aligner = SourceAligner.forName(fa.getName());
+		if (aligner == null) {
+			System.err.println("No tokenizer available for " + fa);
+			return;
+		}
+		for (Tile t : aligner.align(a, b)) {
+			System.out.println(t + "\n\t"
+					+ a.substring(t.startA, t.endA).replaceAll("\\s+", " "));
+		}
 	}
 }
@@ -35,4 +35,26 @@ public class AntlrTokenizerFactoryTest extends TestCase {
 		Tokenizer jt = AntlrTokenizerFactory.TokenizerEntry.forName("foo.java").tokenizer;
 		assertEquals(jt, t);
 	}
+
+	@Test
+	public void testGetPerFileTokenizerFor() throws Exception {
+		AntlrTokenizerFactory factory = new AntlrTokenizerFactory();
+
+		Submission[] subs = new Submission[] {
+				mockSub("index.php", "script.js", "page.html"),
+				mockSub("other.php", "MoreScript.JS", "unknown.xyz", "more.php") };
+
+		PerFileTokenizer t = (PerFileTokenizer) factory
+				.getPerFileTokenizerFor(subs);
+		assertEquals(AntlrTokenizerFactory.TokenizerEntry.JS.tokenizer, t
+				.tokenizerFor("s1/MoreScript.JS"));
+		assertEquals(AntlrTokenizerFactory.TokenizerEntry.XML.tokenizer, t
+				.tokenizerFor("s0/page.html"));
+		assertEquals(AntlrTokenizerFactory.TokenizerEntry.PHP.tokenizer, t
+				.tokenizerFor("s1/unknown.xyz"));
+
+		PerFileTokenizer loaded = new PerFileTokenizer();
+		loaded.loadFromXML(t.saveToXML());
+		assertEquals(t.getFallback(), loaded.getFallback());
+	}
 }
\ No newline at end of file
@@ -0,0 +1,112 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.ac.walkers;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Tests greedy-string-tiling alignment
+ */
+public class SourceAlignerTest extends TestCase {
+
+	private static String read(String name) {
+		File f = new File("src/test/resources/" + name);
+		try {
+			return new String(Files.readAllBytes(f.toPath()), Charset
+					.forName("utf-8"));
+		} catch (IOException ioe) {
+			fail("Could not read file " + f + "; current wd = "
+					+ new File(".").getAbsolutePath());
+			return null;
+		}
+	}
+
+	private static int coveredTokens(List<SourceAligner.Tile> tiles) {
+		int n = 0;
+		for (SourceAligner.Tile t : tiles) {
+			n += t.tokens;
+		}
+		return n;
+	}
+
+	@Test
+	public void testTileSwappedHalves() {
+		int[] a = new int[40];
+		int[] b = new int[40];
+		for (int i = 0; i < 40; i++) {
+			a[i] = i;
+			b[i] = (i + 25) % 40;
+		}
+		List<int[]> tiles = SourceAligner.tile(a, b, 5);
+		assertEquals(2, tiles.size());
+		assertEquals(25, tiles.get(0)[2]);
+		assertEquals(0, tiles.get(0)[0]);
+		assertEquals(15, tiles.get(0)[1]);
+		assertEquals(15, tiles.get(1)[2]);
+		assertEquals(25, tiles.get(1)[0]);
+		assertEquals(0, tiles.get(1)[1]);
+	}
+
+	@Test
+	public void testTileIgnoresShortMatches() {
+		int[] a = { 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+		int[] b = { 9, 1, 2, 3, 0, 4, 5, 6, 7 };
+		List<int[]> tiles = SourceAligner.tile(a, b, 4);
+		assertEquals(1, tiles.size());
+		assertEquals(3, tiles.get(0)[0]);
+		assertEquals(5, tiles.get(0)[1]);
+	}
+
+	@Test
+	public void testRenamedAndReordered() {
+		String a = read("JuegoEscoba.java");
+		int split = a.indexOf("    public void inicializa(String descripcion)");
+		int start = a.indexOf('{', a.indexOf("public class")) + 1;
+		int end = a.lastIndexOf('}');
+		String b = a.substring(0, start) + a.substring(split, end)
+				+ a.substring(start, split) + "}";
+		b = b.replace("numJugadores", "n").replaceAll("    ", "\t");
+
+		SourceAligner aligner = SourceAligner.forName("JuegoEscoba.java");
+		List<SourceAligner.Tile> self = aligner.align(a, a);
+		assertEquals(1, self.size());
+		int total = self.get(0).tokens;
+
+		List<SourceAligner.Tile> tiles = aligner.align(a, b);
+		assertTrue("" + tiles, tiles.size() >= 2);
+		assertTrue("" + tiles, coveredTokens(tiles) > total * 0.95);
+		for (SourceAligner.Tile t : tiles) {
+			String ta = a.substring(t.startA, t.endA);
+			String tb = b.substring(t.startB, t.endB);
+			assertEquals(ta.charAt(0), tb.charAt(0));
+			assertEquals(ta.charAt(ta.length() - 1), tb.charAt(tb.length() - 1));
+		}
+	}
+}
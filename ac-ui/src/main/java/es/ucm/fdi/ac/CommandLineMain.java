@@ -25,11 +25,19 @@ package es.ucm.fdi.ac;
 import es.ucm.fdi.ac.extract.FileTreeModel;
 import es.ucm.fdi.ac.extract.FileTreeNode;
 import es.ucm.fdi.ac.parser.AntlrTokenizerFactory;
+import es.ucm.fdi.ac.test.MultiNCDTest;
 import es.ucm.fdi.ac.test.NCDTest;
 import es.ucm.fdi.ac.test.Test;
+import es.ucm.fdi.ac.test.TokenCountTest;
 import es.ucm.fdi.ac.test.TokenizingTest;
+import es.ucm.fdi.ac.test.VarianceSubtest;
+import es.ucm.fdi.ac.test.WinnowingTest;
+import es.ucm.fdi.util.archive.Bzip2Format;
+import es.ucm.fdi.util.archive.FastLzFormat;
+import es.ucm.fdi.util.archive.GzipFormat;
 import es.ucm.fdi.util.archive.ZipFormat;
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
@@ -37,8 +45,11 @@ import net.sourceforge.argparse4j.inf.Namespace;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 
 /**
  * A command-line interface to AC
@@ -47,6 +58,9 @@ import java.util.LinkedHashMap;
  */
 public class CommandLineMain {
 
+	/** closest corpus submissions to report for each submission */
+	private static final int CORPUS_MATCHES = 5;
+
 	/**
 	 * This launches a very simple analysis, comparing the subdirectories
 	 * of the passed-in directory to each other.
@@ -56,6 +70,60 @@ public class CommandLineMain {
 	 */
 	public static void simpleAnalysis(Test test, Collection<String> dirNames)
 			throws IOException {
+		simpleAnalysis(test, dirNames, null, null, null);
+	}
+
+	/**
+	 * As above, but can remove template code before comparing, and also 
+	 * compare all submissions against those in a corpus of previous 
+	 * submissions, and then add them to the corpus.
+	 * @param test to apply
+	 * @param dirNames, each of which contains subdirectories to compare
+	 * @param templateDir folder with code provided to all students, which 
+	 * will not count towards similarity; or null for none
+	 * @param corpusDir folder with one corpus per language (see 
+	 * Corpus.forLanguage) to compare against; or null for no comparison
+	 * @param origin label with which to add the submissions to the corpus; 
+	 * or null to not add them
+	 * @throws IOException on IO error
+	 */
+	public static void simpleAnalysis(Test test, Collection<String> dirNames,
+			String templateDir, String corpusDir, String origin)
+			throws IOException {
+		simpleAnalysis(Collections.singletonList(test), dirNames, templateDir,
+				corpusDir, origin);
+	}
+
+	/**
+	 * A battery of tests that complement each other: compression distances
+	 * (with several compressors, in a single pass), token counts and 
+	 * winnowing fingerprints.
+	 * @return the tests, to be run with Analysis.applyTests
+	 */
+	public static List<Test> battery() {
+		Test zip = new MultiNCDTest(new ZipFormat(), new Bzip2Format(),
+				new GzipFormat());
+		return Arrays.asList(zip, new VarianceSubtest(zip.getTestKey(), 0.5),
+				new NCDTest(new FastLzFormat()), new TokenCountTest(),
+				new WinnowingTest());
+	}
+
+	/**
+	 * As above, but runs several tests, concurrently where their 
+	 * dependencies allow. Results of each are reported separately; 
+	 * corpus comparisons use only the first one.
+	 * @param tests to apply
+	 * @param dirNames, each of which contains subdirectories to compare
+	 * @param templateDir folder with code provided to all students; or null
+	 * @param corpusDir folder with one corpus per language, as in 
+	 * Corpus.forLanguage; the tokenizer's is used. Or null
+	 * @param origin label with which to add the submissions to the corpus; 
+	 * or null to not add them
+	 * @throws IOException on IO error, or if any test did not finish
+	 */
+	public static void simpleAnalysis(List<Test> tests,
+			Collection<String> dirNames, String templateDir, String corpusDir,
+			String origin) throws IOException {
 
 		// load all sources
 		FileTreeModel ftm = new FileTreeModel();
@@ -77,23 +145,71 @@ public class CommandLineMain {
 
 		// prepare tokenization
 		Analysis.setTokenizerFactory(new AntlrTokenizerFactory());
-		if (test instanceof TokenizingTest) {
-			((TokenizingTest) test).setTokenizer(ac.chooseTokenizer());
+		Tokenizer tokenizer = ac.chooseTokenizer();
+		for (Test test : tests) {
+			if (test instanceof TokenizingTest) {
+				((TokenizingTest) test).setTokenizer(tokenizer);
+			}
+		}
+		if (templateDir != null) {
+			ac.subtractTemplate(Template.fromSources(new SourceSet(new File(
+					templateDir)), tokenizer), tokenizer);
 		}
 
-		// launch test
-		ac.prepareTest(test);
-		ac.applyTest(test);
+		// launch tests
+		Test test = tests.get(0);
+		List<Test> unfinished = Collections.emptyList();
+		if (tests.size() == 1) {
+			ac.prepareTest(test);
+			ac.applyTest(test);
+			if (test.isCancelled()) {
+				unfinished = tests;
+			}
+		} else {
+			unfinished = ac.applyTests(tests);
+		}
+		if (!unfinished.isEmpty()) {
+			// failed workers cancel their tests: results would be partial
+			StringBuilder sb = new StringBuilder();
+			for (Test t : unfinished) {
+				sb.append(sb.length() == 0 ? "" : ", ").append(t.getTestKey());
+			}
+			throw new IOException("Tests did not finish: " + sb);
+		}
 
 		// report results
-		Analysis.Result rs[] = ac.sortTestResults(test.getTestKey());
-		System.out
-				.println("Results in CSV format, sorted by increasing distance");
-		System.out
-				.println("Distance (0=same, 1=very different),StudentA,StudentB");
-		for (Analysis.Result r : rs) {
-			System.out.println(String.format("%1.2f,%s,%s", r.getDist(), r
-					.getA(), r.getB()));
+		Analysis.Result rs[];
+		for (Test t : tests) {
+			if (tests.size() > 1) {
+				System.out.println("Results for " + t.getTestKey());
+			}
+			rs = ac.sortTestResults(t.getTestKey());
+			System.out
+					.println("Results in CSV format, sorted by increasing distance");
+			System.out
+					.println("Distance (0=same, 1=very different),StudentA,StudentB");
+			for (Analysis.Result r : rs) {
+				System.out.println(String.format("%1.2f,%s,%s", r.getDist(), r
+						.getA(), r.getB()));
+			}
+		}
+		if (corpusDir != null) {
+			// token streams are only comparable within a language
+			Corpus corpus = Corpus.forLanguage(new File(corpusDir),
+					AntlrTokenizerFactory.languageOf(tokenizer));
+			ArrayList<Submission> previous = corpus.load();
+			rs = ac.compareWithCorpus(test, previous, CORPUS_MATCHES);
+			System.out.println("Closest matches among " + previous.size()
+					+ " corpus submissions, in CSV format");
+			System.out
+					.println("Distance (0=same, 1=very different),Student,CorpusStudent");
+			for (Analysis.Result r : rs) {
+				System.out.println(String.format("%1.2f,%s,%s", r.getDist(), r
+						.getA(), r.getB()));
+			}
+			if (origin != null) {
+				corpus.addAll(ac.getSubmissions(), origin);
+			}
 		}
 		System.out.println("Test finished! Results available!");
 		for (Submission s : ac.getSubmissions()) {
@@ -123,6 +239,23 @@ public class CommandLineMain {
 				.nargs("*")
 				.help(
 						"Directories to include in comparison. Subdirectories of each should be submissions");
+		parser
+				.addArgument("--template")
+				.help(
+						"Folder with code given to all students, to ignore in comparisons");
+		parser
+				.addArgument("--corpus")
+				.help(
+						"Folder with previous submissions to also compare against, in one subfolder per language");
+		parser
+				.addArgument("--origin")
+				.help(
+						"If set, submissions are added to the corpus, labelled with this origin");
+		parser
+				.addArgument("--all")
+				.action(Arguments.storeTrue())
+				.help(
+						"Run a battery of complementary tests, instead of only zip NCD");
 		Namespace ns = null;
 		try {
 			ns = parser.parseArgs(args);
@@ -131,7 +264,9 @@ public class CommandLineMain {
 			System.exit(1);
 		}
 
-		Test t = new NCDTest(new ZipFormat());
-		simpleAnalysis(t, ns.getList("dirs"));
+		List<Test> tests = ns.getBoolean("all") ? battery() : Collections
+				.singletonList((Test) new NCDTest(new ZipFormat()));
+		simpleAnalysis(tests, ns.getList("dirs"), ns.getString("template"), ns
+				.getString("corpus"), ns.getString("origin"));
 	}
 }
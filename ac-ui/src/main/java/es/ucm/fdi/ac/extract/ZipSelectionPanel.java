@@ -384,6 +384,30 @@ public class ZipSelectionPanel extends JPanel {
 		}
 	}
 
+	/**
+	 * Adds an archive, or a folder within an archive. As in addSubmissionFile,
+	 * if it contains folders, each of them will be considered a submission.
+	 * @param fn
+	 */
+	public void addSubmissionArchiveNode(FileTreeNode fn) {
+		boolean isHierarchy = false;
+		for (FileTreeNode c : fn.getChildren()) {
+			if (c.isDirectory()) {
+				isHierarchy = true;
+				break;
+			}
+		}
+		if (isHierarchy) {
+			for (FileTreeNode c : fn.getChildren()) {
+				if (c.isDirectory()) {
+					addSubmissionNode(c);
+				}
+			}
+		} else {
+			addSubmissionNode(fn);
+		}
+	}
+
 	/**
 	 * Adds a single file. If it happens to be a folder with folders, then each 1st-level subfolder will be
 	 * considered a submission.
@@ -654,8 +678,12 @@ public class ZipSelectionPanel extends JPanel {
 		// Don't do anything if nothing was selected
 		if (jtSources.getSelectionPaths() != null) {
 			for (TreePath tp : jtSources.getSelectionPaths()) {
-				File f = ((FileTreeNode) tp.getLastPathComponent()).getFile();
-				addSubmissionFile(f);
+				FileTreeNode fn = (FileTreeNode) tp.getLastPathComponent();
+				if (fn instanceof ArchiveTreeNode) {
+					addSubmissionArchiveNode(fn);
+				} else {
+					addSubmissionFile(fn.getFile());
+				}
 			}
 		}
 	}
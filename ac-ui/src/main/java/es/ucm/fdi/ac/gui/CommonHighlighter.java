@@ -22,8 +22,7 @@
  */
 package es.ucm.fdi.ac.gui;
 
-import es.ucm.fdi.ac.ptrie.Location;
-import es.ucm.fdi.ac.ptrie.Node;
+import es.ucm.fdi.ac.ptrie.Segment;
 import es.ucm.fdi.ac.stringmap.Mapper;
 import java.awt.Color;
 import java.awt.Component;
@@ -35,6 +34,7 @@ import java.awt.event.MouseEvent;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import javax.swing.JLabel;
 import javax.swing.JMenuItem;
 import javax.swing.JPopupMenu;
@@ -63,49 +63,39 @@ public class CommonHighlighter extends JPopupMenu implements Highlight {
 		this.peer = peer;
 	}
 
-	public CommonHighlighter(ArrayList<Node> sel, Mapper m, final Object base) {
+	/**
+	 * Creates a highlighter for one of the sides of a comparison.
+	 * @param sel segments to highlight, with offsets in the mapper's 
+	 * destination
+	 * @param m mapper to find the original offsets with
+	 * @param side 0 or 1, depending on which document is being highlighted
+	 */
+	public CommonHighlighter(List<Segment> sel, Mapper m, final int side) {
 		this.intervals = new ArrayList<>(sel.size());
 
 		// for debugging only (print in order); disable to get consistent colors!
-		//            sortNodes(sel, base);
+		//            sortSegments(sel, side);
 
 		// color increment
 		float ci = 1f / sel.size();
 		for (int i = 0; i < sel.size(); i++) {
-			Node n = sel.get(i);
+			Segment s = sel.get(i);
 			int j = (i % 2 == 0) ? i / 2 : sel.size() / 2 + i;
 			Color color = Color.getHSBColor(j * ci, 0.10f, 1f);
-			for (Location l : n.getLocations()) {
-				if (l.getBase() == base) {
-					Interval in = new Interval(m.rmap(l.getOffset(), true), m
-							.rmap(l.getOffset() + n.getStringLength(), false),
-							color, n, l);
-					// debugging
-					//                        showSnip("" + base + " " + in.so + "->" + in.eo + " : ", 
-					//                                n.getString());
-					intervals.add(in);
-				}
-			}
+			Interval in = new Interval(m.rmap(s.getStart(side), true), m.rmap(
+					s.getEnd(side), false), color, s);
+			// debugging
+			//                showSnip("" + side + " " + in.so + "->" + in.eo + " : ", 
+			//                        m.getDest().substring(s.getStart(side), s.getEnd(side)));
+			intervals.add(in);
 		}
 	}
 
-	private static void sortNodes(ArrayList<Node> sel, final Object base) {
-		Collections.sort(sel, new Comparator<Node>() {
+	private static void sortSegments(List<Segment> sel, final int side) {
+		Collections.sort(sel, new Comparator<Segment>() {
 
-			public int compare(Node o1, Node o2) {
-				int low1 = Integer.MAX_VALUE;
-				int low2 = Integer.MAX_VALUE;
-				for (Location l : o1.getLocations()) {
-					if (l.getBase() == base) {
-						low1 = Math.min(low1, l.getOffset());
-					}
-				}
-				for (Location l : o2.getLocations()) {
-					if (l.getBase() == base) {
-						low2 = Math.min(low2, l.getOffset());
-					}
-				}
-				return low1 - low2;
+			public int compare(Segment o1, Segment o2) {
+				return o1.getStart(side) - o2.getStart(side);
 			}
 		});
 	}
@@ -153,21 +143,10 @@ public class CommonHighlighter extends JPopupMenu implements Highlight {
 			jl.setOpaque(true);
 			add(jl);
 
-			// if the interval node repeats, offer to scroll to next/prev
-			for (Interval other : intervals) {
-				if (other.node == in.node && other.loc != in.loc) {
-					int line = ta.getLineOfOffset(other.so);
-					int lineOffset = other.so - ta.getLineStartOffset(line);
-					JumpItem ji = new JumpItem(
-							" at " + line + ":" + lineOffset, ta, line,
-							lineOffset);
-					add(ji);
-				}
-			}
-
-			// offer to jump to other side's equivalent interval (will exist)
+			// offer to jump to other side's equivalent interval (will exist;
+			// each segment has exactly one interval per side)
 			for (Interval other : peer.intervals) {
-				if (other.node == in.node) {
+				if (other.segment == in.segment) {
 					int line = peer.ta.getLineOfOffset(other.so);
 					int lineOffset = other.so
 							- peer.ta.getLineStartOffset(line);
@@ -207,15 +186,13 @@ public class CommonHighlighter extends JPopupMenu implements Highlight {
 	private static class Interval {
 		public int so, eo; // start, end
 		public Color color;
-		public Node node;
-		public Location loc;
+		public Segment segment;
 
-		public Interval(int so, int eo, Color color, Node node, Location loc) {
+		public Interval(int so, int eo, Color color, Segment segment) {
 			this.so = so;
 			this.eo = eo;
 			this.color = color;
-			this.node = node;
-			this.loc = loc;
+			this.segment = segment;
 		}
 	}
 
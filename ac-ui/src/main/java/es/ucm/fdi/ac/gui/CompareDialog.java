@@ -24,18 +24,27 @@ package es.ucm.fdi.ac.gui;
 
 import es.ucm.fdi.ac.Submission;
 
-import es.ucm.fdi.ac.ptrie.Node;
-import es.ucm.fdi.ac.ptrie.PTrie;
+import es.ucm.fdi.ac.ptrie.Segment;
+import es.ucm.fdi.ac.ptrie.SuffixArray;
 import es.ucm.fdi.ac.stringmap.Mapper;
+import es.ucm.fdi.ac.walkers.SourceAligner;
+import java.awt.BorderLayout;
+import java.awt.Component;
 import java.awt.Frame;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import javax.swing.JLabel;
+import javax.swing.JPanel;
 import javax.swing.JTabbedPane;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.syntax.jedit.JEditTextArea;
 import org.syntax.jedit.SyntaxDocument;
 import org.syntax.jedit.tokenmarker.*;
@@ -50,9 +59,17 @@ import static es.ucm.fdi.util.I18N.m;
  */
 public class CompareDialog extends javax.swing.JDialog {
 
+	private static final Logger log = LogManager.getLogger(CompareDialog.class);
+
 	private Submission subjectA = null;
 	private Submission subjectB = null;
 
+	/** maximum number of source panels kept for each side */
+	public static final int MAX_OPEN_SOURCES = 8;
+
+	/** incremented on each highlight request; stale results are dropped */
+	private int highlightGeneration = 0;
+
 	/** Creates new form CompareDialog */
 	public CompareDialog(Frame parent, boolean modal) {
 		super(parent, modal);
@@ -101,9 +118,12 @@ public class CompareDialog extends javax.swing.JDialog {
 	}
 
 	/**
-	 * Highlights N most similar segments; currently uses 'exact' similarity
+	 * Highlights N most similar segments. Uses either 'exact' similarity 
+	 * (ignoring whitespace), or token-level similarity (which also ignores
+	 * comments, identifier names and literals). Segments are found in a
+	 * background thread, and highlighted once available.
 	 */
-	public void startHighlight(int numSegs) {
+	public void startHighlight(final int numSegs) {
 
 		if (subjectA == null || subjectB == null) {
 			return;
@@ -113,60 +133,105 @@ public class CompareDialog extends javax.swing.JDialog {
 		int selA = jTabbedPaneA.getSelectedIndex();
 		int selB = jTabbedPaneB.getSelectedIndex();
 
-		// build PTrie (min run length = 10)
-		PTrie pt = new PTrie();
-		JEditTextArea aa = getJEditArea(0, selA);
-		JEditTextArea ab = getJEditArea(1, selB);
-		Mapper ma = new Mapper(aa.getText(), "\\p{javaWhitespace}+", "");
-		Mapper mb = new Mapper(ab.getText(), "\\p{javaWhitespace}+", "");
-		pt.add(ma.getDest(), subjectA);
-		pt.add(mb.getDest(), subjectB);
-		ArrayList<Node> l = new ArrayList<Node>();
-		for (Node n : pt.findRare(2, 2)) {
-			if (n.getData().length() > 10) {
-				l.add(n);
-			}
-		}
-		// sort by size (largest first)
-		Collections.sort(l, new Comparator<Node>() {
-			public int compare(Node a, Node b) {
-				return (b.getEnd() - b.getStart())
-						- (a.getEnd() - a.getStart());
-			}
-		});
-		// choose first numSeg non-overlapping ones (requires O(N*N) checks...)
-		ArrayList<Node> sel = new ArrayList<Node>();
-		while (sel.size() < numSegs && !l.isEmpty()) {
-			Node c = l.remove(0);
-			boolean ok = true;
-			for (Node n : sel) {
-				if (n.overlaps(c)) {
-					ok = false;
-					break;
+		final LazySourceTab ta = getSourceTab(jTabbedPaneA, selA);
+		final LazySourceTab tb = getSourceTab(jTabbedPaneB, selB);
+		final String textA = getJEditArea(0, selA).getText();
+		final String textB = getJEditArea(1, selB).getText();
+		final String nameA = subjectA.getSourceName(selA);
+		final boolean byTokens = jcbTokens.isSelected();
+		final int generation = ++highlightGeneration;
+
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				final Mapper ma = new Mapper(textA, "\\p{javaWhitespace}+", "");
+				final Mapper mb = new Mapper(textB, "\\p{javaWhitespace}+", "");
+				ArrayList<Segment> found = byTokens ? findTokenSegments(nameA,
+						ma, mb, numSegs) : null;
+				if (found == null) {
+					// min run length = 10
+					found = SuffixArray.findCommonSegments(ma.getDest(), mb
+							.getDest(), 10, numSegs);
 				}
+				final ArrayList<Segment> sel = found;
+				java.awt.EventQueue.invokeLater(new Runnable() {
+					public void run() {
+						// skip if texts or options changed in the meantime
+						if (generation == highlightGeneration) {
+							highlight(sel, ma, ta, mb, tb);
+						}
+					}
+				});
 			}
-			if (ok) {
-				sel.add(c);
-				//                System.err.println("Added segment: " + c.getLength());
+		}, "highlighter");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Finds token-level common segments.
+	 * @return segments, with offsets in each mapper's destination; or null
+	 * if no tokenizer is available for this kind of source.
+	 */
+	private static ArrayList<Segment> findTokenSegments(String name,
+			Mapper ma, Mapper mb, int numSegs) {
+		SourceAligner aligner = SourceAligner.forName(name);
+		if (aligner == null) {
+			return null;
+		}
+		List<SourceAligner.Tile> tiles;
+		try {
+			tiles = aligner.align(ma.getSource(), mb.getSource());
+		} catch (IllegalArgumentException iae) {
+			log.warn("Could not align sources by tokens", iae);
+			return null;
+		}
+		ArrayList<Segment> segments = new ArrayList<>();
+		for (SourceAligner.Tile t : tiles) {
+			if (segments.size() == numSegs) {
+				break;
 			}
+			// tiles start and end with tokens, which are never whitespace
+			segments.add(new Segment(ma.map(t.startA, true), ma.map(
+					t.endA - 1, false) + 1, mb.map(t.startB, true), mb.map(
+					t.endB - 1, false) + 1));
 		}
+		return segments;
+	}
 
-		// build the highlight
-		CommonHighlighter ha = new CommonHighlighter(sel, ma, subjectA);
-		CommonHighlighter hb = new CommonHighlighter(sel, mb, subjectB);
+	private void highlight(ArrayList<Segment> sel, Mapper ma, LazySourceTab ta,
+			Mapper mb, LazySourceTab tb) {
+		CommonHighlighter ha = new CommonHighlighter(sel, ma, 0);
+		CommonHighlighter hb = new CommonHighlighter(sel, mb, 1);
 		ha.setPeer(hb);
 		hb.setPeer(ha);
-		aa.getPainter().addCustomHighlight(ha);
-		aa.setRightClickPopup(ha);
-		aa.setCaretVisible(false);
-		ab.getPainter().addCustomHighlight(hb);
-		ab.setRightClickPopup(hb);
-		ab.setCaretVisible(false);
+		ta.setHighlighter(ha);
+		tb.setHighlighter(hb);
+	}
+
+	private static void applyHighlighter(JEditTextArea area, CommonHighlighter h) {
+		area.getPainter().addCustomHighlight(h);
+		area.setRightClickPopup(h);
+		area.setCaretVisible(false);
+		area.repaint();
 	}
 
 	public JEditTextArea getJEditArea(int pos, int source) {
-		return (JEditTextArea) ((pos == 0) ? jTabbedPaneA
-				.getComponentAt(source) : jTabbedPaneB.getComponentAt(source));
+		return getSourceArea(pos == 0 ? jTabbedPaneA : jTabbedPaneB, source);
+	}
+
+	/**
+	 * Returns the text area for a source tab, building it if necessary.
+	 * @param jtp tabbed pane, filled with addSubmission
+	 * @param source index of tab
+	 */
+	public static JEditTextArea getSourceArea(JTabbedPane jtp, int source) {
+		LazyTabLoader loader = (LazyTabLoader) jtp
+				.getClientProperty(LazyTabLoader.class);
+		return loader.load(getSourceTab(jtp, source));
+	}
+
+	private static LazySourceTab getSourceTab(JTabbedPane jtp, int source) {
+		return (LazySourceTab) jtp.getComponentAt(source);
 	}
 
 	public static JEditTextArea getSourcePanel(String source, String extension) {
@@ -196,19 +261,118 @@ public class CompareDialog extends javax.swing.JDialog {
 		return jeta;
 	}
 
+	/**
+	 * Adds a tab for each source in a submission. Source panels are only
+	 * built once their tab is selected, and at most MAX_OPEN_SOURCES are
+	 * kept for each tabbed pane; the least recently selected are discarded.
+	 */
 	public static void addSubmission(Submission s, JTabbedPane jtp) {
+		LazyTabLoader loader = (LazyTabLoader) jtp
+				.getClientProperty(LazyTabLoader.class);
+		if (loader == null) {
+			loader = new LazyTabLoader();
+			jtp.putClientProperty(LazyTabLoader.class, loader);
+			jtp.addChangeListener(loader);
+		}
+		int first = jtp.getTabCount();
 		for (int i = 0; i < s.getSources().size(); i++) {
-			String source = s.getSourceCode(i);
-			String sourceName = s.getSourceName(i);
-			String extension = sourceName
-					.substring(sourceName.lastIndexOf('.') + 1);
-			jtp.add(s.getId() + ":" + sourceName, getSourcePanel(source,
-					extension));
-			jtp.setToolTipTextAt(i, s.getOriginalPath());
+			jtp.add(s.getId() + ":" + s.getSourceName(i), new LazySourceTab(s,
+					i));
+			jtp.setToolTipTextAt(first + i, s.getOriginalPath());
 		}
 		if (s.getSources().isEmpty()) {
 			jtp.add(new JLabel("<html>" + m("Compare.NoSources") + "</html>"));
 		}
+		loader.stateChanged(new ChangeEvent(jtp));
+	}
+
+	/**
+	 * A tab that builds its source panel on demand. Wrapped text and 
+	 * highlights are kept here, so that they survive unloading.
+	 */
+	private static class LazySourceTab extends JPanel {
+		private final Submission s;
+		private final int index;
+		private JEditTextArea area;
+		/** text to display instead of the source, such as wrapped source */
+		private String text;
+		private CommonHighlighter highlighter;
+
+		public LazySourceTab(Submission s, int index) {
+			super(new BorderLayout());
+			this.s = s;
+			this.index = index;
+		}
+
+		public JEditTextArea load() {
+			if (area == null) {
+				String sourceName = s.getSourceName(index);
+				String extension = sourceName.substring(sourceName
+						.lastIndexOf('.') + 1);
+				area = getSourcePanel(text != null ? text : s
+						.getSourceCode(index), extension);
+				if (highlighter != null) {
+					applyHighlighter(area, highlighter);
+				}
+				add(area, BorderLayout.CENTER);
+				revalidate();
+			}
+			return area;
+		}
+
+		public void setText(String text) {
+			this.text = text;
+			if (area != null) {
+				area.setText(text);
+			}
+		}
+
+		public void setHighlighter(CommonHighlighter highlighter) {
+			this.highlighter = highlighter;
+			if (area != null) {
+				applyHighlighter(area, highlighter);
+			}
+		}
+
+		public void unload() {
+			if (area != null) {
+				remove(area);
+				area = null;
+			}
+		}
+	}
+
+	/**
+	 * Loads source tabs as they are selected, unloading the least-recently
+	 * used ones beyond MAX_OPEN_SOURCES
+	 */
+	private static class LazyTabLoader implements ChangeListener {
+		private final LinkedHashMap<LazySourceTab, Boolean> loaded = new LinkedHashMap<LazySourceTab, Boolean>(
+				16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<LazySourceTab, Boolean> eldest) {
+				if (size() > MAX_OPEN_SOURCES) {
+					eldest.getKey().unload();
+					return true;
+				}
+				return false;
+			}
+		};
+
+		public JEditTextArea load(LazySourceTab tab) {
+			JEditTextArea area = tab.load();
+			loaded.put(tab, Boolean.TRUE);
+			return area;
+		}
+
+		@Override
+		public void stateChanged(ChangeEvent e) {
+			Component c = ((JTabbedPane) e.getSource()).getSelectedComponent();
+			if (c instanceof LazySourceTab) {
+				load((LazySourceTab) c);
+			}
+		}
 	}
 
 	private String wrapText(String text, int maxCols) {
@@ -237,10 +401,10 @@ public class CompareDialog extends javax.swing.JDialog {
 		int selA = jTabbedPaneA.getSelectedIndex();
 		int selB = jTabbedPaneB.getSelectedIndex();
 
-		JEditTextArea aa = getJEditArea(0, selA);
-		JEditTextArea ab = getJEditArea(1, selB);
-		aa.setText(wrapText(subjectA.getSourceCode(selA), maxCols));
-		ab.setText(wrapText(subjectB.getSourceCode(selB), maxCols));
+		getSourceTab(jTabbedPaneA, selA).setText(
+				wrapText(subjectA.getSourceCode(selA), maxCols));
+		getSourceTab(jTabbedPaneB, selB).setText(
+				wrapText(subjectB.getSourceCode(selB), maxCols));
 		startHighlight(Integer.parseInt(""
 				+ jcbNumSimilarities.getSelectedItem()));
 	}
@@ -267,6 +431,7 @@ public class CompareDialog extends javax.swing.JDialog {
 		jLabel4 = new javax.swing.JLabel();
 		jbHighlight = new javax.swing.JButton();
 		jButton1 = new javax.swing.JButton();
+		jcbTokens = new javax.swing.JCheckBox();
 
 		setDefaultCloseOperation(javax.swing.WindowConstants.DISPOSE_ON_CLOSE);
 
@@ -320,6 +485,15 @@ public class CompareDialog extends javax.swing.JDialog {
 		});
 		jPanel4.add(jbHighlight);
 
+		jcbTokens.setText("by tokens");
+		jcbTokens.setBackground(java.awt.Color.lightGray);
+		jcbTokens.addActionListener(new java.awt.event.ActionListener() {
+			public void actionPerformed(java.awt.event.ActionEvent evt) {
+				jcbNumSimilaritiesActionPerformed(evt);
+			}
+		});
+		jPanel4.add(jcbTokens);
+
 		jPanel1.add(jPanel4);
 
 		jButton1.setText("close window");
@@ -374,5 +548,6 @@ public class CompareDialog extends javax.swing.JDialog {
 	private javax.swing.JButton jbHighlight;
 	private javax.swing.JComboBox<Object> jcbNumColumnsWrap;
 	private javax.swing.JComboBox<Object> jcbNumSimilarities;
+	private javax.swing.JCheckBox jcbTokens;
 	// End of variables declaration//GEN-END:variables
 }
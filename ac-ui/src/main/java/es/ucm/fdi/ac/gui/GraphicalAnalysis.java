@@ -26,7 +26,11 @@ import es.ucm.fdi.ac.Analysis;
 import es.ucm.fdi.ac.test.Test;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import javax.swing.JDialog;
 import javax.swing.JOptionPane;
 import static es.ucm.fdi.util.I18N.m;
@@ -36,7 +40,8 @@ import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
 
 /**
- * A small dialog that provides feedback on the progress of a test, and
+ * A small dialog that provides feedback on the progress of a test (or of 
+ * a battery of tests, run concurrently), and
  * allows the user to abort the test in any moment. Once finished, a
  * dialog offers to save results, and a callback is, uh, called.
  *
@@ -54,19 +59,29 @@ public class GraphicalAnalysis extends JDialog implements ActionListener {
 	private javax.swing.JSeparator jSeparator1;
 
 	private javax.swing.Timer t;
-	private Test test;
+	private Collection<Test> tests;
 	private String testName;
 	private Analysis ac;
 	private Runnable callback;
 	private long startTime;
 	private boolean isTestFinished = false;
+	private volatile boolean isCancelledByUser = false;
 
 	public GraphicalAnalysis(Analysis ac, String testName, Test test,
 			Runnable callback) {
+		this(ac, testName, Collections.singletonList(test), callback);
+	}
+
+	/**
+	 * Runs several tests, respecting their dependencies
+	 * @see Analysis#applyTests(Collection)
+	 */
+	public GraphicalAnalysis(Analysis ac, String testName,
+			Collection<Test> tests, Runnable callback) {
 		this.ac = ac;
 		this.callback = callback;
 		this.testName = testName;
-		this.test = test;
+		this.tests = tests;
 		initComponents();
 		setSize(300, 200);
 		setTitle(testName + ": " + m("Analysis.Preprocessing"));
@@ -88,25 +103,44 @@ public class GraphicalAnalysis extends JDialog implements ActionListener {
 		private String message;
 
 		public void run() {
+			List<Test> unfinished = Collections.emptyList();
 			try {
-				ThreadContext.push("T-" + test);
-				ac.prepareTest(test);
-				java.awt.EventQueue.invokeLater(new Runnable() {
-					public void run() {
-						setTitle(testName + ": " + m("Analysis.Comparing"));
+				if (tests.size() == 1) {
+					Test test = tests.iterator().next();
+					ThreadContext.push("T-" + test);
+					ac.prepareTest(test);
+					java.awt.EventQueue.invokeLater(new Runnable() {
+						public void run() {
+							setTitle(testName + ": "
+									+ m("Analysis.Comparing"));
+						}
+					});
+
+					ac.applyTest(test);
+					ThreadContext.pop();
+					if (test.isCancelled()) {
+						unfinished = Collections.singletonList(test);
 					}
-				});
-
-				ac.applyTest(test);
+				} else {
+					unfinished = ac.applyTests(tests);
+				}
+				if (isCancelledByUser) {
+					// dialog already gone; nothing to report
+					return;
+				} else if (!unfinished.isEmpty()) {
+					// failed workers cancel their tests: results are partial
+					throw new IOException(unfinished.size() + " of "
+							+ tests.size() + " tests did not finish, "
+							+ "starting with " + unfinished.get(0).getTestKey());
+				}
 				isTestFinished = true;
-				ThreadContext.pop();
-			} catch (RuntimeException e) {
+			} catch (RuntimeException | IOException e) {
 				java.io.StringWriter sw = new java.io.StringWriter();
 				e.printStackTrace(new PrintWriter(sw));
 				message = "<html><b>" + e.toString() + "</b><br>" + "<pre>"
 						+ sw.toString() + "</pre></html>";
 
-				test.setCancelled(true);
+				cancelAll();
 				java.awt.EventQueue.invokeLater(new Runnable() {
 					public void run() {
 						JOptionPane.showMessageDialog(null, message, "Error",
@@ -118,8 +152,25 @@ public class GraphicalAnalysis extends JDialog implements ActionListener {
 		}
 	}
 
+	/**
+	 * @return the average progress of all tests
+	 */
+	private double getProgress() {
+		double p = 0;
+		for (Test test : tests) {
+			p += test.getProgress();
+		}
+		return p / tests.size();
+	}
+
+	private void cancelAll() {
+		for (Test test : tests) {
+			test.setCancelled(true);
+		}
+	}
+
 	public void actionPerformed(ActionEvent evt) {
-		double p = test.getProgress();
+		double p = getProgress();
 		long elapsed = System.currentTimeMillis() - startTime;
 		jpProgress.setValue((int) (p * 100));
 		double v = (elapsed / p - elapsed) / 1000;
@@ -142,7 +193,8 @@ public class GraphicalAnalysis extends JDialog implements ActionListener {
 	}
 
 	public void cancel() {
-		test.setCancelled(true);
+		isCancelledByUser = true;
+		cancelAll();
 		t.stop();
 		dispose();
 		return;
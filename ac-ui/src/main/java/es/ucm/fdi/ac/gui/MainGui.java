@@ -24,18 +24,22 @@ package es.ucm.fdi.ac.gui;
 
 import es.ucm.fdi.ac.Analysis;
 import es.ucm.fdi.ac.SourceSet;
+import es.ucm.fdi.ac.Tokenizer;
 
 // tests
 import es.ucm.fdi.ac.parser.AntlrTokenizerFactory;
+import es.ucm.fdi.ac.test.MultiNCDTest;
 import es.ucm.fdi.ac.test.NCDTest;
 import es.ucm.fdi.ac.test.RawNCDTest;
 import es.ucm.fdi.ac.test.Test;
 import es.ucm.fdi.ac.test.TokenCountTest;
 import es.ucm.fdi.ac.test.TokenizingTest;
 import es.ucm.fdi.ac.test.VarianceSubtest;
+import es.ucm.fdi.ac.test.WinnowingTest;
 import es.ucm.fdi.util.I18N;
 import es.ucm.fdi.util.archive.ArchiveFormat;
 import es.ucm.fdi.util.archive.Bzip2Format;
+import es.ucm.fdi.util.archive.FastLzFormat;
 import es.ucm.fdi.util.FileUtils;
 import es.ucm.fdi.util.archive.GzipFormat;
 import es.ucm.fdi.util.archive.ZipFormat;
@@ -130,6 +134,10 @@ public class MainGui extends JPanel {
 		addTestType("Variance Subtest on TokenCountTest", vt);
 		tks.add(vt.getTestKey());
 
+		t = new WinnowingTest();
+		addTestType("Winnowing fingerprint test", t);
+		tks.add(t.getTestKey());
+
 		ArchiveFormat afs[] = new ArchiveFormat[] { new ZipFormat(),
 				new Bzip2Format(), new GzipFormat() };
 		for (ArchiveFormat af : afs) {
@@ -141,6 +149,11 @@ public class MainGui extends JPanel {
 					+ " NCD Test", t);
 			tks.add(t.getTestKey());
 		}
+		t = new NCDTest(new FastLzFormat());
+		addTestType("Fast LZ NCD Test", t);
+		tks.add(t.getTestKey());
+		t = new MultiNCDTest(afs);
+		addTestType("Zip, Bzip2 and Gzip NCD Tests (single pass)", t);
 		for (ArchiveFormat af : afs) {
 			t = new RawNCDTest(af);
 			addTestType("Raw "
@@ -148,6 +161,7 @@ public class MainGui extends JPanel {
 					+ " NCD Test", t);
 			tks.add(t.getTestKey());
 		}
+		addBattery();
 
 		jtfResults.setText(m("Test.None"));
 		jtfSources.setText(m("Test.None"));
@@ -176,6 +190,37 @@ public class MainGui extends JPanel {
 		}
 	}
 
+	/**
+	 * Adds a menu entry to run all tests at once. The single-pass NCD test
+	 * replaces the separate zip, bzip2 and gzip ones, which would 
+	 * otherwise calculate the same results.
+	 */
+	private void addBattery() {
+		final ArrayList<Test> battery = new ArrayList<>();
+		HashSet<String> provided = new HashSet<>();
+		for (Test t : testNameLookup.values()) {
+			if (t instanceof MultiNCDTest) {
+				provided.add(t.getTestKey());
+				provided.addAll(Arrays.asList(t.getProvides()));
+			}
+		}
+		for (Test t : testNameLookup.values()) {
+			if (t instanceof MultiNCDTest
+					|| !provided.contains(t.getTestKey())) {
+				battery.add(t);
+			}
+		}
+
+		JMenuItem jmiBattery = new JMenuItem(m("Test.Menu.Battery"));
+		jmiBattery.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				launchTests(battery);
+			}
+		});
+		jmTest.addSeparator();
+		jmTest.add(jmiBattery);
+	}
+
 	private void initHelpPanel() {
 		tbHelp.setEnabled(true);
 		tbHelp.setSelected(true);
@@ -334,6 +379,47 @@ public class MainGui extends JPanel {
 		}
 	}
 
+	/**
+	 * Runs several tests concurrently, respecting their dependencies; tests
+	 * that already have results are skipped.
+	 * @param all tests to run
+	 */
+	public void launchTests(Collection<Test> all) {
+		if (ac == null || (sourcesDir == null && jtfSources.isEnabled())) {
+			return;
+		}
+
+		ArrayList<Test> pending = new ArrayList<>();
+		Tokenizer tokenizer = null;
+		for (Test t : all) {
+			if (ac.hasResultsForKey(t.getTestKey())) {
+				continue;
+			}
+			if (t instanceof TokenizingTest) {
+				if (tokenizer == null) {
+					tokenizer = ac.chooseTokenizer();
+				}
+				((TokenizingTest) t).setTokenizer(tokenizer);
+			}
+			pending.add(t);
+		}
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		log.info("Starting " + pending.size() + " tests");
+		analysis = new GraphicalAnalysis(ac, m("Test.Menu.Battery"),
+				pending, new Runnable() {
+					public void run() {
+						updateTestMenu();
+						if (currentTest != null) {
+							showResults(currentTest.getTestKey());
+						}
+					}
+				});
+		analysis.start();
+	}
+
 	/**
 	 * internal class used from launchTest that will pop up results
 	 * when analysis is finished
@@ -38,6 +38,10 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import javax.swing.JComboBox;
 import javax.swing.JComponent;
@@ -79,15 +83,88 @@ public class ACHistogram {
 	/**
 	 * Creates a new instance of HistogramModel, using values for all samples
 	 */
-	public static HistogramModel allSubmissionsModel(Analysis ac, String testKey) {
-		HistogramModel m = new HistogramModel();
-		Analysis.Result[] R = ac.sortTestResults(testKey);
-		for (int i = 0; i < R.length; i++) {
-			m.addLabelledPoint(R[i].getDist(), R[i].getA() + "," + R[i].getB());
+	public static HistogramModel allSubmissionsModel(Analysis ac,
+			final String testKey) {
+		final Submission[] subs = ac.getSubmissions();
+
+		// pair labels are only built for the bins that get inspected
+		HistogramModel m = new BinnedHistogramModel(
+				BinnedHistogramModel.DEFAULT_BINS, (min, max, out) -> {
+					for (int i = 0; i < subs.length; i++) {
+						float[] F = (float[]) subs[i].getData(testKey);
+						for (int j = 0; j < i; j++) {
+							if (F[j] >= min && F[j] < max) {
+								out.add(subs[i] + "," + subs[j]);
+							}
+						}
+					}
+				});
+		for (int i = 0; i < subs.length; i++) {
+			float[] F = (float[]) subs[i].getData(testKey);
+			for (int j = 0; j < i; j++) {
+				m.addPoint(F[j]);
+			}
 		}
 		return m;
 	}
 
+	/**
+	 * Suggested thresholds for all rows of a test, as calculated by 
+	 * Hampel.hampelRows. Only valid while the rows do not change.
+	 */
+	private static class SuggestedThresholds {
+		private final float[][] rows;
+		private final List<List<Double>> thresholds;
+
+		private SuggestedThresholds(float[][] rows) {
+			this.rows = rows;
+			this.thresholds = Hampel.hampelRows(rows);
+		}
+
+		private boolean isValidFor(Submission[] subs, String testKey) {
+			if (subs.length != rows.length) {
+				return false;
+			}
+			for (int i = 0; i < subs.length; i++) {
+				if (subs[i].getData(testKey) != rows[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/** suggestions, cached per analysis and test key */
+	private static final Map<Analysis, HashMap<String, SuggestedThresholds>> suggestions = new WeakHashMap<>();
+
+	/**
+	 * Returns suggested (Hampel) thresholds for a submission. The first 
+	 * request for a test calculates, in parallel, those of all submissions.
+	 */
+	public static List<Double> getSuggestedThresholds(Analysis ac,
+			Submission s, String testKey) {
+		Submission[] subs = ac.getSubmissions();
+		SuggestedThresholds st;
+		synchronized (suggestions) {
+			HashMap<String, SuggestedThresholds> byTest = suggestions
+					.computeIfAbsent(ac, k -> new HashMap<>());
+			st = byTest.get(testKey);
+			if (st == null || !st.isValidFor(subs, testKey)) {
+				float[][] rows = new float[subs.length][];
+				for (int i = 0; i < subs.length; i++) {
+					rows[i] = (float[]) subs[i].getData(testKey);
+				}
+				st = new SuggestedThresholds(rows);
+				byTest.put(testKey, st);
+			}
+		}
+		int i = s.getInternalId();
+		if (i < 0 || i >= subs.length || subs[i] != s) {
+			i = Arrays.asList(subs).indexOf(s);
+		}
+		return st.thresholds.get(i);
+	}
+
 	/**
 	 * Creates a new instance of HistogramModel; but using only the values
 	 * for a single sample
@@ -98,11 +175,7 @@ public class ACHistogram {
 		boolean firstZero = true; // the first zero is ignored
 		float[] f = (float[]) s.getData(testKey);
 		if (suggest) {
-			double[] d = new double[f.length];
-			for (int i = 0; i < f.length; i++) {
-				d[i] = f[i];
-			}
-			m.setHighlights(Hampel.hampel(d));
+			m.setHighlights(getSuggestedThresholds(ac, s, testKey));
 		}
 		for (int i = 0; i < f.length; i++) {
 			if (f[i] == 0 && firstZero) {
@@ -0,0 +1,212 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.ac.hist;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A histogram model for very large numbers of points in the [0, 1] range.
+ * Points are counted into fixed-width bins; labels are not stored at all, 
+ * but requested from a LabelSource when needed (typically, when a bin is 
+ * hovered or clicked). Memory use depends only on the number of bins.
+ *
+ * Points are only distinguished down to bin resolution: 'nearest points'
+ * are the lowest values seen in each bin, and counts include all bins 
+ * that start within the requested range.
+ *
+ * @author mfreire
+ */
+public class BinnedHistogramModel extends HistogramModel {
+
+	/**
+	 * Finds labels for points, on demand.
+	 */
+	public interface LabelSource {
+		/**
+		 * Adds labels of all points with values in [min, max) to 'out'
+		 */
+		void collectLabels(float min, float max, List<Object> out);
+	}
+
+	public static final int DEFAULT_BINS = 1 << 14;
+
+	private final int[] counts;
+	/** lowest value seen in each bin; only valid if count is non-zero */
+	private final float[] lowest;
+	/** cumulative[i] = total count in bins [0, i); rebuilt when stale */
+	private int[] cumulative;
+	private final LabelSource labelSource;
+
+	// last labels retrieved, since hovering asks repeatedly for the same bin
+	private int lastLabelBin = -1;
+	private ArrayList<Object> lastLabels;
+
+	public BinnedHistogramModel(int bins, LabelSource labelSource) {
+		this.counts = new int[bins];
+		this.lowest = new float[bins];
+		this.labelSource = labelSource;
+	}
+
+	private int binFor(float f) {
+		if (!(f > 0)) { // also catches NaN
+			return 0;
+		}
+		return Math.min(counts.length - 1, (int) (f * counts.length));
+	}
+
+	private float binStart(int bin) {
+		return (float) bin / counts.length;
+	}
+
+	@Override
+	public void addPoint(float f) {
+		int b = binFor(f);
+		if (counts[b] == 0 || f < lowest[b]) {
+			lowest[b] = f;
+		}
+		counts[b]++;
+		cumulative = null;
+		lastLabelBin = -1;
+	}
+
+	/**
+	 * Labels are provided by the LabelSource; so they are ignored here
+	 */
+	@Override
+	public void addLabelledPoint(float f, Object label) {
+		addPoint(f);
+	}
+
+	@Override
+	public void addAllPoints(Collection<Float> F) {
+		for (float f : F)
+			addPoint(f);
+	}
+
+	@Override
+	public void addAllPoints(float[] F) {
+		for (float f : F)
+			addPoint(f);
+	}
+
+	private int[] getCumulative() {
+		if (cumulative == null) {
+			int[] c = new int[counts.length + 1];
+			for (int i = 0; i < counts.length; i++) {
+				c[i + 1] = c[i] + counts[i];
+			}
+			cumulative = c;
+		}
+		return cumulative;
+	}
+
+	@Override
+	public float getLowest() {
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] != 0) {
+				return lowest[i];
+			}
+		}
+		throw new NoSuchElementException("Empty histogram");
+	}
+
+	@Override
+	public float getNearestPoint(float f) {
+
+		// ensure 'f' is valid
+		if (Float.isInfinite(f) || Float.isNaN(f)) {
+			f = 0;
+		}
+
+		int b = binFor(f);
+		for (int d = 0; d < counts.length; d++) {
+			int lo = b - d;
+			int hi = b + d;
+			if (lo < 0 && hi >= counts.length) {
+				break;
+			}
+			boolean hasLo = lo >= 0 && counts[lo] != 0;
+			boolean hasHi = hi < counts.length && counts[hi] != 0;
+			if (hasLo && hasHi) {
+				return (f - lowest[lo] > lowest[hi] - f) ? lowest[hi]
+						: lowest[lo];
+			} else if (hasLo) {
+				return lowest[lo];
+			} else if (hasHi) {
+				return lowest[hi];
+			}
+		}
+		throw new NoSuchElementException("Empty histogram, no nearest point");
+	}
+
+	/**
+	 * Returns labels for all points in the same bin as 'f'.
+	 */
+	@Override
+	public ArrayList<Object> getLabelsForPoint(float f) {
+		int b = binFor(f);
+		if (counts[b] == 0) {
+			return null;
+		}
+		if (b != lastLabelBin) {
+			ArrayList<Object> labels = new ArrayList<>(counts[b]);
+			float max = (b == counts.length - 1) ? Float.MAX_VALUE
+					: binStart(b + 1);
+			float min = (b == 0) ? -Float.MAX_VALUE : binStart(b);
+			labelSource.collectLabels(min, max, labels);
+			lastLabels = labels;
+			lastLabelBin = b;
+		}
+		return lastLabels;
+	}
+
+	@Override
+	public int count(float min, float max) {
+		if (min > max) {
+			System.err.println("Error: min > max in HistogramModel.count()");
+			return 0;
+		}
+		int[] c = getCumulative();
+		int lo = (min <= 0) ? 0 : (min >= 1) ? counts.length : (int) Math
+				.ceil(min * counts.length);
+		int hi = (max <= 0) ? 0 : (max >= 1) ? counts.length : (int) Math
+				.ceil(max * counts.length);
+		return lo >= hi ? 0 : c[hi] - c[Math.min(lo, hi)];
+	}
+
+	@Override
+	public float getLowSkip() {
+		float first = getLowest();
+		float other = first;
+		for (int i = 0, seen = 0; i < counts.length && seen < 4; i++) {
+			if (counts[i] != 0) {
+				other = lowest[i];
+				seen++;
+			}
+		}
+		return other - first;
+	}
+}
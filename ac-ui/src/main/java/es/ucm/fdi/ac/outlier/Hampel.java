@@ -22,11 +22,19 @@
  */
 package es.ucm.fdi.ac.outlier;
 
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
 import org.apache.commons.math.stat.StatUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * @author Manuel Cebrian (manuel.cebrian-at-uam.es)
@@ -68,6 +76,8 @@ import org.apache.commons.math.stat.StatUtils;
 
 public class Hampel {
 
+	private static final Logger log = LogManager.getLogger(Hampel.class);
+
 	/** 
 	 * median/stdDistDevEstimator is a  robust estimator for the deviation of 
 	 * the standard distribution (see [2])
@@ -81,6 +91,20 @@ public class Hampel {
 	/** Default montecarlo size (number of gaussian samples) */
 	private static final int nMontecarlos = 1000;
 
+	/** Sample sizes (rows) in the precomputed montecarlo grid */
+	private static final double[] defaultEnes = { 2, 5, 10, 20, 40, 80, 160,
+			320, 640, 1280, 2560, 5120, 10240 };
+
+	/** Alpha values (columns) in the precomputed montecarlo grid */
+	private static final double[] defaultAlfas = { 0.005, 0.01, 0.025, 0.05,
+			0.075, 0.1, 0.2, 0.25, 0.5, 0.75 };
+
+	/** Seed for the precomputed montecarlo grid, for reproducibility */
+	private static final long defaultSeed = 0x4841_4d50_454cL;
+
+	/** Resource with the precomputed montecarlo grid */
+	private static final String kGridResource = "hampel-k.txt";
+
 	/** A very small number; results will are guaranteed to fall between EPSILON and 1-EPSILON */
 	private static final double EPSILON = 0.000001;
 
@@ -89,24 +113,62 @@ public class Hampel {
 	 * using default 'alpha' values
 	 */
 	public static List<Double> hampel(double[] array) {
+		double[] work = array.clone();
+		double m = select(work, work.length);
+		double s = madn(work, m);
+		ArrayList<Double> al = new ArrayList<Double>();
+		for (double alpha : defaultAlphaValues) {
+			al.add(threshold(analyticK(array.length, alpha), m, s));
+		}
+		return al;
+	}
+
+	/**
+	 * Calculate the threshold identifier for this distribution, using 
+	 * using default 'alpha' values. Avoids copying the input into a 
+	 * double[] beforehand.
+	 */
+	public static List<Double> hampel(float[] array) {
+		double[] work = new double[array.length];
+		for (int i = 0; i < array.length; i++) {
+			work[i] = array[i];
+		}
+		double m = select(work, work.length);
+		double s = madn(work, m);
 		ArrayList<Double> al = new ArrayList<Double>();
 		for (double alpha : defaultAlphaValues) {
-			al.add(hampel(analyticK(array.length, alpha), array));
+			al.add(threshold(analyticK(array.length, alpha), m, s));
 		}
 		return al;
 	}
 
+	/**
+	 * Calculates thresholds (as in hampel(float[])) for each of a series
+	 * of rows, in parallel.
+	 * @param rows to calculate thresholds for; rows are not modified
+	 * @return the list of default thresholds for each row
+	 */
+	public static List<List<Double>> hampelRows(final float[][] rows) {
+		@SuppressWarnings("unchecked")
+		final List<Double>[] results = new List[rows.length];
+		IntStream.range(0, rows.length).parallel().forEach(
+				i -> results[i] = hampel(rows[i]));
+		return Arrays.asList(results);
+	}
+
 	/**
 	 * calculate the threshold identifier for a distribution, given a 
 	 * 'k' value. Does not return negative values, even when Hampel generally
 	 * could.
 	 */
 	public static double hampel(double k, double[] array) {
+		double[] work = array.clone();
+		double m = select(work, work.length);
+		return threshold(k, m, madn(work, m));
+	}
 
-		double m = median(array);
-		double s = madn(array);
+	private static double threshold(double k, double m, double s) {
 		double v = Math.max(EPSILON, m - k * s);
-
 		return Math.min(1 - EPSILON, v);
 	}
 
@@ -114,37 +176,90 @@ public class Hampel {
 	 * median absolute deviation from the median 
 	 */
 	public static double madn(double[] array) {
-		double aux[] = new double[array.length];
-		double madn = 0;
-		double m = median(array);
-
-		for (int i = 0; i < array.length; i++)
-			aux[i] = Math.abs(array[i] - m);
-
-		madn = median(aux) / stdDistDevEstimator;
+		double[] work = array.clone();
+		return madn(work, select(work, work.length));
+	}
 
-		return madn;
+	/**
+	 * median absolute deviation from a known median; the contents of
+	 * 'work' are overwritten
+	 */
+	private static double madn(double[] work, double m) {
+		for (int i = 0; i < work.length; i++)
+			work[i] = Math.abs(work[i] - m);
+		return select(work, work.length) / stdDistDevEstimator;
 	}
 
 	/**
-	 * median of an array
+	 * median of an array. The array is not modified.
 	 */
 	public static double median(double[] array) {
-		Arrays.sort(array); // sort the elements
-		boolean even = (array.length % 2) == 0;
-		double median = 0;
+		return select(array.clone(), array.length);
+	}
 
-		if (even) {
-			int rightNumber = array.length / 2;
-			int leftNumber = rightNumber - 1;
+	/**
+	 * Median of the first n elements of 'a', in expected linear time
+	 * (quickselect); reorders those elements.
+	 */
+	private static double select(double[] a, int n) {
+		if (n == 0) {
+			return Double.NaN;
+		}
+		int right = n / 2;
+		double r = kth(a, 0, n - 1, right);
+		if ((n % 2) == 0) {
+			// left-of-center is the largest of the lower half
+			double l = a[0];
+			for (int i = 1; i < right; i++) {
+				l = Math.max(l, a[i]);
+			}
 			// return average of two center-elements
-			median = (array[rightNumber] + array[leftNumber]) / 2;
-		} else {
-			// choose the center one            
-			median = array[array.length / 2];
+			return (r + l) / 2;
 		}
+		return r;
+	}
 
-		return median;
+	/**
+	 * Places the k-th smallest element of a[lo..hi] at position k, with 
+	 * smaller-or-equal elements before it, and returns it.
+	 */
+	private static double kth(double[] a, int lo, int hi, int k) {
+		while (lo < hi) {
+			// median-of-three pivot
+			int mid = (lo + hi) >>> 1;
+			if (a[mid] < a[lo])
+				swap(a, mid, lo);
+			if (a[hi] < a[lo])
+				swap(a, hi, lo);
+			if (a[hi] < a[mid])
+				swap(a, hi, mid);
+			double pivot = a[mid];
+
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (a[i] < pivot)
+					i++;
+				while (a[j] > pivot)
+					j--;
+				if (i <= j) {
+					swap(a, i++, j--);
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				break;
+			}
+		}
+		return a[k];
+	}
+
+	private static void swap(double[] a, int i, int j) {
+		double t = a[i];
+		a[i] = a[j];
+		a[j] = t;
 	}
 
 	/**
@@ -189,67 +304,176 @@ public class Hampel {
 	 * @return k
 	 */
 	public static double montecarloK(int n, double alpha) {
+		return StatUtils.percentile(montecarloStatistics(n,
+				new SplittableRandom()), 100 * (1 - alpha));
+	}
 
+	/**
+	 * Simulates the Hampel statistic over nMontecarlos gaussian samples of
+	 * size n. Percentiles of the result yield 'k' for any alpha, so a
+	 * single simulation serves a whole row of the grid.
+	 * @param n number of entries
+	 * @param r source of randomness; not shared with other threads
+	 * @return the statistics, one per simulated sample
+	 */
+	private static double[] montecarloStatistics(int n, SplittableRandom r) {
 		double statistic[] = new double[nMontecarlos];
 		double ra[] = new double[n]; // a random array
-
-		System.err.println("initializing cache...");
-		RandomCache.init(32 * 1024 * 1024);
-		System.err.println("Starting calculations...");
+		double work[] = new double[n];
 		for (int i = 0; i < nMontecarlos; i++) {
-			RandomCache.fill(ra, 0, n);
+			for (int k = 0; k < n; k += 2) {
+				gaussianPair(r, ra, k);
+			}
 
-			double med = median(ra);
-			double madN = madn(ra);
+			System.arraycopy(ra, 0, work, 0, n);
+			double med = select(work, n);
+			double madN = madn(work, med);
 
 			// Absolute value of sample i
+			double max = 0;
 			for (int k = 0; k < n; k++) {
-				ra[k] = Math.abs(ra[k]);
+				max = Math.max(max, Math.abs(ra[k]));
 			}
 
 			// Hampel statistic computation
-			statistic[i] = (StatUtils.max(ra) - med) / madN;
+			statistic[i] = (max - med) / madN;
+		}
+		return statistic;
+	}
+
+	/**
+	 * Writes two standard gaussians into dest[k] and dest[k+1] (or only the
+	 * first, if that is the last position), using the polar Box-Muller method.
+	 */
+	private static void gaussianPair(SplittableRandom r, double[] dest, int k) {
+		double u, v, s;
+		do {
+			u = 2 * r.nextDouble() - 1;
+			v = 2 * r.nextDouble() - 1;
+			s = u * u + v * v;
+		} while (s >= 1 || s == 0);
+		double f = Math.sqrt(-2 * Math.log(s) / s);
+		dest[k] = u * f;
+		if (k + 1 < dest.length) {
+			dest[k + 1] = v * f;
 		}
+	}
 
-		// calculate result
-		double result = StatUtils.percentile(statistic, 100 * (1 - alpha));
+	/**
+	 * Generates the grid of 'k' values for all combinations of sample sizes
+	 * and alphas, one row (sample size) per parallel task. Each row
+	 * receives its own generator, split in advance from one seeded with 
+	 * 'seed', so that results do not depend on scheduling.
+	 * @param enes sample sizes, increasing
+	 * @param alfas alpha values, increasing
+	 * @param seed for the random generators
+	 * @return an interpolator for k(n, alpha)
+	 */
+	public static Interpolator generateKGrid(final double[] enes,
+			final double[] alfas, long seed) {
+		final SplittableRandom[] randoms = new SplittableRandom[enes.length];
+		SplittableRandom root = new SplittableRandom(seed);
+		for (int i = 0; i < enes.length; i++) {
+			randoms[i] = root.split();
+		}
+		final double[] values = new double[enes.length * alfas.length];
+		IntStream.range(0, enes.length).parallel().forEach(i -> {
+			double[] statistic = montecarloStatistics((int) enes[i], randoms[i]);
+			for (int j = 0; j < alfas.length; j++) {
+				values[i * alfas.length + j] = StatUtils.percentile(statistic,
+						100 * (1 - alfas[j]));
+			}
+		});
 
-		return result;
+		ArrayList<double[]> al = new ArrayList<double[]>();
+		al.add(enes);
+		al.add(alfas);
+		return new Interpolator(2, al, values);
 	}
 
 	/**
-	 * To regenerate cache from command-line use
-	 * java -cp classes:lib/commons-math-1.1.jar eps.outlier.Hampel
+	 * Precomputed grid of montecarlo 'k' values, as generated by main(); 
+	 * falls back to generating it (which takes a few seconds) if the 
+	 * resource is not available.
 	 */
-	public static void main(String args[]) throws Exception {
+	private static class KGrid {
+		static final Interpolator grid = load();
+
+		private static Interpolator load() {
+			try (InputStream is = Hampel.class.getResourceAsStream(kGridResource)) {
+				if (is != null) {
+					return new Interpolator(is);
+				}
+				log.warn("No precomputed k grid found at " + kGridResource
+						+ "; generating...");
+			} catch (IOException | RuntimeException e) {
+				log.warn("Could not load precomputed k grid; generating...", e);
+			}
+			return generateKGrid(defaultEnes, defaultAlfas, defaultSeed);
+		}
+	}
 
-		System.err.println("init...");
-		System.err.println("init OK");
+	/**
+	 * Value of 'k' for a sample size and an alpha. The analytic expression
+	 * is used for default alphas, and the precomputed montecarlo grid 
+	 * for all others. Values outside the grid are clamped to its borders.
+	 * @param n number of entries
+	 * @param alpha value of free parameter for the Hampel identifier
+	 * @return k
+	 */
+	public static double k(int n, double alpha) {
+		double k = analyticK(n, alpha);
+		if (!Double.isNaN(k)) {
+			return k;
+		}
+		Interpolator grid = KGrid.grid;
+		return grid.linearInterpolate(clamp(n, defaultEnes), clamp(alpha,
+				defaultAlfas));
+	}
 
-		double[] enes = { 1, 10, 20, 40, 80, 160, 320, 640, 1280, 5120, 10240 }; // 11 rows
-		double[] alfas = { 0.005, 0.01, 0.025, 0.05, 0.075, 0.1, 0.2, 0.25,
-				0.5, 0.75 }; // 10 cols
-		double[] values = new double[enes.length * alfas.length];
+	/**
+	 * Clamps a value to the [first, last) range of a grid axis
+	 */
+	private static double clamp(double v, double[] axis) {
+		return Math.max(axis[0], Math.min(Math.nextDown(axis[axis.length - 1]),
+				v));
+	}
 
-		long startTime = System.currentTimeMillis();
-		for (int i = 0, k = 0; i < enes.length; i++) {
-			for (int j = 0; j < alfas.length; j++) {
-				long partialStart = System.currentTimeMillis();
-				values[k++] = Hampel.montecarloK((int) enes[i], alfas[j]);
-				long partialTime = System.currentTimeMillis() - partialStart;
-				System.err.println("" + k + " down (" + (partialTime / 1000.0f)
-						+ " s), " + (values.length - k) + " to go...");
-			}
+	/**
+	 * Calculate the threshold identifier for this distribution, for
+	 * arbitrary alpha values
+	 * @param array of distances
+	 * @param alphas to calculate thresholds for, within (0, 1)
+	 * @return a threshold for each alpha, in the same order
+	 */
+	public static List<Double> hampel(double[] array, double... alphas) {
+		double[] work = array.clone();
+		double m = select(work, work.length);
+		double s = madn(work, m);
+		ArrayList<Double> al = new ArrayList<Double>();
+		for (double alpha : alphas) {
+			al.add(threshold(k(array.length, alpha), m, s));
 		}
+		return al;
+	}
+
+	/**
+	 * To regenerate the precomputed grid from the command-line use
+	 * java -cp ac-ui.jar:commons-math.jar es.ucm.fdi.ac.outlier.Hampel \
+	 *    src/main/resources/es/ucm/fdi/ac/outlier/hampel-k.txt
+	 */
+	public static void main(String args[]) throws Exception {
+		String target = args.length > 0 ? args[0] : "/tmp/hampel-k.txt";
+
+		long startTime = System.currentTimeMillis();
+		Interpolator ip = generateKGrid(defaultEnes, defaultAlfas, defaultSeed);
 		long endTime = System.currentTimeMillis();
 		float seconds = (endTime - startTime) / 1000.0f;
 
-		ArrayList<double[]> al = new ArrayList<double[]>();
-		al.add(enes);
-		al.add(alfas);
-		Interpolator ip = new Interpolator(2, al, values);
-		ip.saveGrid(new FileWriter("/tmp/saved_grid.txt"));
+		ip.saveGrid(new OutputStreamWriter(new FileOutputStream(target),
+				StandardCharsets.UTF_8));
 
-		System.err.println("Finished after " + seconds + " s");
+		System.err.println("Finished after " + seconds + " s; saved to "
+				+ target);
 	}
 }
@@ -80,7 +80,8 @@ public class Interpolator {
 	 *
 	 */
 	public Interpolator(InputStream is) throws IOException {
-		BufferedReader r = new BufferedReader(new InputStreamReader(is));
+		BufferedReader r = new BufferedReader(new InputStreamReader(is,
+				StandardCharsets.UTF_8));
 
 		// init dims
 		String s = r.readLine();
@@ -105,7 +106,7 @@ public class Interpolator {
 		// read values
 		values = new double[nValues];
 		int i = 0;
-		while (r.ready() && (s = r.readLine()) != null) {
+		while ((s = r.readLine()) != null) {
 			StringTokenizer t = new StringTokenizer(s, " \n\r");
 			while (t.hasMoreTokens()) {
 				values[i++] = Double.parseDouble(t.nextToken());
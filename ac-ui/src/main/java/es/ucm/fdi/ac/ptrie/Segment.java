@@ -0,0 +1,69 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.ac.ptrie;
+
+/**
+ * A segment that is common to two documents: one interval in each of them.
+ * Offsets are half-open: from start (inclusive) to end (exclusive).
+ *
+ * @author mfreire
+ */
+public class Segment {
+
+	private final int[] starts;
+	private final int[] ends;
+
+	public Segment(int startA, int endA, int startB, int endB) {
+		this.starts = new int[] { startA, startB };
+		this.ends = new int[] { endA, endB };
+	}
+
+	/**
+	 * @param side 0 for the first document, 1 for the second
+	 * @return start offset in that document
+	 */
+	public int getStart(int side) {
+		return starts[side];
+	}
+
+	/**
+	 * @param side 0 for the first document, 1 for the second
+	 * @return end offset (exclusive) in that document
+	 */
+	public int getEnd(int side) {
+		return ends[side];
+	}
+
+	/**
+	 * @return the length of this segment; if it differs between documents,
+	 * the shortest one
+	 */
+	public int getLength() {
+		return Math.min(ends[0] - starts[0], ends[1] - starts[1]);
+	}
+
+	public String toString() {
+		return "" + starts[0] + ":" + ends[0] + " <-> " + starts[1] + ":"
+				+ ends[1];
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.ac.ptrie;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A suffix array with longest-common-prefix (LCP) information, built over
+ * an int array. Much more compact than a PTrie (a few ints per symbol,
+ * instead of several objects), and sufficient to find long common segments
+ * between two documents.
+ *
+ * @author mfreire
+ */
+public class SuffixArray {
+
+	private final int[] text;
+	/** suffix start positions, in lexicographical order */
+	private final int[] sa;
+	/** lcp[i] = length of common prefix of suffixes sa[i-1] and sa[i] */
+	private final int[] lcp;
+
+	/**
+	 * Builds a suffix array. Uses prefix-doubling with radix sorts, 
+	 * for O(n log n) time, and Kasai's algorithm for the LCP.
+	 * @param text to index; no restrictions on values
+	 */
+	public SuffixArray(int[] text) {
+		this.text = text;
+		int n = text.length;
+		sa = new int[n];
+		lcp = new int[n];
+		if (n == 0) {
+			return;
+		}
+
+		// initial ranks: symbols, compressed to 0..m-1
+		int[] sorted = text.clone();
+		Arrays.sort(sorted);
+		int[] rank = new int[n];
+		for (int i = 0; i < n; i++) {
+			rank[i] = Arrays.binarySearch(sorted, text[i]);
+		}
+		int[] tmp = new int[n];
+		int[] count = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			tmp[i] = i;
+		}
+		countingSort(tmp, sa, rank, count);
+
+		for (int k = 1;; k <<= 1) {
+			// order by second key (rank at i+k; missing sorts first)
+			int p = 0;
+			for (int i = n - k; i < n; i++) {
+				tmp[p++] = i;
+			}
+			for (int i = 0; i < n; i++) {
+				if (sa[i] >= k) {
+					tmp[p++] = sa[i] - k;
+				}
+			}
+			// stable sort by first key
+			countingSort(tmp, sa, rank, count);
+
+			// re-rank
+			tmp[sa[0]] = 0;
+			int r = 0;
+			for (int i = 1; i < n; i++) {
+				int a = sa[i - 1], b = sa[i];
+				if (rank[a] != rank[b]
+						|| secondRank(rank, a + k) != secondRank(rank, b + k)) {
+					r++;
+				}
+				tmp[b] = r;
+			}
+			System.arraycopy(tmp, 0, rank, 0, n);
+			if (r == n - 1) {
+				break;
+			}
+		}
+
+		// Kasai: 'rank' now holds the inverse of 'sa'
+		for (int i = 0, h = 0; i < n; i++) {
+			if (rank[i] > 0) {
+				int j = sa[rank[i] - 1];
+				while (i + h < n && j + h < n && text[i + h] == text[j + h]) {
+					h++;
+				}
+				lcp[rank[i]] = h;
+				if (h > 0) {
+					h--;
+				}
+			} else {
+				h = 0;
+			}
+		}
+	}
+
+	private static int secondRank(int[] rank, int i) {
+		return i < rank.length ? rank[i] : -1;
+	}
+
+	/**
+	 * Stable counting sort of 'from' into 'to', using keys[from[i]]
+	 */
+	private static void countingSort(int[] from, int[] to, int[] keys,
+			int[] count) {
+		Arrays.fill(count, 0);
+		for (int i : from) {
+			count[keys[i] + 1]++;
+		}
+		for (int i = 1; i < count.length; i++) {
+			count[i] += count[i - 1];
+		}
+		for (int i : from) {
+			to[count[keys[i]]++] = i;
+		}
+	}
+
+	public int[] getText() {
+		return text;
+	}
+
+	public int[] getSuffixes() {
+		return sa;
+	}
+
+	public int[] getLcp() {
+		return lcp;
+	}
+
+	/**
+	 * Finds long segments common to two documents, largest first. Chosen 
+	 * segments never overlap (in either document) with larger ones.
+	 * 
+	 * @param a first document
+	 * @param b second document
+	 * @param minLength minimal length for a segment to be considered
+	 * @param maxSegments maximal number of segments to return
+	 * @return the segments, sorted by decreasing length
+	 */
+	public static ArrayList<Segment> findCommonSegments(CharSequence a,
+			CharSequence b, int minLength, int maxSegments) {
+		int na = a.length();
+		int nb = b.length();
+
+		// concatenate, with a unique separator (chars are >= 0)
+		int[] t = new int[na + 1 + nb];
+		for (int i = 0; i < na; i++) {
+			t[i] = a.charAt(i);
+		}
+		t[na] = -1;
+		for (int i = 0; i < nb; i++) {
+			t[na + 1 + i] = b.charAt(i);
+		}
+		SuffixArray s = new SuffixArray(t);
+		int[] sa = s.sa;
+		int[] lcp = s.lcp;
+
+		// pair each suffix with the closest preceding one from the other
+		// document; their common prefix is the min lcp in between
+		ArrayList<long[]> candidates = new ArrayList<>();
+		int lastA = -1, lastB = -1;
+		int minA = 0, minB = 0;
+		for (int i = 0; i < sa.length; i++) {
+			minA = Math.min(minA, lcp[i]);
+			minB = Math.min(minB, lcp[i]);
+			int p = sa[i];
+			if (p < na) {
+				if (lastB >= 0 && minB >= minLength) {
+					addCandidate(t, p, lastB, minB, candidates);
+				}
+				lastA = p;
+				minA = Integer.MAX_VALUE;
+			} else if (p > na) {
+				if (lastA >= 0 && minA >= minLength) {
+					addCandidate(t, lastA, p, minA, candidates);
+				}
+				lastB = p;
+				minB = Integer.MAX_VALUE;
+			}
+		}
+
+		// largest first; ties broken by position, for stable results
+		candidates.sort((x, y) -> x[2] != y[2] ? Long.compare(y[2], x[2])
+				: x[0] != y[0] ? Long.compare(x[0], y[0]) : Long.compare(
+						x[1], y[1]));
+
+		// greedily choose non-overlapping segments
+		ArrayList<Segment> chosen = new ArrayList<>();
+		BitSet usedA = new BitSet(na);
+		BitSet usedB = new BitSet(nb);
+		for (long[] c : candidates) {
+			if (chosen.size() >= maxSegments) {
+				break;
+			}
+			int sa0 = (int) c[0], sb0 = (int) c[1] - na - 1, len = (int) c[2];
+			if (isFree(usedA, sa0, len) && isFree(usedB, sb0, len)) {
+				usedA.set(sa0, sa0 + len);
+				usedB.set(sb0, sb0 + len);
+				chosen.add(new Segment(sa0, sa0 + len, sb0, sb0 + len));
+			}
+		}
+		return chosen;
+	}
+
+	private static boolean isFree(BitSet used, int start, int len) {
+		int next = used.nextSetBit(start);
+		return next < 0 || next >= start + len;
+	}
+
+	/**
+	 * Adds a candidate, unless it can be extended to the left: that longer
+	 * match is found from its own suffixes, and shorter copies of it would 
+	 * only be discarded later. Each suffix adds at most one candidate, 
+	 * paired with the suffix before it, so there are no repeats.
+	 */
+	private static void addCandidate(int[] t, int pa, int pb, int len,
+			List<long[]> candidates) {
+		if (pa == 0 || pb == 0 || t[pa - 1] != t[pb - 1]) {
+			candidates.add(new long[] { pa, pb, len });
+		}
+	}
+}
@@ -23,6 +23,7 @@
 package es.ucm.fdi.ac.stringmap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -30,13 +31,21 @@ import java.util.regex.Pattern;
 /**
  * A Mapper can apply a regex substitution (typically removing 
  * 'redundant' stuff) to a string, while retaining the true offsets of things.
- * The data-structure is a simple array with the format
- * displacement n 
+ * The data-structure is a set of parallel arrays, sorted by offset, 
+ * with one entry per substitution that changed the length of the text; 
+ * this allows mapping in both directions with binary searches.
  * 
  * @author mfreire
  */
 public class Mapper {
-	ArrayList<Mapping> ms = new ArrayList<Mapping>();
+	/** source offsets (start, end) of each substitution */
+	private int[] a1 = new int[16];
+	private int[] a2 = new int[16];
+	/** dest offsets (start, end) of each substitution */
+	private int[] b1 = new int[16];
+	private int[] b2 = new int[16];
+	private int count = 0;
+
 	private String source;
 	private String dest;
 
@@ -51,34 +60,54 @@ public class Mapper {
 	}
 
 	private void buildDisplacements(String from, String to) {
-		ms.clear();
+		count = 0;
 
-		StringBuffer out = new StringBuffer(source.length());
+		StringBuilder out = new StringBuilder(source.length());
 		Pattern p = Pattern.compile(from);
 		Matcher m = p.matcher(source);
 
 		// add substituted patterns
 		int toLen = to.length();
 		int prev = 0;
-		while (m.find(prev)) {
-			out.append(source.substring(prev, m.start()));
+		while (m.find()) {
+			out.append(source, prev, m.start());
 			int matchLen = m.end() - m.start();
 			if (matchLen != toLen) {
-				ms.add(new Mapping(m.start(), m.end(), out.length(), out
-						.length()
-						+ toLen));
+				add(m.start(), m.end(), out.length(), out.length() + toLen);
 			}
 			out.append(to);
 			prev = m.end();
 		}
 
 		// add remnant
-		out.append(source.substring(prev));
+		out.append(source, prev, source.length());
 
 		dest = out.toString();
 	}
 
+	private void add(int sa, int ea, int sb, int eb) {
+		if (count == a1.length) {
+			int n = count * 2;
+			a1 = Arrays.copyOf(a1, n);
+			a2 = Arrays.copyOf(a2, n);
+			b1 = Arrays.copyOf(b1, n);
+			b2 = Arrays.copyOf(b2, n);
+		}
+		a1[count] = sa;
+		a2[count] = ea;
+		b1[count] = sb;
+		b2[count] = eb;
+		count++;
+	}
+
+	/**
+	 * @return a copy of the mappings, in order
+	 */
 	public ArrayList<Mapping> getMappings() {
+		ArrayList<Mapping> ms = new ArrayList<Mapping>(count);
+		for (int i = 0; i < count; i++) {
+			ms.add(new Mapping(a1[i], a2[i], b1[i], b2[i]));
+		}
 		return ms;
 	}
 
@@ -90,6 +119,26 @@ public class Mapper {
 		return dest;
 	}
 
+	/**
+	 * Finds the first mapping that ends at or after an offset
+	 * @param ends sorted array of mapping ends
+	 * @param offset to look for
+	 * @return index of that mapping, or 'count' if there is none
+	 */
+	private int firstEndingAfter(int[] ends, int offset) {
+		int lo = 0;
+		int hi = count;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (ends[mid] < offset) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
 	/**
 	 * Maps an offset in the source document to an offset in the destination document.
 	 * If the offset falls within a 'mapping', either the start ('biasForLow')
@@ -104,12 +153,13 @@ public class Mapper {
 			throw new IllegalArgumentException("out of bounds");
 		}
 
-		for (Mapping m : ms) {
-			if (offset < m.a1) { // between prev and this
-				int d = m.a1 - offset;
-				return m.b1 - d;
-			} else if (offset <= m.a2) { // inside
-				return biasForLow ? m.b1 : m.b2;
+		int i = firstEndingAfter(a2, offset);
+		if (i < count) {
+			if (offset < a1[i]) { // between prev and this
+				int d = a1[i] - offset;
+				return b1[i] - d;
+			} else { // inside
+				return biasForLow ? b1[i] : b2[i];
 			}
 		}
 		// not within any segment
@@ -131,12 +181,13 @@ public class Mapper {
 					+ " not inside [ 0, " + dest.length() + "]");
 		}
 
-		for (Mapping m : ms) {
-			if (offset < m.b1) { // between prev and this
-				int d = m.b1 - offset;
-				return m.a1 - d;
-			} else if (offset <= m.b2) { // inside
-				return biasForLow ? m.a1 : m.a2;
+		int i = firstEndingAfter(b2, offset);
+		if (i < count) {
+			if (offset < b1[i]) { // between prev and this
+				int d = b1[i] - offset;
+				return a1[i] - d;
+			} else { // inside
+				return biasForLow ? a1[i] : a2[i];
 			}
 		}
 		// not within any segment
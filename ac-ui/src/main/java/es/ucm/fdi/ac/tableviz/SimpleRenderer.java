@@ -25,11 +25,18 @@ package es.ucm.fdi.ac.tableviz;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.geom.AffineTransform;
-import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
+ * Renders the table as a grid of colored cells, with labels to the left.
+ * The cells are rasterized once into an image, with one pixel per cell,
+ * which is then scaled to the screen; only the visible part of the image
+ * (and only visible labels) are painted.
  *
  * @author mfreire
  */
@@ -37,6 +44,20 @@ public class SimpleRenderer implements TableRenderer {
 
 	private static Color[] colorLUT = null;
 
+	/** rendered cells, with the model version that they correspond to */
+	private static class CachedImage {
+		private final int version;
+		private final BufferedImage image;
+
+		private CachedImage(int version, BufferedImage image) {
+			this.version = version;
+			this.image = image;
+		}
+	}
+
+	/** renderers are shared among views; so caches are kept per model */
+	private final Map<TableModel, CachedImage> cache = new WeakHashMap<>();
+
 	/**
 	 * A fast hue-color lookup, avoiding creation of new colors;
 	 * hue must be between 0 and 1,
@@ -59,41 +80,89 @@ public class SimpleRenderer implements TableRenderer {
 		return sat ? colorLUT[2 * i] : colorLUT[2 * i + 1];
 	}
 
+	/**
+	 * @return an image with one pixel per cell, re-rendered only if the 
+	 * model has changed since it was last requested
+	 */
+	private BufferedImage getImage(TableModel m) {
+		CachedImage c = cache.get(m);
+		if (c == null || c.version != m.getVersion()) {
+			int n = m.getN();
+			BufferedImage image = new BufferedImage(Math.max(n, 1), Math.max(
+					n, 1), BufferedImage.TYPE_INT_RGB);
+			int[] row = new int[n];
+			for (int j = 0; j < n; j++) {
+				for (int i = 0; i < n; i++) {
+					row[i] = getColor(m.get(i, j), true).getRGB();
+				}
+				image.setRGB(0, j, n, 1, row, 0, n);
+			}
+			c = new CachedImage(m.getVersion(), image);
+			cache.put(m, c);
+		}
+		return c.image;
+	}
+
 	public void paint(Graphics g, TableViz tv) {
 
 		int h = tv.getHeight();
 		int w = tv.getWidth();
-		int n = tv.getModel().getN();
+		TableModel m = tv.getModel();
+		int n = m.getN();
 
+		Rectangle clip = g.getClipBounds();
+		if (clip == null) {
+			clip = new Rectangle(0, 0, w, h);
+		}
 		g.setColor(Color.black);
-		g.fillRect(0, 0, w, h);
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+		if (n == 0) {
+			return;
+		}
 
-		g.setColor(Color.BLACK);
-		g.setFont(g.getFont().deriveFont(12));
 		float rh = 12f;
 		float want = rh * n;
-		//System.err.println("Drawing in "+w+"x"+h+"; would want " + want+"; scale is"+());
-
 		int x0 = 40;
 		int y0 = 0;
+		double sx = w / (want + x0);
+		double sy = h / (want + y0);
+
+		// visible cells, in table coordinates
+		int firstCol = clamp((int) Math.floor((clip.x / sx - x0) / rh), n);
+		int lastCol = clamp((int) Math.ceil(((clip.x + clip.width) / sx - x0)
+				/ rh), n);
+		int firstRow = clamp((int) Math.floor((clip.y / sy - y0) / rh), n);
+		int lastRow = clamp((int) Math.ceil(((clip.y + clip.height) / sy - y0)
+				/ rh), n);
+
+		// cells: nearest-neighbor scaling keeps them crisp when zoomed in
 		Graphics2D g2d = (Graphics2D) g;
+		if (firstCol < lastCol && firstRow < lastRow) {
+			g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+					RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+			g2d.drawImage(getImage(m), (int) Math.round((x0 + firstCol * rh)
+					* sx), (int) Math.round((y0 + firstRow * rh) * sy),
+					(int) Math.round((x0 + lastCol * rh) * sx), (int) Math
+							.round((y0 + lastRow * rh) * sy), firstCol,
+					firstRow, lastCol, lastRow, null);
+		}
+
+		// labels, in scaled coordinates
+		AffineTransform original = g2d.getTransform();
 		g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
 				RenderingHints.VALUE_ANTIALIAS_ON);
-		AffineTransform original = g2d.getTransform();
-		original.concatenate(AffineTransform.getScaleInstance(w / (want + x0),
-				h / (want + y0)));
+		g2d.setFont(g.getFont().deriveFont(12));
+		AffineTransform scaled = new AffineTransform(original);
+		scaled.concatenate(AffineTransform.getScaleInstance(sx, sy));
+		g2d.setTransform(scaled);
+		g2d.setColor(Color.white);
+		for (int i = firstRow; i < lastRow; i++) {
+			g2d.drawString("" + m.getLabel(i), 0, (int) (rh * (i + 1)) + y0);
+		}
 		g2d.setTransform(original);
+	}
 
-		TableModel m = tv.getModel();
-		Rectangle2D r = new Rectangle2D.Float(0, 0, rh, rh);
-		for (int i = 0; i < n; i++) {
-			g2d.setColor(Color.white);
-			g.drawString("" + m.getLabel(i), 0, (int) (rh * (i + 1)) + y0);
-			for (int j = 0; j < n; j++) {
-				g2d.setColor(getColor(m.get(i, j), true));
-				r.setRect(i * rh + x0, j * rh + y0, rh, rh);
-				g2d.fill(r);
-			}
-		}
+	private static int clamp(int i, int n) {
+		return Math.max(0, Math.min(n, i));
 	}
-}
\ No newline at end of file
+}
@@ -37,6 +37,8 @@ public class TableModel {
 	private ArrayList<Object> labels;
 	private float[][] data;
 	private int[] perm;
+	/** incremented whenever what is shown changes; allows caching renders */
+	private int version;
 
 	/** Creates a new instance of TableModel */
 	public TableModel(int n) {
@@ -48,14 +50,17 @@ public class TableModel {
 	public void clearPerm() {
 		for (int i = 0; i < perm.length; i++)
 			perm[i] = i;
+		version++;
 	}
 
 	public void setPerm(int[] p) {
 		System.arraycopy(p, 0, perm, 0, p.length);
+		version++;
 	}
 
 	public void setPerm(DendrogramModel dm) {
 		dm.getLeafSortOrder(perm);
+		version++;
 	}
 
 	public void addLeaf(Object o, float[] distances) {
@@ -63,6 +68,15 @@ public class TableModel {
 		data[i] = distances;
 		perm[i] = i;
 		labels.add(o);
+		version++;
+	}
+
+	/**
+	 * @return a number that changes every time that data, labels or 
+	 * permutation change
+	 */
+	public int getVersion() {
+		return version;
 	}
 
 	public int getN() {
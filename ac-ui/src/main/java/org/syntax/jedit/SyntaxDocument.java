@@ -30,10 +30,26 @@ public class SyntaxDocument extends PlainDocument {
 	 */
 	public void setTokenMarker(TokenMarker tm) {
 		tokenMarker = tm;
+		tokenizedLines = 0;
 		if (tm == null)
 			return;
 		tokenMarker.insertLines(0, getDefaultRootElement().getElementCount());
-		tokenizeLines();
+	}
+
+	/**
+	 * Makes sure that all lines before the specified one have been
+	 * passed to the token marker since they last changed, so that the
+	 * line can be tokenized correctly. Only lines that were not already
+	 * up to date are parsed; painting calls this for the first visible
+	 * line, so that lines that are never shown are never tokenized.
+	 * @param line The line that is about to be tokenized
+	 */
+	public void tokenizeUpTo(int line) {
+		line = Math.min(line, getDefaultRootElement().getElementCount());
+		if (line > tokenizedLines) {
+			tokenizeLines(tokenizedLines, line - tokenizedLines);
+			tokenizedLines = line;
+		}
 	}
 
 	/**
@@ -42,7 +58,9 @@ public class SyntaxDocument extends PlainDocument {
 	 * loaded.
 	 */
 	public void tokenizeLines() {
-		tokenizeLines(0, getDefaultRootElement().getElementCount());
+		int lines = getDefaultRootElement().getElementCount();
+		tokenizeLines(0, lines);
+		tokenizedLines = lines;
 	}
 
 	/**
@@ -105,6 +123,18 @@ public class SyntaxDocument extends PlainDocument {
 	// protected members
 	protected TokenMarker tokenMarker;
 
+	/** Lines before this one are known to be tokenized */
+	protected int tokenizedLines;
+
+	/**
+	 * Marks lines from the one containing an offset onwards as not
+	 * tokenized.
+	 */
+	private void invalidateFrom(int offset) {
+		tokenizedLines = Math.min(tokenizedLines, getDefaultRootElement()
+				.getElementIndex(offset));
+	}
+
 	/**
 	 * We overwrite this method to update the token marker
 	 * state immediately so that any event listeners get a
@@ -119,6 +149,7 @@ public class SyntaxDocument extends PlainDocument {
 						.getChildrenAdded().length
 						- ch.getChildrenRemoved().length);
 			}
+			invalidateFrom(evt.getOffset());
 		}
 
 		super.fireInsertUpdate(evt);
@@ -138,6 +169,7 @@ public class SyntaxDocument extends PlainDocument {
 						.getChildrenRemoved().length
 						- ch.getChildrenAdded().length);
 			}
+			invalidateFrom(evt.getOffset());
 		}
 
 		super.fireRemoveUpdate(evt);
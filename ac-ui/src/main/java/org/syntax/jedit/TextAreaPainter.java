@@ -335,6 +335,11 @@ public class TextAreaPainter extends JComponent implements TabExpander {
 			TokenMarker tokenMarker = textArea.getDocument().getTokenMarker();
 			int x = textArea.getHorizontalOffset();
 
+			// lines above the visible ones may still carry multi-line tokens
+			if (tokenMarker != null) {
+				textArea.getDocument().tokenizeUpTo(firstInvalid);
+			}
+
 			for (int line = firstInvalid; line <= lastInvalid; line++) {
 				paintLine(gfx, tokenMarker, line, x);
 			}
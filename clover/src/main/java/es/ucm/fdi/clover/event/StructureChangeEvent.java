@@ -26,6 +26,8 @@ import es.ucm.fdi.clover.model.Edge;
 import es.ucm.fdi.clover.model.BaseGraph;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 
 /**
  * This event represents a structured graph change. It allows several graph
@@ -117,6 +119,63 @@ public class StructureChangeEvent {
 		return changedEdges;
 	}
 
+	/**
+	 * Appends the changes described by a later event to this one, so that
+	 * applying the result is equivalent to applying this event and then
+	 * 'later'. Used to coalesce bursts of events.
+	 */
+	public void append(StructureChangeEvent later) {
+		HashSet laterRemovedV = new HashSet(later.removedVertices);
+		HashSet<Edge> laterRemovedE = new HashSet<Edge>(later.removedEdges);
+		HashSet addedV = new HashSet(addedVertices);
+		HashSet<Edge> addedE = new HashSet<Edge>(addedEdges);
+
+		// added here, removed later: never existed as far as others know
+		addedVertices.removeAll(laterRemovedV);
+		for (Iterator<Edge> it = addedEdges.iterator(); it.hasNext();) {
+			Edge e = it.next();
+			if (laterRemovedE.contains(e)
+					|| laterRemovedV.contains(e.getSource())
+					|| laterRemovedV.contains(e.getTarget())) {
+				it.remove();
+			}
+		}
+		for (Object v : later.removedVertices) {
+			if (!addedV.contains(v)) {
+				removedVertices.add(v);
+			}
+		}
+		for (Edge e : later.removedEdges) {
+			if (!addedE.contains(e)) {
+				removedEdges.add(e);
+			}
+		}
+		addedVertices.addAll(later.addedVertices);
+		addedEdges.addAll(later.addedEdges);
+
+		HashSet changedV = new HashSet(changedVertices);
+		for (Object v : later.changedVertices) {
+			if (changedV.add(v)) {
+				changedVertices.add(v);
+			}
+		}
+		changedVertices.removeAll(laterRemovedV);
+		HashSet<Edge> changedE = new HashSet<Edge>(changedEdges);
+		for (Edge e : later.changedEdges) {
+			if (changedE.add(e)) {
+				changedEdges.add(e);
+			}
+		}
+		changedEdges.removeAll(laterRemovedE);
+
+		if (changeType != later.changeType) {
+			changeType = ChangeType.Normal;
+		}
+		description = (description == null) ? later.description
+				: (later.description == null) ? description : description
+						+ "; " + later.description;
+	}
+
 	public BaseGraph getSource() {
 		return source;
 	}
@@ -29,8 +29,15 @@ import es.ucm.fdi.clover.model.ClusteredGraph;
 import es.ucm.fdi.clover.model.ClusteringEngine;
 import es.ucm.fdi.clover.model.Filter;
 import es.ucm.fdi.clover.model.FilteredGraph;
+import es.ucm.fdi.clover.layout.LayoutCache;
 import es.ucm.fdi.clover.view.ClusterView;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -38,6 +45,8 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -77,9 +86,8 @@ import org.jdom2.output.XMLOutputter;
  *            </shared>
  *            <view name="String" hierarchyId="HID">
  *                (processed by ClusterView; created via protected builder)
- *                <layoutCache>
- *                    (processed by LayoutCache)
- *                </layoutCache>
+ *                <layoutCache maxSize="int" section="int"/>
+ *                    (settings; contents are in a binary section, see below)
  *                <animatorProps>
  *                    (processed by Animator)
  *                </animatorProps>
@@ -87,6 +95,12 @@ import org.jdom2.output.XMLOutputter;
  *        </clover>
  * </pre>
  *
+ * Layout caches are bulky and slow to parse as XML, so they are saved in a
+ * sidecar file (named as the XML file plus LAYOUTS_SUFFIX), with one section
+ * per view, each in the binary format of LayoutCache. These sections are only
+ * decoded when the corresponding view first uses its cache.
+ * Older saves, with layoutCache contents inline, can still be read.
+ *
  * @author mfreire
  */
 @SuppressWarnings("all")
@@ -94,11 +108,17 @@ public class CloverSave {
 
 	private static Log log = LogFactory.getLog(CloverSave.class);
 
-	protected static String saveVersion = "1.0c";
+	protected static String saveVersion = "1.0d";
 	protected static String compatibleWith = "1.0b";
 
 	private static int idGen = 0;
 
+	/** suffix added to the save-file name to build the layout-cache file */
+	public static final String LAYOUTS_SUFFIX = ".layouts";
+
+	/** magic number at the start of layout-cache files */
+	private static final int LAYOUTS_MAGIC = 0x41434c43; // 'ACLC'
+
 	/**
 	 * Saves the CloverSave to an XML file
 	 */
@@ -115,13 +135,19 @@ public class CloverSave {
 		HashMap<Filter, String> filterToId = new HashMap<Filter, String>();
 		HashMap<ClusteringEngine, String> engineToId = new HashMap<ClusteringEngine, String>();
 		HashMap<ClusterHierarchy, String> hierarchyToId = new HashMap<ClusterHierarchy, String>();
+		ArrayList<byte[]> layoutSections = new ArrayList<byte[]>();
 
 		for (ClusterView v : views) {
 			Element view = new Element("view");
 			v.save(view);
 
 			Element layoutCache = new Element("layoutCache");
-			v.getAnimator().getLayoutCache().save(layoutCache, v.getBase());
+			LayoutCache lc = v.getAnimator().getLayoutCache();
+			lc.saveSettings(layoutCache);
+			ByteArrayOutputStream section = new ByteArrayOutputStream();
+			lc.save(new DataOutputStream(section), v.getBase());
+			layoutCache.setAttribute("section", "" + layoutSections.size());
+			layoutSections.add(section.toByteArray());
 			view.addContent(layoutCache);
 
 			Element animatorProps = new Element("animatorProps");
@@ -170,7 +196,72 @@ public class CloverSave {
 		}
 
 		XMLOutputter outputter = new XMLOutputter(Format.getPrettyFormat());
-		outputter.output(new Document(root), new FileOutputStream(f));
+		try (FileOutputStream fos = new FileOutputStream(f)) {
+			outputter.output(new Document(root), fos);
+		}
+		saveLayouts(layoutSections, getLayoutsFile(f));
+	}
+
+	/**
+	 * @return the file where layout caches for the save-file f are kept
+	 */
+	public static File getLayoutsFile(File f) {
+		return new File(f.getPath() + LAYOUTS_SUFFIX);
+	}
+
+	/**
+	 * Writes binary layout-cache sections to a (compressed) sidecar file
+	 */
+	private static void saveLayouts(ArrayList<byte[]> sections, File f)
+			throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new GZIPOutputStream(
+						new FileOutputStream(f))))) {
+			out.writeInt(LAYOUTS_MAGIC);
+			out.writeInt(sections.size());
+			for (byte[] section : sections) {
+				out.writeInt(section.length);
+				out.write(section);
+			}
+		}
+	}
+
+	/**
+	 * Reads binary layout-cache sections from a sidecar file. Sections are
+	 * not decoded here; see LayoutCache.restoreLazily.
+	 * @return the sections, or null if the file is missing or not valid
+	 */
+	private static ArrayList<byte[]> loadLayouts(File f) {
+		if (!f.exists()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(f))))) {
+			if (in.readInt() != LAYOUTS_MAGIC) {
+				log.warn("Not a layout-cache file: " + f);
+				return null;
+			}
+			int n = in.readInt();
+			if (n < 0) {
+				log.warn("Corrupt layout-cache file: " + f);
+				return null;
+			}
+			ArrayList<byte[]> sections = new ArrayList<byte[]>();
+			for (int i = 0; i < n; i++) {
+				int length = in.readInt();
+				if (length < 0) {
+					log.warn("Corrupt layout-cache file: " + f);
+					return null;
+				}
+				byte[] section = new byte[length];
+				in.readFully(section);
+				sections.add(section);
+			}
+			return sections;
+		} catch (IOException ioe) {
+			log.warn("Could not read layout-cache file " + f, ioe);
+			return null;
+		}
 	}
 
 	/**
@@ -194,6 +285,7 @@ public class CloverSave {
 		try {
 			Document doc = builder.build(f.getAbsolutePath());
 			Element root = doc.getRootElement();
+			ArrayList<byte[]> layoutSections = loadLayouts(getLayoutsFile(f));
 
 			Element sharedElems = (Element) root.getChildren().get(0);
 
@@ -222,6 +314,8 @@ public class CloverSave {
 					}
 
 					ClusterHierarchy h = new ClusterHierarchy(e, hb, engine);
+					// keep the GUI responsive when the base graph changes
+					h.setBackgroundUpdates(true);
 					hierarchies.put(e.getAttributeValue("id"), h);
 				}
 			}
@@ -237,8 +331,21 @@ public class CloverSave {
 				view.restore(e);
 
 				Element layoutCache = (Element) e.getChildren().get(0);
-				view.getAnimator().getLayoutCache().restore(layoutCache,
-						view.getBase());
+				LayoutCache lc = view.getAnimator().getLayoutCache();
+				String section = layoutCache.getAttributeValue("section");
+				int sectionIndex = sectionIndex(section, layoutSections);
+				if (section == null) {
+					lc.restore(layoutCache, view.getBase());
+				} else if (sectionIndex >= 0) {
+					lc.restoreSettings(layoutCache);
+					lc.restoreLazily(layoutSections.get(sectionIndex), view
+							.getBase());
+				} else {
+					lc.restoreSettings(layoutCache);
+					log.warn("Missing or stale layout-cache file "
+							+ "(no section " + section
+							+ "); layouts not restored");
+				}
 
 				Element animatorProps = (Element) e.getChildren().get(1);
 				view.getAnimator().restore(animatorProps);
@@ -262,6 +369,22 @@ public class CloverSave {
 		return views;
 	}
 
+	/**
+	 * @return the index of a section in the layout-cache file, or -1 if 
+	 * there is no such file, or it does not contain that section
+	 */
+	private static int sectionIndex(String section, List<?> layoutSections) {
+		if (section == null || layoutSections == null) {
+			return -1;
+		}
+		try {
+			int i = Integer.parseInt(section);
+			return (i >= 0 && i < layoutSections.size()) ? i : -1;
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
 	private static int generateId() {
 		return ++idGen;
 	}
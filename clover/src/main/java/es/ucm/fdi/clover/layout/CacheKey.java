@@ -26,6 +26,7 @@ import es.ucm.fdi.clover.model.ViewGraph;
 import es.ucm.fdi.clover.model.ClusteredGraph;
 import es.ucm.fdi.clover.model.Cluster;
 import es.ucm.fdi.clover.model.BaseGraph;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.StringTokenizer;
@@ -51,6 +52,12 @@ public class CacheKey {
 
 	private String cachedString = null;
 
+	/** number of min-hashes in a signature; see getSignature() */
+	public static final int SIGNATURE_SIZE = 32;
+
+	/** lazily-built min-hash signature of the vertices and edges */
+	private int[] cachedSignature = null;
+
 	public CacheKey(Node[] nodes) {
 		for (Node n : nodes) {
 			HashSet<Object> out = new HashSet<Object>();
@@ -73,20 +80,7 @@ public class CacheKey {
 
 	public CacheKey(String saved, BaseGraph base) {
 		StringTokenizer st = new StringTokenizer(saved, "[]");
-
-		// find all possible id-to-vertex mappings (ignore root cluster itself)
-		HashMap<String, Object> idToVertex = new HashMap<String, Object>();
-		if (base instanceof ClusteredGraph) {
-			Cluster root = ((ClusteredGraph) base).getHierarchy().getRoot();
-			for (Cluster c : root.getDescendants()) {
-				idToVertex.put(base.getId(c.getVertex()), c.getVertex());
-				log.debug("Added " + base.getId(c.getVertex()));
-			}
-		} else {
-			for (Object v : base.vertexSet()) {
-				idToVertex.put(base.getId(v), v);
-			}
-		}
+		HashMap<String, Object> idToVertex = getIdToVertex(base);
 
 		// do the loading part
 		while (st.hasMoreTokens()) {
@@ -103,6 +97,40 @@ public class CacheKey {
 		}
 	}
 
+	/**
+	 * Creates a key from an already-built adjacency map; used when restoring
+	 * from binary saves
+	 */
+	CacheKey(HashMap<Object, HashSet<Object>> k) {
+		this.k = k;
+	}
+
+	/**
+	 * Finds all possible id-to-vertex mappings for the given graph (ignoring
+	 * the root cluster itself, in the case of clustered graphs)
+	 */
+	public static HashMap<String, Object> getIdToVertex(BaseGraph base) {
+		HashMap<String, Object> idToVertex = new HashMap<String, Object>();
+		if (base instanceof ClusteredGraph) {
+			Cluster root = ((ClusteredGraph) base).getHierarchy().getRoot();
+			for (Cluster c : root.getDescendants()) {
+				idToVertex.put(base.getId(c.getVertex()), c.getVertex());
+			}
+		} else {
+			for (Object v : base.vertexSet()) {
+				idToVertex.put(base.getId(v), v);
+			}
+		}
+		return idToVertex;
+	}
+
+	/**
+	 * Access to the underlying vertex-to-targets map; used by binary saves
+	 */
+	HashMap<Object, HashSet<Object>> getAdjacency() {
+		return k;
+	}
+
 	public String save(BaseGraph base) {
 		StringBuffer sb = new StringBuffer();
 		for (Object o : k.keySet()) {
@@ -168,6 +196,59 @@ public class CacheKey {
 		return matched / (double) Math.max(tMine, tOther);
 	}
 
+	/**
+	 * Returns the number of vertices in this key
+	 */
+	public int getVertexCount() {
+		return k.size();
+	}
+
+	/**
+	 * Returns a min-hash signature of this key's elements: its vertices and
+	 * its edges, which are exactly what scoreAgainst counts. Two keys whose
+	 * element sets have Jaccard similarity J agree, on average, in a fraction
+	 * J of their signature positions; this allows LayoutCache to find sloppy
+	 * matches without scoring every saved layout.
+	 */
+	public int[] getSignature() {
+		if (cachedSignature == null) {
+			int[] sig = new int[SIGNATURE_SIZE];
+			Arrays.fill(sig, Integer.MAX_VALUE);
+			for (Object o : k.keySet()) {
+				int h = (o == null) ? 0 : o.hashCode();
+				addToSignature(sig, h);
+				for (Object e : k.get(o)) {
+					int t = (e == null) ? 0 : e.hashCode();
+					// edges must not hash like the vertices they join
+					addToSignature(sig, mix(h * 0x27d4eb2d + t) ^ 0x5bd1e995);
+				}
+			}
+			cachedSignature = sig;
+		}
+		return cachedSignature;
+	}
+
+	private static void addToSignature(int[] sig, int h) {
+		for (int i = 0; i < SIGNATURE_SIZE; i++) {
+			int v = mix(h + (i + 1) * 0x9E3779B9);
+			if (v < sig[i]) {
+				sig[i] = v;
+			}
+		}
+	}
+
+	/**
+	 * Murmur3 finalizer; spreads the bits of a vertex hash
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
 	/**
 	 * Default hashCode behaviour is not useful
 	 */
@@ -28,52 +28,92 @@ import org.apache.commons.logging.LogFactory;
 import org.jdom2.Element;
 
 import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.TreeSet;
+import java.util.Map;
 
 /**
- * Stores previous layouts in a mixed LRU/max-available-mem approach
+ * Stores previous layouts in a mixed LRU/max-available-mem approach.
+ * Entries are kept in an access-ordered map (so that LRU bookkeeping is O(1)),
+ * and indexed by min-hash bands of their vertices and edges, so that sloppy
+ * matches only need to be scored against layouts that share a band with the
+ * key.
  *
  * @author mfreire
  */
 public class LayoutCache {
 	private Log log = LogFactory.getLog(LayoutCache.class);
 
-	/** max elements in strong cache */
+	/** max elements in strong cache; 0 or less means 'no count limit' */
 	private int maxSize;
 
-	/** lru bookkeeping for strong cache */
-	private TreeSet<SavedLayout> lru;
+	/** max estimated bytes in strong cache; 0 or less means 'no limit' */
+	private long maxBytes;
 
-	/** the cache itself (lru'd + memory-bounded) */
-	private HashMap<CacheKey, SavedLayout> cache;
+	/** current estimated bytes in strong cache */
+	private long usedBytes;
+
+	/** the cache itself (lru'd via access-order + size/memory-bounded) */
+	private LinkedHashMap<CacheKey, SavedLayout> cache;
+
+	/** min-hash band index: band-hash to layouts that fall into that bucket */
+	private HashMap<Long, HashSet<SavedLayout>> bands;
+
+	/** binary contents that will be restored on first access, if any */
+	private byte[] pendingData;
+
+	/** graph used to resolve vertex ids for pendingData */
+	private BaseGraph pendingGraph;
 
 	/** default size, used if nobody cares */
 	private static int defaultSize = 10;
 
+	/** number of bands the min-hash signature is split into */
+	private static final int BANDS = 8;
+
+	/** signature rows per band; BANDS * ROWS == CacheKey.SIGNATURE_SIZE */
+	private static final int ROWS = CacheKey.SIGNATURE_SIZE / BANDS;
+
+	/**
+	 * Below this minScore, band lookups may miss acceptable matches, and a
+	 * full scan is used instead. Signatures cover vertices and edges, so two
+	 * keys with m matched elements out of tA and tB have element Jaccard
+	 * J = m / (tA + tB - m), while scoreAgainst returns s = m / max(tA, tB);
+	 * therefore J >= s / (2 - s). A pair shares at least one band with 
+	 * probability 1 - (1 - J^ROWS)^BANDS: at least 95% for s >= 0.86 
+	 * (J >= 0.75), but only about 67% for s = 0.75 (J >= 0.6).
+	 */
+	private static final double MIN_INDEXED_SCORE = 0.86;
+
+	/** rough per-vertex memory cost of a saved box (map entry + rectangle) */
+	private static final int BYTES_PER_BOX = 96;
+
+	/** rough per-vertex memory cost of a cache key (vertex + edge set) */
+	private static final int BYTES_PER_KEY_VERTEX = 128;
+
 	/**
 	 * Internal class that represents a cached view; cached views always use
 	 * layout coordinates.
 	 */
-	private static class SavedLayout implements Comparable<SavedLayout> {
-		protected int lastAccess;
+	private static class SavedLayout {
 		protected CacheKey key;
 		protected HashMap<Object, Rectangle2D> data;
-
-		/** global 'time' counter */
-		private static int currentTime = 0;
+		protected long bytes;
 
 		private SavedLayout(CacheKey key, HashMap<Object, Rectangle2D> data) {
-			lastAccess = Integer.MIN_VALUE;
-			updateAccess();
 			this.key = key;
 			this.data = data;
-		}
-
-		public void updateAccess() {
-			lastAccess = currentTime++;
+			this.bytes = (long) data.size() * BYTES_PER_BOX
+					+ (long) key.getVertexCount() * BYTES_PER_KEY_VERTEX;
 		}
 
 		public CacheKey getKey() {
@@ -83,10 +123,6 @@ public class LayoutCache {
 		public HashMap<Object, Rectangle2D> getData() {
 			return data;
 		}
-
-		public int compareTo(SavedLayout o) {
-			return lastAccess - o.lastAccess;
-		}
 	}
 
 	/**
@@ -100,19 +136,51 @@ public class LayoutCache {
 	 * Creates a new instance of LayoutCache
 	 */
 	public LayoutCache(int maxSize) {
+		this(maxSize, 0);
+	}
+
+	/**
+	 * Creates a new instance of LayoutCache, bounded both by number of
+	 * entries and by estimated memory use (in bytes). Use 0 for either bound
+	 * to disable it.
+	 */
+	public LayoutCache(int maxSize, long maxBytes) {
 		this.maxSize = maxSize;
-		lru = new TreeSet<SavedLayout>();
-		cache = new HashMap<CacheKey, SavedLayout>();
+		this.maxBytes = maxBytes;
+		cache = new LinkedHashMap<CacheKey, SavedLayout>(16, 0.75f, true);
+		bands = new HashMap<Long, HashSet<SavedLayout>>();
 	}
 
 	/**
 	 * Change the max number of elements in strong cache
 	 */
-	public void setSize(int maxSize) {
+	public synchronized void setSize(int maxSize) {
 		this.maxSize = maxSize;
-		while (lru.size() > maxSize) {
-			lru.remove(lru.first());
-		}
+		evict();
+	}
+
+	/**
+	 * Change the max estimated memory (in bytes) of the strong cache
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	/**
+	 * @return the estimated memory (in bytes) currently used by saved layouts
+	 */
+	public synchronized long getUsedBytes() {
+		ensureLoaded();
+		return usedBytes;
+	}
+
+	/**
+	 * @return the number of saved layouts
+	 */
+	public synchronized int size() {
+		ensureLoaded();
+		return cache.size();
 	}
 
 	/**
@@ -142,12 +210,14 @@ public class LayoutCache {
 	 * and vertices to look for worse matches. If no perfect match and no
 	 * sloppy match better than minScore is found, returns 'null'.
 	 */
-	public CacheHit get(CacheKey key, double minScore) {
+	public synchronized CacheHit get(CacheKey key, double minScore) {
+		ensureLoaded();
 		SavedLayout currentLayout = null;
 		double currentScore;
 
 		log.debug("Looking up key = " + key);
 
+		// access-ordered: a successful get() is also an lru 'hit'
 		currentLayout = cache.get(key);
 		if (currentLayout == null) {
 			log.debug("\tCache *near* miss, reverting to sloppy matching");
@@ -156,20 +226,18 @@ public class LayoutCache {
 			currentScore = currentLayout.getKey().scoreAgainst(key);
 			if (currentScore >= minScore) {
 				log.debug("\tCache hit confirmed; score = " + currentScore);
-				hit(currentLayout);
 				return new CacheHit(currentLayout.getData(), currentScore);
 			}
 		}
 
-		// sloppy match
+		// sloppy match, restricted to band-mates unless minScore is too lax
+		Iterable<SavedLayout> candidates = (minScore < MIN_INDEXED_SCORE) ? new ArrayList<SavedLayout>(
+				cache.values())
+				: findCandidates(key);
 		SavedLayout bestLayout = null;
 		double bestScore = Double.MIN_VALUE;
 
-		for (SavedLayout current : cache.values()) {
-			if (current == null) {
-				continue;
-			}
-
+		for (SavedLayout current : candidates) {
 			currentScore = current.getKey().scoreAgainst(key);
 			if (currentScore > bestScore) {
 				bestScore = currentScore;
@@ -185,7 +253,7 @@ public class LayoutCache {
 		} else {
 			log.debug("\tSloppy is good enough, returning; score = "
 					+ bestScore);
-			hit(bestLayout);
+			cache.get(bestLayout.getKey()); // marks as most-recently-used
 			return new CacheHit(bestLayout.getData(), bestScore);
 		}
 	}
@@ -193,79 +261,158 @@ public class LayoutCache {
 	/**
 	 * Add a new layout
 	 */
-	public void put(CacheKey key, HashMap<Object, Rectangle2D> layout) {
+	public synchronized void put(CacheKey key,
+			HashMap<Object, Rectangle2D> layout) {
+		ensureLoaded();
 		log.debug("Added/refreshed layout for key " + key);
 		SavedLayout toSave = new SavedLayout(key, layout);
-		hit(toSave);
+		SavedLayout old = cache.remove(key);
+		if (old != null) {
+			unindex(old);
+		}
 		cache.put(key, toSave);
+		index(toSave);
+		if (log.isDebugEnabled()) {
+			log.debug("Added:" + dumpSingle(toSave));
+		}
+		evict();
 	}
 
 	/**
-	 * Hit a layout: 
-	 * - if in lru, remove it
-	 * - if size is exceeded, remove least-recently-used until size ok
-	 * - update timestamp
-	 * - add again to lru list
+	 * Removes least-recently-used layouts until both the size and memory
+	 * limits are satisfied. The most-recently-used layout is never evicted.
 	 */
-	private void hit(SavedLayout sl) {
-		lru.remove(sl);
-		while (lru.size() >= maxSize) {
+	private void evict() {
+		Iterator<SavedLayout> it = cache.values().iterator();
+		while (cache.size() > 1
+				&& ((maxSize > 0 && cache.size() > maxSize) || (maxBytes > 0 && usedBytes > maxBytes))) {
+			SavedLayout eldest = it.next();
 			if (log.isDebugEnabled()) {
-				log.debug("Limit reached; removed:" + dumpSingle(lru.first()));
+				log.debug("Limit reached; removed:" + dumpSingle(eldest));
 			}
-			lru.remove(lru.first());
+			it.remove();
+			unindex(eldest);
 		}
-		sl.updateAccess();
-		ArrayList<SavedLayout> toRemove = new ArrayList<SavedLayout>();
-		for (SavedLayout saved : lru) {
-			if (cache.get(saved.getKey()) != saved) {
-				toRemove.add(saved);
+	}
+
+	/**
+	 * Returns all layouts whose keys share at least one min-hash band with the given
+	 * key; these are the only plausible sloppy matches.
+	 */
+	private HashSet<SavedLayout> findCandidates(CacheKey key) {
+		HashSet<SavedLayout> candidates = new HashSet<SavedLayout>();
+		int[] sig = key.getSignature();
+		for (int b = 0; b < BANDS; b++) {
+			HashSet<SavedLayout> bucket = bands.get(bandHash(sig, b));
+			if (bucket != null) {
+				candidates.addAll(bucket);
 			}
 		}
-		lru.removeAll(toRemove);
+		log.debug("\tSloppy candidates: " + candidates.size() + " of "
+				+ cache.size());
+		return candidates;
+	}
 
-		lru.add(sl);
-		if (log.isDebugEnabled()) {
-			log.debug("Added:" + dumpSingle(sl));
+	private void index(SavedLayout sl) {
+		usedBytes += sl.bytes;
+		int[] sig = sl.getKey().getSignature();
+		for (int b = 0; b < BANDS; b++) {
+			Long h = bandHash(sig, b);
+			HashSet<SavedLayout> bucket = bands.get(h);
+			if (bucket == null) {
+				bucket = new HashSet<SavedLayout>();
+				bands.put(h, bucket);
+			}
+			bucket.add(sl);
+		}
+	}
+
+	private void unindex(SavedLayout sl) {
+		usedBytes -= sl.bytes;
+		int[] sig = sl.getKey().getSignature();
+		for (int b = 0; b < BANDS; b++) {
+			Long h = bandHash(sig, b);
+			HashSet<SavedLayout> bucket = bands.get(h);
+			if (bucket != null) {
+				bucket.remove(sl);
+				if (bucket.isEmpty()) {
+					bands.remove(h);
+				}
+			}
 		}
 	}
 
+	/**
+	 * Hashes the rows of band 'b'; the band number goes into the high bits,
+	 * so that equal rows in different bands do not collide
+	 */
+	private static Long bandHash(int[] sig, int b) {
+		int h = 17;
+		for (int i = b * ROWS; i < (b + 1) * ROWS; i++) {
+			h = 31 * h + sig[i];
+		}
+		return ((long) b << 32) | (h & 0xffffffffL);
+	}
+
 	/**
 	 * Dumps the current contents of the layout cache - 
 	 * good for debugging purposes
 	 */
-	public String dump(BaseGraph g) {
+	public synchronized String dump(BaseGraph g) {
+		ensureLoaded();
 		StringBuffer sb = new StringBuffer();
 		int i = 0;
 		int check = 0;
+		// iteration order is least-recently-used first
 		for (SavedLayout current : cache.values()) {
 			i++;
 			for (Rectangle2D r : current.getData().values()) {
 				check += r.getCenterX() - r.getCenterY();
 			}
-			sb.append("" + i + ": " + current.lastAccess + " (" + check
-					+ ") - " + current.key.save(g) + "\n");
+			sb.append("" + i + ": " + current.bytes + "b (" + check + ") - "
+					+ current.key.save(g) + "\n");
 		}
 		return sb.toString();
 	}
 
-	public String dumpSingle(SavedLayout sl) {
+	private String dumpSingle(SavedLayout sl) {
 		int check = 0;
 		for (Rectangle2D r : sl.getData().values()) {
 			check += r.getCenterX() - r.getCenterY();
 		}
-		return sl.lastAccess + " (" + check + ") - " + sl.getKey() + "\n";
+		return sl.bytes + "b (" + check + ") - " + sl.getKey() + "\n";
 	}
 
 	/**
-	 * Save a layoutCache to a jdom element
+	 * Save a layoutCache's size limits (but not its contents) to a jdom
+	 * element
 	 */
-	public void save(Element e, BaseGraph g) {
+	public synchronized void saveSettings(Element e) {
 		e.setAttribute("maxSize", "" + maxSize);
-		for (CacheKey key : cache.keySet()) {
-			SavedLayout sl = cache.get(key);
-			if (sl == null)
-				continue;
+		if (maxBytes > 0) {
+			e.setAttribute("maxBytes", "" + maxBytes);
+		}
+	}
+
+	/**
+	 * Load a layoutCache's size limits from a jdom element
+	 */
+	public synchronized void restoreSettings(Element e) {
+		setSize(Integer.parseInt(e.getAttributeValue("maxSize")));
+		if (e.getAttributeValue("maxBytes") != null) {
+			setMaxBytes(Long.parseLong(e.getAttributeValue("maxBytes")));
+		}
+	}
+
+	/**
+	 * Save a layoutCache to a jdom element
+	 */
+	public synchronized void save(Element e, BaseGraph g) {
+		ensureLoaded();
+		saveSettings(e);
+		// saved in lru order, so that restoring preserves recency
+		for (SavedLayout sl : cache.values()) {
+			CacheKey key = sl.getKey();
 
 			Element entry = new Element("entry");
 			entry.setAttribute("key", key.save(g));
@@ -286,8 +433,8 @@ public class LayoutCache {
 	/**
 	 * Load a layoutCache from a JDom element
 	 */
-	public void restore(Element e, BaseGraph g) {
-		setSize(Integer.parseInt(e.getAttributeValue("maxSize")));
+	public synchronized void restore(Element e, BaseGraph g) {
+		restoreSettings(e);
 		for (Element entry : (List<Element>) e.getChildren()) {
 			CacheKey key = new CacheKey(entry.getAttributeValue("key"), g);
 			// System.err.println("processing "+entry.getAttributeValue("key"));
@@ -306,11 +453,157 @@ public class LayoutCache {
 		}
 	}
 
+	/**
+	 * Save the contents of a layoutCache (but not its settings) in a compact
+	 * binary form. Format is
+	 * <pre>
+	 *     int nIds, nIds x UTF id
+	 *     int nEntries, nEntries x (
+	 *         int nVertices, nVertices x (int vertex, int nEdges, nEdges x int target)
+	 *         int nBoxes, nBoxes x (int vertex, float x, float y, float w, float h))
+	 * </pre>
+	 * where vertices are indexes into the id table (or -1 for unknown vertices);
+	 * entries are written in lru order.
+	 */
+	public synchronized void save(DataOutput out, BaseGraph g)
+			throws IOException {
+		ensureLoaded();
+		HashMap<Object, Integer> vertexToIndex = new HashMap<Object, Integer>();
+		ArrayList<String> ids = new ArrayList<String>();
+		for (SavedLayout sl : cache.values()) {
+			for (Map.Entry<Object, HashSet<Object>> e : sl.getKey()
+					.getAdjacency().entrySet()) {
+				indexOf(e.getKey(), g, vertexToIndex, ids);
+				for (Object t : e.getValue()) {
+					indexOf(t, g, vertexToIndex, ids);
+				}
+			}
+			for (Object o : sl.getData().keySet()) {
+				indexOf(o, g, vertexToIndex, ids);
+			}
+		}
+
+		out.writeInt(ids.size());
+		for (String id : ids) {
+			out.writeUTF(id);
+		}
+		out.writeInt(cache.size());
+		for (SavedLayout sl : cache.values()) {
+			HashMap<Object, HashSet<Object>> k = sl.getKey().getAdjacency();
+			out.writeInt(k.size());
+			for (Map.Entry<Object, HashSet<Object>> e : k.entrySet()) {
+				out.writeInt(vertexToIndex.get(e.getKey()));
+				out.writeInt(e.getValue().size());
+				for (Object t : e.getValue()) {
+					out.writeInt(vertexToIndex.get(t));
+				}
+			}
+			out.writeInt(sl.getData().size());
+			for (Map.Entry<Object, Rectangle2D> e : sl.getData().entrySet()) {
+				Rectangle2D r = e.getValue();
+				out.writeInt(vertexToIndex.get(e.getKey()));
+				out.writeFloat((float) r.getX());
+				out.writeFloat((float) r.getY());
+				out.writeFloat((float) r.getWidth());
+				out.writeFloat((float) r.getHeight());
+			}
+		}
+	}
+
+	private static int indexOf(Object o, BaseGraph g,
+			HashMap<Object, Integer> vertexToIndex, ArrayList<String> ids) {
+		Integer i = vertexToIndex.get(o);
+		if (i == null) {
+			String id = (o == null) ? null : g.getId(o);
+			if (id == null) {
+				i = -1;
+			} else {
+				i = ids.size();
+				ids.add(id);
+			}
+			vertexToIndex.put(o, i);
+		}
+		return i;
+	}
+
+	/**
+	 * Load the contents of a layoutCache from its binary form (see
+	 * save(DataOutput, BaseGraph)). Previous contents are not cleared.
+	 */
+	public synchronized void restore(DataInput in, BaseGraph g)
+			throws IOException {
+		ensureLoaded();
+		HashMap<String, Object> idToVertex = CacheKey.getIdToVertex(g);
+		Object[] vertices = new Object[in.readInt()];
+		for (int i = 0; i < vertices.length; i++) {
+			vertices[i] = idToVertex.get(in.readUTF());
+		}
+		int nEntries = in.readInt();
+		for (int i = 0; i < nEntries; i++) {
+			int nVertices = in.readInt();
+			HashMap<Object, HashSet<Object>> k = new HashMap<Object, HashSet<Object>>();
+			for (int j = 0; j < nVertices; j++) {
+				Object v = vertex(vertices, in.readInt());
+				int nEdges = in.readInt();
+				HashSet<Object> out = new HashSet<Object>();
+				for (int l = 0; l < nEdges; l++) {
+					out.add(vertex(vertices, in.readInt()));
+				}
+				k.put(v, out);
+			}
+			int nBoxes = in.readInt();
+			HashMap<Object, Rectangle2D> boxes = new HashMap<Object, Rectangle2D>();
+			for (int j = 0; j < nBoxes; j++) {
+				Object v = vertex(vertices, in.readInt());
+				boxes.put(v, new Rectangle2D.Float(in.readFloat(), in
+						.readFloat(), in.readFloat(), in.readFloat()));
+			}
+			put(new CacheKey(k), boxes);
+		}
+	}
+
+	private static Object vertex(Object[] vertices, int i) {
+		return (i < 0) ? null : vertices[i];
+	}
+
+	/**
+	 * Schedules the contents of a layoutCache, in binary form, to be restored
+	 * the first time that the cache is actually used. This avoids resolving
+	 * vertex ids and building keys for views that are never displayed.
+	 */
+	public synchronized void restoreLazily(byte[] data, BaseGraph g) {
+		ensureLoaded();
+		pendingData = data;
+		pendingGraph = g;
+	}
+
+	/**
+	 * Restores any pending binary contents; called before all accesses
+	 */
+	private void ensureLoaded() {
+		if (pendingData == null) {
+			return;
+		}
+		byte[] data = pendingData;
+		pendingData = null;
+		try {
+			restore(new DataInputStream(new ByteArrayInputStream(data)),
+					pendingGraph);
+			log.debug("Lazily restored " + cache.size() + " layouts");
+		} catch (IOException ioe) {
+			log.warn("Could not restore saved layouts", ioe);
+		}
+		pendingGraph = null;
+	}
+
 	/**
 	 * Empties the cache from all saved views
 	 */
-	public void clear() {
-		lru.clear();
+	public synchronized void clear() {
+		pendingData = null;
+		pendingGraph = null;
 		cache.clear();
+		bands.clear();
+		usedBytes = 0;
 	}
 }
@@ -143,4 +143,42 @@ public class BaseGraph extends DefaultDirectedWeightedGraph implements
 	public String getEdgeLabel(Edge e) {
 		return "";
 	}
+
+	/**
+	 * Returns a copy of this graph, with the same vertices and edges, that
+	 * can be read from another thread while this one keeps changing. Ids and 
+	 * labels are still those of this graph. Must be called from the 
+	 * thread that changes this graph.
+	 */
+	public BaseGraph snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * A detached copy of a graph (see snapshot)
+	 */
+	private static class Snapshot extends BaseGraph {
+		private BaseGraph original;
+
+		private Snapshot(BaseGraph original) {
+			super((DefaultEdgeFactory) original.getEdgeFactory());
+			this.original = original;
+			Graphs.addGraph(this, original);
+		}
+
+		@Override
+		public String getId(Object vertex) {
+			return original.getId(vertex);
+		}
+
+		@Override
+		public String getVertexLabel(Object o) {
+			return original.getVertexLabel(o);
+		}
+
+		@Override
+		public String getEdgeLabel(Edge e) {
+			return original.getEdgeLabel(e);
+		}
+	}
 }
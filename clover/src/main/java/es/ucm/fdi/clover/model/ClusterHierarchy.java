@@ -35,6 +35,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
 import org.jdom2.Element;
 
 import org.apache.commons.logging.Log;
@@ -69,6 +70,9 @@ public class ClusterHierarchy implements StructureChangeListener,
 	/** hierarchy change listeners */
 	protected ArrayList<HierarchyChangeListener> hierarchyListeners;
 
+	/** if non-null, structure changes are processed in the background */
+	protected HierarchyUpdateWorker worker;
+
 	/**
 	 * Uses a saved JDom element to restore a clusterhierarchy
 	 */
@@ -111,6 +115,10 @@ public class ClusterHierarchy implements StructureChangeListener,
 			evt.setRootChange(root);
 		}
 		root = engine.createHierarchy(base, rootVertex);
+		if (worker != null) {
+			// queued changes refer to the old graph and hierarchy
+			worker.discardPending();
+		}
 		if (evt != null) {
 			fireHierarchyChangeEvt(evt);
 		}
@@ -118,6 +126,30 @@ public class ClusterHierarchy implements StructureChangeListener,
 		base.addStructureChangeListener(this);
 	}
 
+	/**
+	 * Enables or disables background processing of base-graph changes. When
+	 * enabled, reclustering happens in a separate thread, bursts of changes
+	 * are coalesced, and resulting HierarchyChangeEvents are fired in the
+	 * Swing EDT. When disabled (the default), changes are processed
+	 * synchronously, in the thread that reports them.
+	 */
+	public void setBackgroundUpdates(boolean enabled) {
+		if (enabled && worker == null) {
+			worker = new HierarchyUpdateWorker(this);
+			worker.start();
+		} else if (!enabled && worker != null) {
+			worker.stop();
+			worker = null;
+		}
+	}
+
+	/**
+	 * @return the background worker, or null if updates are synchronous
+	 */
+	public HierarchyUpdateWorker getWorker() {
+		return worker;
+	}
+
 	public void addHierarchyChangeListener(HierarchyChangeListener l) {
 		hierarchyListeners.add(l);
 	}
@@ -145,6 +177,10 @@ public class ClusterHierarchy implements StructureChangeListener,
 	 */
 	public void structureChangePerformed(StructureChangeEvent evt) {
 		log.debug(evt.getDescription());
+		if (worker != null) {
+			worker.enqueue(evt);
+			return;
+		}
 		HierarchyChangeEvent hce = new HierarchyChangeEvent(this, evt
 				.getDescription());
 		engine.updateHierarchy(root, base, evt, hce);
@@ -308,6 +344,9 @@ public class ClusterHierarchy implements StructureChangeListener,
 
 		// repeat until s1 and s2 reach the root (when it is matched, no more matches are possible)
 		while (!hce.getMatchedClusters().containsKey(root)) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new CancellationException("Change event superseded");
+			}
 
 			log.debug("\n\t" + dump("s1", s1) + "\n\t" + dump("s2", s2)
 					+ "\n\t" + dump("u1", u1) + "\n\t" + dump("u2", u2)
@@ -573,6 +612,11 @@ public class ClusterHierarchy implements StructureChangeListener,
 			change = hce;
 			return second;
 		}
+
+		public ClusteringEngine copy() {
+			// tests inspect 'change'
+			return this;
+		}
 	}
 
 	/**
@@ -114,6 +114,25 @@ public class ClusteredGraph extends BaseGraph implements
 			log.debug("Processing a CHCEvent: " + hce.getDescription());
 		}
 
+		// the hierarchy may have changed shape under the slice: update the
+		// slice index, but only around the clusters that actually moved
+		HashSet<Cluster> suspects = null;
+		if (hce.isRootChange()) {
+			slice.invalidateIndex();
+		} else if (!hce.getAddedClusters().isEmpty()
+				|| !hce.getRemovedClusters().isEmpty()) {
+			HashSet<Cluster> moved = new HashSet<Cluster>(hce
+					.getMatchedClusters().values());
+			for (ArrayList<Cluster> l : hce.getRemovedClusters().values()) {
+				moved.addAll(l);
+			}
+			suspects = slice.reindex(moved);
+			if (suspects != null) {
+				suspects.addAll(hce.getRemovedClusters().keySet());
+				suspects.addAll(hce.getAddedClusters().keySet());
+			}
+		}
+
 		Object nextPoi = hce
 				.getVisibleRepresentativeFor(pointOfInterest, slice);
 
@@ -184,7 +203,10 @@ public class ClusteredGraph extends BaseGraph implements
 		}
 
 		// fill in gaps in the slice left after removals; better than 'addedClusters'
-		HashSet<Cluster> tmp = new HashSet<Cluster>(slice.findHoles(root));
+		// (only explores around moved clusters, or ancestors of visible 
+		// clusters if the index was not available)
+		HashSet<Cluster> tmp = new HashSet<Cluster>((suspects == null) ? slice
+				.findHoles(root) : slice.findHoles(root, suspects));
 		for (Cluster h : tmp) {
 			log.debug("Found slice hole: " + h.getListing(getBase()));
 			slice.add(h);
@@ -629,11 +651,7 @@ public class ClusteredGraph extends BaseGraph implements
 			return null;
 		}
 
-		// FIXME: not very efficient
-		List<Cluster> list = c.getDescendants();
-		list.add(c);
-		list.retainAll(slice);
-		if (list.isEmpty()) {
+		if (!slice.contains(c) && slice.countDescendantsOf(c) == 0) {
 			log.debug("decided this was an EXPANSION");
 			return createExpandEvent(v);
 		} else {
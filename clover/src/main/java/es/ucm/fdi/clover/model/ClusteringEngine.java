@@ -61,4 +61,11 @@ public interface ClusteringEngine {
 	 */
 	Cluster updateHierarchy(Cluster root, BaseGraph base,
 			StructureChangeEvent sce, HierarchyChangeEvent hce);
+
+	/**
+	 * Returns an engine with the same configuration that shares no mutable
+	 * state with this one, so that it can be used from another thread
+	 * (such as a HierarchyUpdateWorker) 
+	 */
+	ClusteringEngine copy();
 }
@@ -0,0 +1,281 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.clover.model;
+
+import es.ucm.fdi.clover.event.HierarchyChangeEvent;
+import es.ucm.fdi.clover.event.StructureChangeEvent;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.CancellationException;
+import javax.swing.SwingUtilities;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Computes hierarchy updates in a background thread, so that reclustering
+ * (and diffing the old and new hierarchies) does not block the thread that
+ * changed the base graph - usually the Swing EDT.
+ *
+ * Incoming StructureChangeEvents are coalesced: while an update is being
+ * computed, any new events are appended to a single pending event, and the
+ * running computation is cancelled. Only the final HierarchyChangeEvent of a
+ * burst is applied to the hierarchy (and therefore, to ClusteredGraphs and
+ * their views); this happens in the EDT, after checking that no newer change
+ * has arrived in the meantime.
+ *
+ * The worker never reads the live base graph or the hierarchy's engine:
+ * each incoming event comes with a snapshot of the base graph and a copy of
+ * the engine, both taken when the event is queued (in the thread that 
+ * changed the graph). The hierarchy itself is only changed in the EDT, when 
+ * updates computed here are applied.
+ *
+ * @author mfreire
+ */
+public class HierarchyUpdateWorker implements Runnable {
+
+	private Log log = LogFactory.getLog(HierarchyUpdateWorker.class);
+
+	/** the hierarchy to update */
+	private ClusterHierarchy hierarchy;
+
+	/** changes not yet incorporated into the hierarchy; guarded by 'this' */
+	private StructureChangeEvent pending;
+
+	/** base graph, as of the last pending change; guarded by 'this' */
+	private BaseGraph pendingBase;
+
+	/** engine to compute the pending change with; guarded by 'this' */
+	private ClusteringEngine pendingEngine;
+
+	/** incremented with each incoming event; guarded by 'this' */
+	private long generation;
+
+	/** true while the worker is computing (and may be interrupted) */
+	private boolean computing;
+
+	/** true from the moment a change is taken until it is applied */
+	private boolean busy;
+
+	/** set to stop the worker */
+	private volatile boolean stopped;
+
+	private Thread thread;
+
+	/**
+	 * Creates a new worker for the given hierarchy. Call start() to launch it
+	 */
+	public HierarchyUpdateWorker(ClusterHierarchy hierarchy) {
+		this.hierarchy = hierarchy;
+	}
+
+	public void start() {
+		thread = new Thread(this, "clover-hierarchy-updater");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the worker. Pending changes are discarded
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		discard();
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Queues a change for processing, cancelling any computation that is
+	 * based on older changes.
+	 */
+	public synchronized void enqueue(StructureChangeEvent evt) {
+		if (pending == null) {
+			pending = evt;
+		} else {
+			pending.append(evt);
+		}
+		pendingBase = hierarchy.getBase().snapshot();
+		pendingEngine = hierarchy.getEngine().copy();
+		supersede();
+		notifyAll();
+	}
+
+	/**
+	 * Discards queued changes, and any computation in progress; used when
+	 * the base graph is replaced altogether.
+	 */
+	public synchronized void discardPending() {
+		discard();
+		supersede();
+		notifyAll();
+	}
+
+	private void discard() {
+		pending = null;
+		pendingBase = null;
+		pendingEngine = null;
+	}
+
+	/**
+	 * Marks any computation in progress as stale, and interrupts it
+	 */
+	private void supersede() {
+		generation++;
+		if (computing) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * @return true if there are changes not yet reflected in the hierarchy
+	 */
+	public synchronized boolean isBusy() {
+		return pending != null || busy;
+	}
+
+	/**
+	 * Puts back a change that could not be applied, before any later ones
+	 * (which, if present, come with a more recent snapshot)
+	 */
+	private synchronized void requeue(StructureChangeEvent sce, BaseGraph base,
+			ClusteringEngine engine) {
+		if (pending != null) {
+			sce.append(pending);
+		} else {
+			pendingBase = base;
+			pendingEngine = engine;
+		}
+		pending = sce;
+	}
+
+	public void run() {
+		while (!stopped) {
+			StructureChangeEvent sce;
+			BaseGraph base;
+			ClusteringEngine engine;
+			Cluster root;
+			final long taken;
+			synchronized (this) {
+				while (pending == null && !stopped) {
+					try {
+						wait();
+					} catch (InterruptedException ie) {
+						// re-check
+					}
+				}
+				if (stopped) {
+					return;
+				}
+				sce = pending;
+				base = pendingBase;
+				engine = pendingEngine;
+				// only replaced before discardPending (which syncs on this)
+				root = hierarchy.getRoot();
+				discard();
+				taken = generation;
+				computing = true;
+				busy = true;
+			}
+
+			final HierarchyChangeEvent hce = new HierarchyChangeEvent(
+					hierarchy, sce.getDescription());
+			boolean cancelled = false;
+			boolean failed = false;
+			try {
+				engine.updateHierarchy(root, base, sce, hce);
+			} catch (CancellationException ce) {
+				cancelled = true;
+			} catch (RuntimeException re) {
+				// not a race: nothing computed here is shared
+				log.error("Error computing hierarchy update", re);
+				failed = true;
+			} finally {
+				synchronized (this) {
+					computing = false;
+					Thread.interrupted();
+				}
+			}
+
+			if (cancelled || isStale(taken)) {
+				log.debug("Hierarchy update superseded; recomputing");
+				requeue(sce, base, engine);
+				setIdle();
+				continue;
+			} else if (failed) {
+				// retrying the same change would fail again
+				setIdle();
+				continue;
+			}
+
+			final boolean[] applied = new boolean[1];
+			try {
+				SwingUtilities.invokeAndWait(new Runnable() {
+					public void run() {
+						// base-graph events arrive in the EDT: no races here
+						if (!isStale(taken) && !stopped) {
+							hierarchy.hierarchyChangePerformed(hce);
+							applied[0] = true;
+						}
+					}
+				});
+			} catch (InterruptedException ie) {
+				// stopped while waiting
+			} catch (InvocationTargetException ite) {
+				log.error("Error applying hierarchy update", ite.getCause());
+				applied[0] = true;
+			}
+			if (!applied[0] && !stopped) {
+				requeue(sce, base, engine);
+			}
+			setIdle();
+		}
+	}
+
+	private synchronized void setIdle() {
+		busy = false;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until all queued changes have been applied, or until the timeout
+	 * expires. Must not be called from the EDT.
+	 * @return true if all changes were applied
+	 */
+	public synchronized boolean waitUntilIdle(long timeoutMillis)
+			throws InterruptedException {
+		long end = System.currentTimeMillis() + timeoutMillis;
+		while (isBusy()) {
+			long left = end - System.currentTimeMillis();
+			if (left <= 0) {
+				return false;
+			}
+			wait(left);
+		}
+		return true;
+	}
+
+	private synchronized boolean isStale(long taken) {
+		return generation != taken;
+	}
+}
@@ -25,8 +25,13 @@ package es.ucm.fdi.clover.model;
 import es.ucm.fdi.clover.event.HierarchyChangeEvent;
 import es.ucm.fdi.clover.event.StructureChangeEvent;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jdom2.Element;
@@ -44,7 +49,7 @@ import org.jgrapht.Graphs;
  * @author mfreire
  */
 @SuppressWarnings( { "unchecked", "rawtypes" })
-public class SimpleRuleClusterer implements ClusteringEngine {
+public class SimpleRuleClusterer implements ClusteringEngine, Cloneable {
 
 	private Log log = LogFactory.getLog(SimpleRuleClusterer.class);
 
@@ -84,83 +89,155 @@ public class SimpleRuleClusterer implements ClusteringEngine {
 	}
 
 	/**
-	 * Hierarchy creation: the real thing
+	 * Hierarchy creation: the real thing.
+	 *
+	 * Equivalent to repeatedly scanning all rules (in order) against all
+	 * vertices (in vertex-set order), and applying the first match; but
+	 * instead of re-scanning after each merge, the set of matching vertices
+	 * is kept for each rule, and only vertices close enough to a new cluster
+	 * to have their rule-outcome changed are re-evaluated.
 	 */
 	private Cluster buildHierarchy(BaseGraph base, Slice clusters,
 			Object rootVertex) {
 
 		SliceGraph graph = new SliceGraph(clusters, base);
 
-		// build the rest of the clusters by repeated application of rules
-		while (clusters.size() > 1) {
+		// insertion order of vertices; new clusters are always appended
+		HashMap<Object, Integer> order = new HashMap<Object, Integer>();
+		// for each rule, vertices where it currently matches (by order)
+		ArrayList<TreeMap<Integer, Object>> matching = new ArrayList<TreeMap<Integer, Object>>();
+		for (int i = 0; i < rules.size(); i++) {
+			matching.add(new TreeMap<Integer, Object>());
+		}
+		for (ClusteringRule cr : rules) {
+			cr.setDegreeCaching(true);
+		}
 
-			log.info("== Next iteration: " + clusters.size()
-					+ " contestants left");
-			if (log.isDebugEnabled()) {
-				log.debug(">> Contestant/vertices:");
-				for (Object v : graph.vertexSet()) {
-					log.debug("\t " + base.getVertexLabel(v));
-				}
-				log.debug(">> Contestants/clusters:");
-				for (Cluster c : clusters) {
-					log.debug("\t "
-							+ base.getVertexLabel(c.getFirstLeafVertex())
-							+ " (" + c.getDescendants().size() + ")");
-				}
+		try {
+			for (Object v : graph.vertexSet()) {
+				order.put(v, order.size());
 			}
+			evaluateRules(graph, graph.vertexSet(), order, matching);
+			int nextOrder = order.size();
+
+			// build the rest of the clusters by repeated application of rules
+			while (clusters.size() > 1) {
+				if (Thread.currentThread().isInterrupted()) {
+					// background update superseded by a newer one
+					throw new CancellationException("Clustering superseded");
+				}
 
-			// iterate through all vertices, checking rules
-			boolean somethingMatched = false;
-			for (ClusteringRule cr : rules) {
-				log.debug("SWITCHING to " + cr.getDescription());
-				for (Object v : graph.vertexSet()) {
-					log.debug("Evaluating " + v.getClass().getSimpleName());
-					ArrayList al = cr.applyTo(graph, v);
-					if (al != null) {
-						rootVertex = buildCluster(graph, al, rootVertex);
-						if (log.isDebugEnabled()) {
-							for (Object x : al) {
-								log.debug("\t" + x.getClass().getSimpleName());
-							}
-							log.debug("NEW CLUSTER (" + cr.getDescription()
-									+ "):");
-							//cv.getCluster().dump();
-						}
-						somethingMatched = true;
-						break;
+				log.debug("== Next iteration: " + clusters.size()
+						+ " contestants left");
+
+				// find first matching vertex of first rule with any match
+				ClusteringRule matchedRule = null;
+				ArrayList al = null;
+				for (int i = 0; i < rules.size() && al == null; i++) {
+					if (!matching.get(i).isEmpty()) {
+						matchedRule = rules.get(i);
+						Object v = matching.get(i).firstEntry().getValue();
+						al = matchedRule.applyTo(graph, v);
 					}
 				}
-				if (somethingMatched) {
-					break;
-				}
-				log.debug("Did not match anything with " + cr.getDescription());
-			}
 
-			// if the rules have all failed, bunch all together
-			if (!somethingMatched) {
-				// cycles, multiple components... just bunch all together
-				log.debug("NO RULES AVAILABLE: Just bunching everything up");
-				ArrayList al = new ArrayList();
-				// if the root vertex still hasn't been clustered, cluster it now
-				if (graph.containsVertex(rootVertex)) {
-					al.add(rootVertex);
+				if (al != null) {
+					Object added = buildCluster(graph, al, rootVertex);
+					rootVertex = added;
+					if (log.isDebugEnabled()) {
+						for (Object x : al) {
+							log.debug("\t" + x.getClass().getSimpleName());
+						}
+						log.debug("NEW CLUSTER ("
+								+ matchedRule.getDescription() + ")");
+					}
+					update(graph, al, added, nextOrder++, order, matching);
 				} else {
-					log.warn("Unable to find root when bunching all together: "
-							+ rootVertex);
-				}
-				for (Object v : graph.vertexSet()) {
-					if (v != rootVertex) {
-						al.add(v);
+					// cycles, multiple components... just bunch all together
+					log
+							.debug("NO RULES AVAILABLE: Just bunching everything up");
+					al = new ArrayList();
+					// if the root vertex still hasn't been clustered, cluster it now
+					if (graph.containsVertex(rootVertex)) {
+						al.add(rootVertex);
+					} else {
+						log
+								.warn("Unable to find root when bunching all together: "
+										+ rootVertex);
+					}
+					for (Object v : graph.vertexSet()) {
+						if (v != rootVertex) {
+							al.add(v);
+						}
 					}
-				}
 
-				buildCluster(graph, al, rootVertex);
+					buildCluster(graph, al, rootVertex);
+				}
+			}
+		} finally {
+			for (ClusteringRule cr : rules) {
+				cr.setDegreeCaching(false);
 			}
 		}
 
 		return clusters.iterator().next();
 	}
 
+	/**
+	 * Updates the per-rule matches after vertices 'removed' have been
+	 * collapsed into 'added'. Rules only look at a vertex, its neighbors,
+	 * and the edges of those neighbors; and only edges touching 'added' or
+	 * its neighbors have changed. Therefore, only vertices within distance 2
+	 * of 'added' need to be re-evaluated.
+	 */
+	private void update(SliceGraph graph, Collection removed, Object added,
+			int addedOrder, HashMap<Object, Integer> order,
+			ArrayList<TreeMap<Integer, Object>> matching) {
+		for (Object v : removed) {
+			Integer o = order.remove(v);
+			for (TreeMap<Integer, Object> m : matching) {
+				m.remove(o);
+			}
+		}
+		order.put(added, addedOrder);
+
+		LinkedHashSet dirty = new LinkedHashSet();
+		dirty.add(added);
+		for (Object n : Graphs.neighborListOf(graph, added)) {
+			// even if already dirty: neighbors may be adjacent to each other
+			dirty.add(n);
+			dirty.addAll(Graphs.neighborListOf(graph, n));
+		}
+
+		// degrees only change for the new vertex and its direct neighbors
+		ArrayList changed = new ArrayList(removed);
+		changed.add(added);
+		changed.addAll(Graphs.neighborListOf(graph, added));
+		for (ClusteringRule cr : rules) {
+			cr.invalidateDegrees(changed);
+		}
+
+		evaluateRules(graph, dirty, order, matching);
+	}
+
+	/**
+	 * (Re)evaluates all rules on the given vertices, updating 'matching'
+	 */
+	private void evaluateRules(SliceGraph graph, Collection vertices,
+			HashMap<Object, Integer> order,
+			ArrayList<TreeMap<Integer, Object>> matching) {
+		for (Object v : vertices) {
+			Integer o = order.get(v);
+			for (int i = 0; i < rules.size(); i++) {
+				if (rules.get(i).applyTo(graph, v) != null) {
+					matching.get(i).put(o, v);
+				} else {
+					matching.get(i).remove(o);
+				}
+			}
+		}
+	}
+
 	public Cluster.Vertex buildCluster(SliceGraph graph, ArrayList vertices,
 			Object rootVertex) {
 		Cluster.Vertex cv = (Cluster.Vertex) graph.clusterAndCollapse(vertices);
@@ -215,6 +292,19 @@ public class SimpleRuleClusterer implements ClusteringEngine {
 		return nextRoot;
 	}
 
+	public ClusteringEngine copy() {
+		try {
+			SimpleRuleClusterer c = (SimpleRuleClusterer) super.clone();
+			c.rules = new ArrayList<ClusteringRule>();
+			for (ClusteringRule cr : rules) {
+				c.rules.add(cr.copy());
+			}
+			return c;
+		} catch (CloneNotSupportedException cnse) {
+			throw new IllegalStateException(cnse);
+		}
+	}
+
 	public void save(Element e) {
 		// no options; but could save the clusteringRules in use
 	}
@@ -421,7 +511,7 @@ public class SimpleRuleClusterer implements ClusteringEngine {
 	 * A rule, to be executed by this clusterer. 
 	 * If a rule is applied, a complete re-run will occur.
 	 */
-	public static abstract class ClusteringRule {
+	public static abstract class ClusteringRule implements Cloneable {
 
 		// shared "everything goes" default validator
 		private static EdgeValidator defaultValidator = new DefaultValidator();
@@ -429,6 +519,9 @@ public class SimpleRuleClusterer implements ClusteringEngine {
 		private EdgeValidator validator = defaultValidator;
 		private boolean reversed = false;
 
+		/** valid {in, out} degrees per vertex; null unless caching */
+		private HashMap<Object, int[]> degreeCache = null;
+
 		/**
 		 * Applies this rule to the vertex 'v' in the current graph
 		 * @param g the graph
@@ -467,10 +560,57 @@ public class SimpleRuleClusterer implements ClusteringEngine {
 			return neighbors;
 		}
 
+		/**
+		 * Returns a copy of this rule, with the same validator and direction
+		 * but its own (disabled) degree cache. Validators are shared.
+		 */
+		public ClusteringRule copy() {
+			try {
+				ClusteringRule r = (ClusteringRule) super.clone();
+				r.degreeCache = null;
+				return r;
+			} catch (CloneNotSupportedException cnse) {
+				throw new IllegalStateException(cnse);
+			}
+		}
+
+		/**
+		 * Enables or disables caching of degrees. While caching is enabled,
+		 * callers must use invalidateDegrees whenever the graph changes.
+		 */
+		public void setDegreeCaching(boolean enabled) {
+			degreeCache = enabled ? new HashMap<Object, int[]>() : null;
+		}
+
+		/**
+		 * Forgets cached degrees for the given vertices
+		 */
+		public void invalidateDegrees(Collection vertices) {
+			if (degreeCache != null) {
+				for (Object v : vertices) {
+					degreeCache.remove(v);
+				}
+			}
+		}
+
+		private int[] cachedDegreesOf(DirectedGraph g, Object v) {
+			int[] d = degreeCache.get(v);
+			if (d == null) {
+				d = new int[] { countInDegree(g, v), countOutDegree(g, v) };
+				degreeCache.put(v, d);
+			}
+			return d;
+		}
+
 		/**
 		 * Returns the count of valid outgoing edges of this vertex
 		 */
 		public int outDegreeOf(DirectedGraph g, Object v) {
+			return (degreeCache != null) ? cachedDegreesOf(g, v)[1]
+					: countOutDegree(g, v);
+		}
+
+		private int countOutDegree(DirectedGraph g, Object v) {
 			int count = 0;
 			for (Edge e : (Set<Edge>) (reversed ? g.incomingEdgesOf(v) : g
 					.outgoingEdgesOf(v))) {
@@ -484,6 +624,11 @@ public class SimpleRuleClusterer implements ClusteringEngine {
 		 * Returns the count of valid incoming edges of this vertex
 		 */
 		public int inDegreeOf(DirectedGraph g, Object v) {
+			return (degreeCache != null) ? cachedDegreesOf(g, v)[0]
+					: countInDegree(g, v);
+		}
+
+		private int countInDegree(DirectedGraph g, Object v) {
 			int count = 0;
 			for (Edge e : (Set<Edge>) (reversed ? g.outgoingEdgesOf(v) : g
 					.incomingEdgesOf(v))) {
@@ -495,10 +640,16 @@ public class SimpleRuleClusterer implements ClusteringEngine {
 
 		public void setValidator(EdgeValidator validator) {
 			this.validator = validator;
+			if (degreeCache != null) {
+				degreeCache.clear();
+			}
 		}
 
 		public void setReversed(boolean reversed) {
 			this.reversed = reversed;
+			if (degreeCache != null) {
+				degreeCache.clear();
+			}
 		}
 
 		private static class DefaultValidator implements EdgeValidator {
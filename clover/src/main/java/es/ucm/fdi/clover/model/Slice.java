@@ -25,7 +25,10 @@ package es.ucm.fdi.clover.model;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -48,6 +51,14 @@ import org.apache.commons.logging.LogFactory;
  * Utility methods are provided to do vertex->cluster mapping (the other
  * way around is implicit in the vertex)
  *
+ * To avoid scanning the whole slice (or the whole hierarchy) when looking for
+ * descendants or holes, slices can keep an index with the visible clusters 
+ * below each ancestor of a visible cluster; and remember the representatives
+ * found for clusters below the slice. Both are built on demand, and 
+ * maintained as clusters are added, removed, expanded or collapsed; when the
+ * hierarchy itself changes shape, reindex must be called with the clusters 
+ * that were moved.
+ *
  * @author mfreire
  */
 @SuppressWarnings( { "unchecked", "rawtypes" })
@@ -55,6 +66,34 @@ public class Slice extends HashSet<Cluster> {
 
 	private Log log = LogFactory.getLog(Slice.class);
 
+	/**
+	 * Index entry for a slice cluster, or for an ancestor of one 
+	 */
+	private static class IndexEntry {
+		/** parent when indexed; the hierarchy may have changed since */
+		private Cluster parent;
+		/** number of slice clusters strictly below */
+		private int visibleBelow;
+		/** children that also have entries */
+		private HashSet<Cluster> children = new HashSet<Cluster>();
+
+		private IndexEntry(Cluster parent) {
+			this.parent = parent;
+		}
+	}
+
+	/** 
+	 * entries for each slice cluster and each of their ancestors; 
+	 * null if not built (or invalidated) 
+	 */
+	private HashMap<Cluster, IndexEntry> index = null;
+
+	/** visible representative of clusters below the slice, once looked up */
+	private HashMap<Cluster, Cluster> representatives = new HashMap<Cluster, Cluster>();
+
+	/** clusters in 'representatives', by representative */
+	private HashMap<Cluster, HashSet<Cluster>> represented = new HashMap<Cluster, HashSet<Cluster>>();
+
 	/**
 	 * Empty constructor
 	 */
@@ -70,6 +109,231 @@ public class Slice extends HashSet<Cluster> {
 		addAll(collection);
 	}
 
+	@Override
+	public boolean add(Cluster c) {
+		boolean added = super.add(c);
+		if (added) {
+			// anything it shared a representative with may now be below it
+			Cluster old = representatives.get(c);
+			if (old != null) {
+				forgetRepresented(old);
+			}
+			if (index != null) {
+				indexAdd(c);
+			}
+		}
+		return added;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		boolean removed = super.remove(o);
+		if (removed) {
+			forgetRepresented((Cluster) o);
+			if (index != null) {
+				indexRemove((Cluster) o);
+			}
+		}
+		return removed;
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		invalidateIndex();
+	}
+
+	@Override
+	public Iterator<Cluster> iterator() {
+		final Iterator<Cluster> it = super.iterator();
+		return new Iterator<Cluster>() {
+			private Cluster last;
+
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public Cluster next() {
+				last = it.next();
+				return last;
+			}
+
+			public void remove() {
+				it.remove();
+				forgetRepresented(last);
+				if (index != null) {
+					indexRemove(last);
+				}
+			}
+		};
+	}
+
+	@Override
+	public Object clone() {
+		// indices are rebuilt on demand
+		Slice s = (Slice) super.clone();
+		s.index = null;
+		s.representatives = new HashMap<Cluster, Cluster>();
+		s.represented = new HashMap<Cluster, HashSet<Cluster>>();
+		return s;
+	}
+
+	/**
+	 * Forgets all indices. Only needed if the whole hierarchy has been
+	 * replaced; use reindex for other changes to its shape. 
+	 */
+	public void invalidateIndex() {
+		index = null;
+		representatives.clear();
+		represented.clear();
+	}
+
+	/**
+	 * Builds the index, if not already built. Linear in the number of
+	 * slice clusters times the depth of the hierarchy
+	 */
+	private void ensureIndex() {
+		if (index == null) {
+			index = new HashMap<Cluster, IndexEntry>();
+			for (Cluster c : this) {
+				indexAdd(c);
+			}
+		}
+	}
+
+	/**
+	 * Indexes slice cluster 'c', which must not be indexed yet (or only 
+	 * as an ancestor), under its current ancestors
+	 */
+	private void indexAdd(Cluster c) {
+		IndexEntry e = index.get(c);
+		if (e == null) {
+			e = new IndexEntry(c.getParentCluster());
+			index.put(c, e);
+		}
+		for (Cluster child = c, a = e.parent; a != null; child = a, a = e.parent) {
+			e = index.get(a);
+			if (e == null) {
+				e = new IndexEntry(a.getParentCluster());
+				index.put(a, e);
+			}
+			e.children.add(child);
+			e.visibleBelow++;
+		}
+	}
+
+	/**
+	 * Unindexes 'c' from the ancestors it was indexed under, and drops
+	 * entries that are no longer needed (including that of 'c', if 'c' 
+	 * is not in the slice and has no visible descendants)
+	 */
+	private void indexRemove(Cluster c) {
+		IndexEntry e = index.get(c);
+		if (e == null) {
+			return;
+		}
+		Cluster child = c;
+		boolean dropChild = !contains(c) && e.visibleBelow == 0;
+		if (dropChild) {
+			index.remove(c);
+		}
+		for (Cluster a = e.parent; a != null; child = a, a = e.parent) {
+			e = index.get(a);
+			if (dropChild) {
+				e.children.remove(child);
+			}
+			e.visibleBelow--;
+			dropChild = e.visibleBelow == 0 && !contains(a);
+			if (dropChild) {
+				index.remove(a);
+			}
+		}
+	}
+
+	/**
+	 * Updates the indices after clusters have been attached, detached or 
+	 * moved within the hierarchy (for instance, after a HierarchyChangeEvent
+	 * has been performed). Only the subtrees of the moved clusters are 
+	 * visited.
+	 * @param moved clusters that now have a different parent (or none)
+	 * @return the former parents of indexed moved clusters (where holes may 
+	 * have appeared); or null if the index was not built, and any cluster 
+	 * could have holes
+	 */
+	public HashSet<Cluster> reindex(Collection<Cluster> moved) {
+		// clusters only share a representative with those on their path to it
+		for (Cluster m : moved) {
+			Cluster r = representatives.get(m);
+			if (r != null) {
+				forgetRepresented(r);
+			}
+		}
+		if (index == null) {
+			return null;
+		}
+
+		HashSet<Cluster> formerParents = new HashSet<Cluster>();
+		LinkedHashSet<Cluster> visible = new LinkedHashSet<Cluster>();
+		for (Cluster m : moved) {
+			IndexEntry e = index.get(m);
+			if (e != null) {
+				if (e.parent != null) {
+					formerParents.add(e.parent);
+				}
+				addIndexedVisible(m, visible);
+			}
+		}
+		for (Cluster v : visible) {
+			indexRemove(v);
+		}
+		for (Cluster v : visible) {
+			IndexEntry e = index.remove(v);
+			IndexEntry pe = (e == null || e.parent == null) ? null : index
+					.get(e.parent);
+			if (pe != null) {
+				pe.children.remove(v);
+			}
+		}
+		for (Cluster v : visible) {
+			indexAdd(v);
+		}
+		return formerParents;
+	}
+
+	/**
+	 * Adds 'c' (if in the slice) and the slice clusters indexed below it
+	 */
+	private void addIndexedVisible(Cluster c, Collection<Cluster> visible) {
+		if (contains(c)) {
+			visible.add(c);
+		}
+		for (Cluster child : index.get(c).children) {
+			addIndexedVisible(child, visible);
+		}
+	}
+
+	/**
+	 * Returns the number of slice clusters that descend from 'c'
+	 * (not counting 'c' itself)
+	 */
+	public int countDescendantsOf(Cluster c) {
+		ensureIndex();
+		IndexEntry e = index.get(c);
+		return (e == null) ? 0 : e.visibleBelow;
+	}
+
+	/**
+	 * Forgets the representatives found for clusters represented by 'r'
+	 */
+	private void forgetRepresented(Cluster r) {
+		HashSet<Cluster> set = represented.remove(r);
+		if (set != null) {
+			for (Cluster c : set) {
+				representatives.remove(c);
+			}
+		}
+	}
+
 	/**
 	 * Expands cluster 'c' (must be present), substitutes it for
 	 * its children, and returns the children
@@ -216,15 +480,33 @@ public class Slice extends HashSet<Cluster> {
 
 	/**
 	 * Returns the youngest ancestor of 'c' (or possibly, 'c' itself) found in the
-	 * the slice; or null if none found.
+	 * the slice; or null if none found. Representatives are remembered for
+	 * all clusters along the way, until the slice or the hierarchy changes
+	 * around them.
 	 */
 	public Cluster getRepresentativeFor(Cluster c) {
-		while (c != null) {
-			if (contains(c))
-				return c;
-			c = c.getParentCluster();
+		Cluster r = null;
+		ArrayList<Cluster> path = new ArrayList<Cluster>();
+		for (Cluster a = c; a != null && r == null; a = a.getParentCluster()) {
+			if (contains(a)) {
+				r = a;
+			} else {
+				r = representatives.get(a);
+				path.add(a);
+			}
+		}
+		if (r != null && !path.isEmpty()) {
+			HashSet<Cluster> set = represented.get(r);
+			if (set == null) {
+				set = new HashSet<Cluster>();
+				represented.put(r, set);
+			}
+			for (Cluster a : path) {
+				representatives.put(a, r);
+				set.add(a);
+			}
 		}
-		return null;
+		return r;
 	}
 
 	/**
@@ -233,9 +515,10 @@ public class Slice extends HashSet<Cluster> {
 	 */
 	public ArrayList<Cluster> getDescendantsOf(Cluster c) {
 		ArrayList<Cluster> al = new ArrayList<Cluster>();
-		for (Cluster a : this) {
-			if (a.isNodeAncestor(c))
-				al.add(a);
+		if (countDescendantsOf(c) > 0) {
+			for (Cluster child : index.get(c).children) {
+				addIndexedVisible(child, al);
+			}
 		}
 		return al;
 	}
@@ -260,6 +543,33 @@ public class Slice extends HashSet<Cluster> {
 		return missing;
 	}
 
+	/**
+	 * Finds holes in the current slice, but only around 'suspects' (places 
+	 * where the hierarchy or the slice have changed). The same holes as
+	 * findHoles(root) are found, if there are none elsewhere.
+	 * @param root of the hierarchy; suspects not below it are ignored
+	 * @param suspects clusters that may have holes below them
+	 */
+	public ArrayList<Cluster> findHoles(Cluster root,
+			Collection<Cluster> suspects) {
+		ArrayList<Cluster> missing = new ArrayList<Cluster>();
+		HashSet<Cluster> searched = new HashSet<Cluster>();
+		for (Cluster c : suspects) {
+			if (c.getRootCluster() != root || getRepresentativeFor(c) != null) {
+				continue;
+			}
+			// the hole may start higher up
+			while (c.getParentCluster() != null
+					&& isUncovered(c.getParentCluster())) {
+				c = c.getParentCluster();
+			}
+			if (searched.add(c)) {
+				findHoles(c, missing);
+			}
+		}
+		return missing;
+	}
+
 	/**
 	 * returns 'true' if either 'c' is in the present slice, or all its
 	 * children are present (or all their children, and so on and so forth).
@@ -270,8 +580,8 @@ public class Slice extends HashSet<Cluster> {
 			return true;
 		}
 
-		// no children: impossible to be indirectly covered
-		if (c.isLeafCluster()) {
+		// no children (or no visible descendants): cannot be indirectly covered
+		if (c.isLeafCluster() || countDescendantsOf(c) == 0) {
 			return false;
 		}
 
@@ -292,18 +602,7 @@ public class Slice extends HashSet<Cluster> {
 	 * are visible in the current slice
 	 */
 	public boolean isUncovered(Cluster c) {
-		if (contains(c)) {
-			return false;
-		}
-		if (c.isLeafCluster()) {
-			return true;
-		}
-		for (int i = c.getChildCount() - 1; i >= 0; i--) {
-			if (!isUncovered((Cluster) c.getChildAt(i))) {
-				return false;
-			}
-		}
-		return true;
+		return !contains(c) && countDescendantsOf(c) == 0;
 	}
 
 	/**
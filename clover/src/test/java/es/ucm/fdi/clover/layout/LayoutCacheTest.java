@@ -0,0 +1,144 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.clover.layout;
+
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.HashMap;
+
+import es.ucm.fdi.clover.test.TestGraph;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests lru, memory bounds and sloppy matching in the LayoutCache
+ *
+ * @author mfreire
+ */
+@SuppressWarnings("all")
+public class LayoutCacheTest extends TestCase {
+	private TestGraph tg;
+
+	public LayoutCacheTest(String testName) {
+		super(testName);
+	}
+
+	protected void setUp() throws Exception {
+		tg = new TestGraph(
+				"([1, 2, 3, 4, 5, 6, 7, 8, 9, 10], "
+						+ "[{1,2}, {1,3}, {3,4}, {4,5}, {4,6}, {3,7}, {7,9}, {7,8}, {9,10}])");
+	}
+
+	public static Test suite() {
+		return new TestSuite(LayoutCacheTest.class);
+	}
+
+	private CacheKey key(String s) {
+		return new CacheKey(s, tg);
+	}
+
+	private HashMap<Object, Rectangle2D> boxes(CacheKey k) {
+		HashMap<Object, Rectangle2D> m = new HashMap<Object, Rectangle2D>();
+		for (Object o : k.getIdMappings(tg).values()) {
+			m.put(o, new Rectangle2D.Float(0, 0, 10, 10));
+		}
+		return m;
+	}
+
+	public void testExactHit() {
+		LayoutCache lc = new LayoutCache();
+		CacheKey k = key("[1:2,3][2][3]");
+		lc.put(k, boxes(k));
+		LayoutCache.CacheHit hit = lc.get(key("[1:2,3][2][3]"), 0.9);
+		assertNotNull(hit);
+		assertEquals(1.0, hit.getScore(), 1e-9);
+	}
+
+	public void testLruEviction() {
+		LayoutCache lc = new LayoutCache(2);
+		CacheKey a = key("[1][2]");
+		CacheKey b = key("[3][4]");
+		CacheKey c = key("[5][6]");
+		lc.put(a, boxes(a));
+		lc.put(b, boxes(b));
+		assertNotNull(lc.get(a, 1.0)); // a is now most recent
+		lc.put(c, boxes(c));
+		assertEquals(2, lc.size());
+		assertNotNull(lc.get(a, 1.0));
+		assertNull(lc.get(b, 1.0));
+		assertNotNull(lc.get(c, 1.0));
+	}
+
+	public void testMemoryBound() {
+		LayoutCache lc = new LayoutCache(0, 1);
+		CacheKey a = key("[1][2]");
+		CacheKey b = key("[3][4]");
+		lc.put(a, boxes(a));
+		lc.put(b, boxes(b));
+		// most recent is always kept, even if over budget
+		assertEquals(1, lc.size());
+		assertNotNull(lc.get(b, 1.0));
+		lc.setMaxBytes(0);
+		lc.put(a, boxes(a));
+		assertEquals(2, lc.size());
+		assertTrue(lc.getUsedBytes() > 0);
+		lc.clear();
+		assertEquals(0, lc.getUsedBytes());
+	}
+
+	public void testSloppyMatch() {
+		LayoutCache lc = new LayoutCache(100);
+		CacheKey big = key("[1:2,3][2][3:4,7][4:5,6][5][6][7:8,9][8][9:10][10]");
+		CacheKey other = key("[1][2][3][4]");
+		lc.put(other, boxes(other));
+		lc.put(big, boxes(big));
+		CacheKey almost = key("[1:2,3][2][3:4,7][4:5,6][5][6][7:8,9][8][9][10]");
+		LayoutCache.CacheHit hit = lc.get(almost, 0.9);
+		assertNotNull(hit);
+		assertEquals(10, hit.getData().size());
+		assertNull(lc.get(key("[5][6][8]"), 0.9));
+	}
+
+	public void testBinaryRoundTrip() throws Exception {
+		LayoutCache lc = new LayoutCache(100);
+		CacheKey a = key("[1:2,3][2][3]");
+		CacheKey b = key("[4:5][5]");
+		lc.put(a, boxes(a));
+		lc.put(b, boxes(b));
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		lc.save(new DataOutputStream(bos), tg);
+
+		LayoutCache restored = new LayoutCache(100);
+		restored.restoreLazily(bos.toByteArray(), tg);
+		assertEquals(2, restored.size());
+		LayoutCache.CacheHit hit = restored.get(key("[1:2,3][2][3]"), 1.0);
+		assertNotNull(hit);
+		assertEquals(3, hit.getData().size());
+		assertEquals(10.0, hit.getData().values().iterator().next().getWidth(),
+				1e-6);
+		assertNotNull(restored.get(key("[4:5][5]"), 1.0));
+	}
+}
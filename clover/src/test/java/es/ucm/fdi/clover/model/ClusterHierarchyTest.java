@@ -176,4 +176,63 @@ public class ClusterHierarchyTest extends TestCase {
 		assertTrue(c7.localOutgoingNeighbors().contains(c10));
 		System.err.println(c7.dump());
 	}
+
+	/**
+	 * test coalesced, background processing of several changes
+	 */
+	public void testBackgroundUpdates() throws Exception {
+
+		System.err.println("testBackgroundUpdates");
+
+		ch.setBackgroundUpdates(true);
+
+		StructureChangeEvent sce = new StructureChangeEvent(tg);
+		sce.getRemovedEdges().add(e34);
+		tg.structureChangePerformed(sce);
+		sce = new StructureChangeEvent(tg);
+		sce.getAddedEdges().add(new Edge(v7, v4));
+		tg.structureChangePerformed(sce);
+
+		assertTrue(ch.getWorker().waitUntilIdle(10000));
+		ch.setBackgroundUpdates(false);
+
+		// same result as applying both changes at once
+		String[] expected = new String[] { "{3.4.5.6.7.8.9}", "{4.5.6.7.8.9}",
+				"{4.5.6}", "{1}", "{2}", "{3}", "{4}", "{5}", "{6}", "{7}",
+				"{8}", "{9}" };
+		assertTrue(Utils.checkSameClusters(expected, ch.getRoot()
+				.getDescendants(), tg));
+	}
+
+	/**
+	 * test that background updates work on state of their own
+	 */
+	public void testSnapshotAndEngineCopy() {
+
+		BaseGraph snapshot = tg.snapshot();
+		SimpleRuleClusterer copy = (SimpleRuleClusterer) src.copy();
+
+		// later changes to the graph are not seen by the snapshot
+		tg.removeStructureChangeListener(ch);
+		StructureChangeEvent sce = new StructureChangeEvent(tg);
+		sce.getRemovedEdges().add(e34);
+		tg.structureChangePerformed(sce);
+		assertTrue(snapshot.containsEdge(e34));
+		assertFalse(tg.containsEdge(e34));
+		assertEquals(tg.vertexSet(), snapshot.vertexSet());
+		assertEquals(tg.getId(v3), snapshot.getId(v3));
+
+		// and the copy has rules of its own
+		assertEquals(src.rules.size(), copy.rules.size());
+		for (int i = 0; i < src.rules.size(); i++) {
+			assertNotSame(src.rules.get(i), copy.rules.get(i));
+			assertSame(src.rules.get(i).getClass(), copy.rules.get(i)
+					.getClass());
+		}
+
+		// and builds the same hierarchy from the snapshot
+		Cluster a = src.createHierarchy(snapshot, v1);
+		Cluster b = copy.createHierarchy(snapshot, v1);
+		assertEquals(a.getDescendants().size(), b.getDescendants().size());
+	}
 }
@@ -28,6 +28,8 @@ import java.util.ArrayList;
 import junit.framework.*;
 import es.ucm.fdi.clover.test.TestGraph;
 import java.util.Collection;
+import java.util.Collections;
+import org.jgrapht.DirectedGraph;
 
 /**
  *
@@ -105,6 +107,109 @@ public class SimpleRuleClustererTest extends TestCase {
 				tg));
 	}
 
+	/**
+	 * Incremental rule matching must give the same hierarchy as re-scanning
+	 * all rules against all vertices after each merge. Collapsing {p.a.b}
+	 * leaves n1 and n2 as adjacent neighbors of the new cluster, with n1
+	 * visited first; x, which is only reachable through n2, must then be
+	 * re-evaluated, because n2 has lost a parent.
+	 */
+	public void testIncrementalReachesNeighborsOfAdjacentNeighbors() {
+		TestGraph triangle = new TestGraph("([x, n1, q, p, a, b, n2], "
+				+ "[{n1,p}, {q,p}, {p,a}, {p,b}, {a,n2}, {b,n2}, {n1,n2}, "
+				+ "{x,n2}])");
+		SimpleRuleClusterer instance = new SimpleRuleClusterer();
+		instance.rules.clear();
+		instance.rules.add(new ParentOfThreeParentChild());
+		instance.rules.add(new SimpleRuleClusterer.ParentOfNonterminals());
+		Object x = Utils.getVertexForId("x", triangle);
+		assertSameHierarchy(instance, triangle, x);
+		assertTrue(listings(instance.createHierarchy(triangle, x), triangle)
+				.contains("{n2.x}"));
+	}
+
+	/**
+	 * Matches a vertex with a single child that has exactly three parents;
+	 * its outcome depends on vertices at distance 2
+	 */
+	private static class ParentOfThreeParentChild extends
+			SimpleRuleClusterer.ClusteringRule {
+		public ArrayList applyTo(DirectedGraph g, Object v) {
+			ArrayList children = outgoingNeighborsOf(g, v);
+			if (children.size() != 1 || inDegreeOf(g, children.get(0)) != 3) {
+				return null;
+			}
+			ArrayList vertices = new ArrayList();
+			vertices.add(v);
+			vertices.add(children.get(0));
+			return vertices;
+		}
+
+		public String getDescription() {
+			return "parent-of-three-parent-child";
+		}
+	}
+
+	private void assertSameHierarchy(SimpleRuleClusterer instance, TestGraph g,
+			Object root) {
+		ArrayList<String> full = listings(fullReclustering(instance, g, root),
+				g);
+		ArrayList<String> incremental = listings(instance.createHierarchy(g,
+				root), g);
+		assertEquals(g.dump(), full, incremental);
+	}
+
+	private static ArrayList<String> listings(Cluster c, BaseGraph g) {
+		ArrayList<String> al = new ArrayList<String>();
+		for (Cluster d : c.getDescendants()) {
+			al.add(d.getListing(g));
+		}
+		Collections.sort(al);
+		return al;
+	}
+
+	/**
+	 * Reference clustering: after each merge, all rules are tried again 
+	 * (in order) on all vertices (in vertex-set order)
+	 */
+	private static Cluster fullReclustering(SimpleRuleClusterer instance,
+			BaseGraph base, Object rootVertex) {
+		Slice clusters = new Slice();
+		for (Object v : base.vertexSet()) {
+			clusters.add(new Cluster(base, v));
+		}
+		SliceGraph graph = new SliceGraph(clusters, base);
+		while (clusters.size() > 1) {
+			ArrayList al = null;
+			for (SimpleRuleClusterer.ClusteringRule cr : instance.rules) {
+				for (Object v : graph.vertexSet()) {
+					al = cr.applyTo(graph, v);
+					if (al != null) {
+						break;
+					}
+				}
+				if (al != null) {
+					break;
+				}
+			}
+			if (al != null) {
+				rootVertex = instance.buildCluster(graph, al, rootVertex);
+			} else {
+				al = new ArrayList();
+				if (graph.containsVertex(rootVertex)) {
+					al.add(rootVertex);
+				}
+				for (Object v : graph.vertexSet()) {
+					if (v != rootVertex) {
+						al.add(v);
+					}
+				}
+				instance.buildCluster(graph, al, rootVertex);
+			}
+		}
+		return clusters.iterator().next();
+	}
+
 	//    /**
 	//     * Test of buildCluster method, of class eps.clover.model.SimpleRuleClusterer.
 	//     */
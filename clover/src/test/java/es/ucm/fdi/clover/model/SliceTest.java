@@ -0,0 +1,204 @@
+/*
+ * AC - A source-code copy detector
+ *
+ *     For more information please visit: http://github.com/manuel-freire/ac2
+ *
+ * ****************************************************************************
+ *
+ * This file is part of AC, version 2.x
+ *
+ * AC is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * AC is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with AC.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.ucm.fdi.clover.model;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import es.ucm.fdi.clover.test.TestGraph;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the slice index agrees with brute-force descendant searches
+ *
+ * @author mfreire
+ */
+@SuppressWarnings("all")
+public class SliceTest extends TestCase {
+	private TestGraph tg;
+	private Cluster root;
+
+	public SliceTest(String testName) {
+		super(testName);
+	}
+
+	protected void setUp() throws Exception {
+		tg = new TestGraph("([1, 2, 3, 4, 5, 6, 7, 8, 9], "
+				+ "[{1,2}, {1,3}, {3,4}, {4,5}, {4,6}, {3,7}, {7,9}, {7,8}])");
+		root = new ClusterHierarchy(tg, "1", new SimpleRuleClusterer())
+				.getRoot();
+	}
+
+	public static Test suite() {
+		return new TestSuite(SliceTest.class);
+	}
+
+	private static HashSet<Cluster> bruteDescendants(Slice s, Cluster c) {
+		HashSet<Cluster> set = new HashSet<Cluster>();
+		for (Cluster a : s) {
+			if (a != c && a.isNodeAncestor(c)) {
+				set.add(a);
+			}
+		}
+		return set;
+	}
+
+	private static Cluster bruteRepresentative(Slice s, Cluster c) {
+		while (c != null && !s.contains(c)) {
+			c = c.getParentCluster();
+		}
+		return c;
+	}
+
+	private void checkIndex(Slice s) {
+		ArrayList<Cluster> all = new ArrayList<Cluster>(root.getDescendants());
+		all.add(root);
+		for (Cluster c : all) {
+			HashSet<Cluster> expected = bruteDescendants(s, c);
+			assertEquals(expected, new HashSet<Cluster>(s.getDescendantsOf(c)));
+			assertEquals(expected.size(), s.countDescendantsOf(c));
+			assertEquals(!s.contains(c) && expected.isEmpty(), s.isUncovered(c));
+			assertEquals(bruteRepresentative(s, c), s.getRepresentativeFor(c));
+		}
+		assertTrue(s.findHoles(root).isEmpty());
+	}
+
+	public void testExpandCollapse() {
+		Slice s = new Slice();
+		s.add(root);
+		checkIndex(s);
+
+		// expand everything, checking each step
+		ArrayList<Cluster> pending = new ArrayList<Cluster>();
+		pending.add(root);
+		ArrayList<Cluster> expanded = new ArrayList<Cluster>();
+		while (!pending.isEmpty()) {
+			Cluster c = pending.remove(0);
+			if (!c.isLeafCluster()) {
+				pending.addAll(s.expand(c));
+				expanded.add(0, c);
+				checkIndex(s);
+			}
+		}
+
+		// and collapse back, in reverse order
+		for (Cluster c : expanded) {
+			s.collapse(c);
+			checkIndex(s);
+		}
+		assertEquals(1, s.size());
+	}
+
+	public void testHolesAndClone() {
+		Slice s = new Slice();
+		s.add(root);
+		s.expand(root);
+		Slice copy = (Slice) s.clone();
+
+		// removal through the iterator must be reflected in the index
+		Iterator<Cluster> it = s.iterator();
+		Cluster removed = it.next();
+		it.remove();
+		assertEquals(s.size(), s.countDescendantsOf(root));
+		assertEquals(1, s.findHoles(root).size());
+		assertEquals(removed, s.findHoles(root).get(0));
+
+		// while the clone is unaffected
+		assertEquals(copy.size(), copy.countDescendantsOf(root));
+		assertTrue(copy.findHoles(root).isEmpty());
+	}
+
+	/**
+	 * Expands all clusters except the last non-leaf one found, so that the
+	 * slice has clusters at several depths
+	 */
+	private Slice partialSlice() {
+		Slice s = new Slice();
+		s.add(root);
+		ArrayList<Cluster> pending = new ArrayList<Cluster>();
+		pending.add(root);
+		Cluster last = null;
+		while (!pending.isEmpty()) {
+			Cluster c = pending.remove(0);
+			if (!c.isLeafCluster()) {
+				pending.addAll(s.expand(c));
+				last = c;
+			}
+		}
+		s.collapse(last);
+		return s;
+	}
+
+	public void testReindexAfterMove() {
+		Slice s = partialSlice();
+		checkIndex(s);
+
+		// move a deep cluster (with all its visible descendants) under root
+		Cluster moved = null;
+		for (Cluster c : root.getDescendants()) {
+			if (!c.isLeafCluster() && c.getParentCluster() != root) {
+				moved = c;
+			}
+		}
+		assertNotNull(moved);
+		Cluster formerParent = moved.getParentCluster();
+		ArrayList<Cluster> movedList = new ArrayList<Cluster>();
+		movedList.add(moved);
+		root.add(moved);
+
+		HashSet<Cluster> suspects = s.reindex(movedList);
+		assertTrue(suspects.contains(formerParent));
+		checkIndex(s);
+	}
+
+	public void testReindexAfterDetach() {
+		Slice s = partialSlice();
+		checkIndex(s);
+
+		// detach a cluster, and remove its visible descendants
+		Cluster detached = null;
+		for (Cluster c : root.getDescendants()) {
+			if (!c.isLeafCluster() && c.getParentCluster() != root) {
+				detached = c;
+			}
+		}
+		ArrayList<Cluster> movedList = new ArrayList<Cluster>();
+		movedList.add(detached);
+		detached.removeFromParent();
+		HashSet<Cluster> suspects = s.reindex(movedList);
+		s.remove(detached);
+		for (Cluster d : s.getDescendantsOf(detached)) {
+			s.remove(d);
+		}
+		assertTrue(s.getDescendantsOf(detached).isEmpty());
+
+		// holes found around the suspects must be those found from root
+		assertEquals(new HashSet<Cluster>(s.findHoles(root)),
+				new HashSet<Cluster>(s.findHoles(root, suspects)));
+		s.addAll(s.findHoles(root, suspects));
+		checkIndex(s);
+	}
+}